@@ -6,6 +6,10 @@ package com.rackspace.telegrafhomebase;
  */
 public class CacheNames {
     public static final String RUNNING_REGIONAL_INPUTS = "running-regional-inputs";
+    /**
+     * Indexes the {@link #RUNNING_REGIONAL_INPUTS} by the telegraf running them.
+     */
+    public static final String TELEGRAF_REGIONAL_INPUTS = "telegraf-regional-inputs";
     public static final String RUNNING_ASSIGNED_INPUTS = "running-assigned-inputs";
     /**
      * Used for consitency checking tracks (non-persisted) if a given check has already been queued up for
@@ -15,4 +19,24 @@ public class CacheNames {
     public static final String TAGGED_NODES = "tagged-nodes";
     public static final String CONNECTED_NODES = "connected-nodes";
     public static final String DIRECT_ASSIGNMENTS = "direct-assignments";
+    /**
+     * The sequence-numbered changes of each telegraf's {@link #DIRECT_ASSIGNMENTS}.
+     */
+    public static final String ASSIGNMENT_JOURNAL = "assignment-journal";
+    /**
+     * Replicated to all nodes since every connect of a regional telegraf consults it.
+     */
+    public static final String REGIONS = "regions";
+    public static final String TELEGRAF_LEASES = "telegraf-leases";
+    /**
+     * Indexes the assigned managed inputs by each of their required tags. It is derived from
+     * {@link #MANAGED_INPUTS} and is not persisted.
+     */
+    public static final String ASSIGNMENT_TAGS = "assignment-tags";
+    /**
+     * Maps telegraf IDs to the dense int handles used by the tag index and {@link #HANDLE_TELEGRAFS} maps
+     * them back.
+     */
+    public static final String TELEGRAF_HANDLES = "telegraf-handles";
+    public static final String HANDLE_TELEGRAFS = "handle-telegrafs";
 }
@@ -1,14 +1,22 @@
 package com.rackspace.telegrafhomebase.config;
 
 import com.rackspace.telegrafhomebase.CacheNames;
+import com.rackspace.telegrafhomebase.model.AssignmentChange;
+import com.rackspace.telegrafhomebase.model.AssignmentJournalKey;
+import com.rackspace.telegrafhomebase.model.AssignmentTagKey;
 import com.rackspace.telegrafhomebase.model.ConnectedNode;
 import com.rackspace.telegrafhomebase.model.DirectAssignments;
 import com.rackspace.telegrafhomebase.model.ManagedInput;
+import com.rackspace.telegrafhomebase.model.RegisteredRegion;
 import com.rackspace.telegrafhomebase.model.RunningAssignedInputKey;
 import com.rackspace.telegrafhomebase.model.RunningRegionalInputKey;
+import com.rackspace.telegrafhomebase.model.TagAssignments;
 import com.rackspace.telegrafhomebase.model.TaggedNodes;
 import com.rackspace.telegrafhomebase.model.TaggedNodesKey;
+import com.rackspace.telegrafhomebase.model.TelegrafLease;
+import com.rackspace.telegrafhomebase.model.TelegrafRegionalInputKey;
 import org.apache.ignite.cache.CacheAtomicityMode;
+import org.apache.ignite.cache.CacheMode;
 import org.apache.ignite.cache.CacheWriteSynchronizationMode;
 import org.apache.ignite.cache.store.cassandra.CassandraCacheStore;
 import org.apache.ignite.configuration.CacheConfiguration;
@@ -18,6 +26,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.ImportResource;
 
 import javax.cache.configuration.Factory;
+import javax.cache.expiry.CreatedExpiryPolicy;
 import javax.cache.expiry.Duration;
 import javax.cache.expiry.TouchedExpiryPolicy;
 import java.util.concurrent.TimeUnit;
@@ -72,10 +81,7 @@ public class IgniteCacheConfigs {
         final CacheConfiguration<RunningRegionalInputKey,String> config
                 = new CacheConfiguration<>(CacheNames.RUNNING_REGIONAL_INPUTS);
         config.setTypes(RunningRegionalInputKey.class, String.class);
-        config.setExpiryPolicyFactory(TouchedExpiryPolicy.factoryOf(
-                new Duration(TimeUnit.SECONDS, properties.getRunningConfigTtl())
-        ));
-        config.setEagerTtl(true);
+        // entries are bound to the lease of the telegraf, so they don't expire on their own
         config.setBackups(properties.getRunningConfigCacheBackups());
         config.setWriteSynchronizationMode(CacheWriteSynchronizationMode.FULL_ASYNC);
         config.setAtomicityMode(CacheAtomicityMode.TRANSACTIONAL);
@@ -85,16 +91,28 @@ public class IgniteCacheConfigs {
         return config;
     }
 
+    @Bean
+    public CacheConfiguration<TelegrafRegionalInputKey, Boolean> telegrafRegionalInputsCacheConfig() {
+        final CacheConfiguration<TelegrafRegionalInputKey, Boolean> config
+                = new CacheConfiguration<>(CacheNames.TELEGRAF_REGIONAL_INPUTS);
+        config.setTypes(TelegrafRegionalInputKey.class, Boolean.class);
+        config.setBackups(properties.getRunningConfigCacheBackups());
+        config.setWriteSynchronizationMode(CacheWriteSynchronizationMode.FULL_ASYNC);
+        // written in the same transactions as the running regional inputs it indexes
+        config.setAtomicityMode(CacheAtomicityMode.TRANSACTIONAL);
+
+        config.setIndexedTypes(TelegrafRegionalInputKey.class, Boolean.class);
+
+        return config;
+    }
+
     @Bean
     public CacheConfiguration<RunningAssignedInputKey, String/*cluster node id*/> runningAssignedInputsCacheConfig() {
         final CacheConfiguration<RunningAssignedInputKey, String> config = new CacheConfiguration<>(
                 CacheNames.RUNNING_ASSIGNED_INPUTS
         );
         config.setTypes(RunningAssignedInputKey.class, String.class);
-        config.setExpiryPolicyFactory(TouchedExpiryPolicy.factoryOf(
-                new Duration(TimeUnit.SECONDS, properties.getRunningConfigTtl())
-        ));
-        config.setEagerTtl(true);
+        // entries are bound to the lease of the telegraf, so they don't expire on their own
         config.setBackups(properties.getRunningConfigCacheBackups());
 
         config.setIndexedTypes(RunningAssignedInputKey.class, String.class);
@@ -116,6 +134,19 @@ public class IgniteCacheConfigs {
         return config;
     }
 
+    @Bean
+    public CacheConfiguration<AssignmentTagKey, TagAssignments> assignmentTagsCacheConfig() {
+        final CacheConfiguration<AssignmentTagKey, TagAssignments> config = new CacheConfiguration<>(
+                CacheNames.ASSIGNMENT_TAGS
+        );
+        config.setTypes(AssignmentTagKey.class, TagAssignments.class);
+        config.setBackups(properties.getManagedInputsCacheBackups());
+        // indexed within the same transaction that creates the assigned inputs
+        config.setAtomicityMode(CacheAtomicityMode.TRANSACTIONAL);
+
+        return config;
+    }
+
     @Bean
     public CacheConfiguration<String/*tid*/, DirectAssignments> directAssignmentsCacheConfig() {
         final CacheConfiguration<String, DirectAssignments> config = new CacheConfiguration<>(
@@ -123,6 +154,23 @@ public class IgniteCacheConfigs {
         );
         config.setTypes(String.class, DirectAssignments.class);
         config.setBackups(properties.getRunningConfigCacheBackups());
+        // changed together with the assignment journal
+        config.setAtomicityMode(CacheAtomicityMode.TRANSACTIONAL);
+
+        return config;
+    }
+
+    @Bean
+    public CacheConfiguration<AssignmentJournalKey, AssignmentChange> assignmentJournalCacheConfig() {
+        final CacheConfiguration<AssignmentJournalKey, AssignmentChange> config = new CacheConfiguration<>(
+                CacheNames.ASSIGNMENT_JOURNAL
+        );
+        config.setTypes(AssignmentJournalKey.class, AssignmentChange.class);
+        config.setBackups(properties.getRunningConfigCacheBackups());
+        config.setAtomicityMode(CacheAtomicityMode.TRANSACTIONAL);
+        config.setExpiryPolicyFactory(CreatedExpiryPolicy.factoryOf(
+                new Duration(TimeUnit.SECONDS, properties.getAssignmentRetention())
+        ));
 
         return config;
     }
@@ -137,4 +185,55 @@ public class IgniteCacheConfigs {
 
         return config;
     }
+
+    @Bean
+    public CacheConfiguration<String/*tid*/, TelegrafLease> telegrafLeasesCacheConfig() {
+        final CacheConfiguration<String, TelegrafLease> config = new CacheConfiguration<>(
+                CacheNames.TELEGRAF_LEASES
+        );
+        config.setTypes(String.class, TelegrafLease.class);
+        config.setExpiryPolicyFactory(TouchedExpiryPolicy.factoryOf(
+                new Duration(TimeUnit.SECONDS, properties.getRunningConfigTtl())
+        ));
+        config.setEagerTtl(true);
+        config.setBackups(properties.getRunningConfigCacheBackups());
+        // a release locks the lease, so a telegraf can't be re-granted one while being released
+        config.setAtomicityMode(CacheAtomicityMode.TRANSACTIONAL);
+
+        return config;
+    }
+
+    @Bean
+    public CacheConfiguration<String/*region*/, RegisteredRegion> regionsCacheConfig() {
+        final CacheConfiguration<String, RegisteredRegion> config = new CacheConfiguration<>(
+                CacheNames.REGIONS
+        );
+        config.setTypes(String.class, RegisteredRegion.class);
+        config.setCacheMode(CacheMode.REPLICATED);
+        config.setWriteSynchronizationMode(CacheWriteSynchronizationMode.FULL_SYNC);
+
+        return config;
+    }
+
+    @Bean
+    public CacheConfiguration<String/*tid*/, Integer/*handle*/> telegrafHandlesCacheConfig() {
+        final CacheConfiguration<String, Integer> config = new CacheConfiguration<>(
+                CacheNames.TELEGRAF_HANDLES
+        );
+        config.setTypes(String.class, Integer.class);
+        config.setBackups(properties.getRunningConfigCacheBackups());
+
+        return config;
+    }
+
+    @Bean
+    public CacheConfiguration<Integer/*handle*/, String/*tid*/> handleTelegrafsCacheConfig() {
+        final CacheConfiguration<Integer, String> config = new CacheConfiguration<>(
+                CacheNames.HANDLE_TELEGRAFS
+        );
+        config.setTypes(Integer.class, String.class);
+        config.setBackups(properties.getRunningConfigCacheBackups());
+
+        return config;
+    }
 }
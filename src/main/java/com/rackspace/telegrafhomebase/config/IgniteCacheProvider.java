@@ -1,13 +1,20 @@
 package com.rackspace.telegrafhomebase.config;
 
 import com.rackspace.telegrafhomebase.CacheNames;
+import com.rackspace.telegrafhomebase.model.AssignmentChange;
+import com.rackspace.telegrafhomebase.model.AssignmentJournalKey;
+import com.rackspace.telegrafhomebase.model.AssignmentTagKey;
 import com.rackspace.telegrafhomebase.model.ConnectedNode;
 import com.rackspace.telegrafhomebase.model.DirectAssignments;
 import com.rackspace.telegrafhomebase.model.ManagedInput;
+import com.rackspace.telegrafhomebase.model.RegisteredRegion;
 import com.rackspace.telegrafhomebase.model.RunningAssignedInputKey;
 import com.rackspace.telegrafhomebase.model.RunningRegionalInputKey;
+import com.rackspace.telegrafhomebase.model.TagAssignments;
 import com.rackspace.telegrafhomebase.model.TaggedNodes;
 import com.rackspace.telegrafhomebase.model.TaggedNodesKey;
+import com.rackspace.telegrafhomebase.model.TelegrafLease;
+import com.rackspace.telegrafhomebase.model.TelegrafRegionalInputKey;
 import org.apache.ignite.Ignite;
 import org.apache.ignite.IgniteCache;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -45,11 +52,21 @@ public class IgniteCacheProvider {
         return ignite.cache(CacheNames.RUNNING_REGIONAL_INPUTS);
     }
 
+    @Bean
+    public IgniteCache<TelegrafRegionalInputKey, Boolean> telegrafRegionalInputsCache() {
+        return ignite.cache(CacheNames.TELEGRAF_REGIONAL_INPUTS);
+    }
+
     @Bean
     public IgniteCache<TaggedNodesKey, TaggedNodes> taggedNodesCache() {
         return ignite.cache(CacheNames.TAGGED_NODES);
     }
 
+    @Bean
+    public IgniteCache<AssignmentTagKey, TagAssignments> assignmentTagsCache() {
+        return ignite.cache(CacheNames.ASSIGNMENT_TAGS);
+    }
+
     @Bean
     public IgniteCache<String/*tid*/, ConnectedNode> connectedNodesCache() {
         return ignite.cache(CacheNames.CONNECTED_NODES);
@@ -60,6 +77,31 @@ public class IgniteCacheProvider {
         return ignite.cache(CacheNames.DIRECT_ASSIGNMENTS);
     }
 
+    @Bean
+    public IgniteCache<AssignmentJournalKey, AssignmentChange> assignmentJournalCache() {
+        return ignite.cache(CacheNames.ASSIGNMENT_JOURNAL);
+    }
+
+    @Bean
+    public IgniteCache<String/*tid*/, TelegrafLease> telegrafLeasesCache() {
+        return ignite.cache(CacheNames.TELEGRAF_LEASES);
+    }
+
+    @Bean
+    public IgniteCache<String/*region*/, RegisteredRegion> regionsCache() {
+        return ignite.cache(CacheNames.REGIONS);
+    }
+
+    @Bean
+    public IgniteCache<String/*tid*/, Integer/*handle*/> telegrafHandlesCache() {
+        return ignite.cache(CacheNames.TELEGRAF_HANDLES);
+    }
+
+    @Bean
+    public IgniteCache<Integer/*handle*/, String/*tid*/> handleTelegrafsCache() {
+        return ignite.cache(CacheNames.HANDLE_TELEGRAFS);
+    }
+
     /**
      * Tracks a specific assignment of a managed input onto a telegraf instance. The presence of the key is
      * the important thing, but the ignite cluster node ID where the assignment created is recorded as the
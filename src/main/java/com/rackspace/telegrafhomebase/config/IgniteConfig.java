@@ -60,7 +60,8 @@ public class IgniteConfig {
         configuration.setIncludeEventTypes(
                 EventType.EVT_CACHE_OBJECT_PUT,
                 EventType.EVT_CACHE_OBJECT_REMOVED,
-                EventType.EVT_CACHE_OBJECT_EXPIRED
+                EventType.EVT_CACHE_OBJECT_EXPIRED,
+                EventType.EVT_CACHE_REBALANCE_PART_DATA_LOST
         );
 
         return configuration;
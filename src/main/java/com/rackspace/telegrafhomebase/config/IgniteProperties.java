@@ -21,7 +21,8 @@ public class IgniteProperties {
     int managedInputsCacheBackups = 1;
 
     /**
-     * The amount of time an applied config can go without a keep alive (in seconds)
+     * The amount of time a telegraf's lease, and therefore its applied configs, can go without a keep alive
+     * (in seconds)
      */
     int runningConfigTtl = 30;
 
@@ -32,6 +33,12 @@ public class IgniteProperties {
      */
     int telegrafInstanceTtl = 120;
 
+    /**
+     * The amount of time that assignment journal entries, and the direct assignments of a departed telegraf,
+     * are retained so a reconnecting telegraf can resume (in seconds)
+     */
+    int assignmentRetention = 86_400;
+
     /**
      * This timeout allows time for the grid participants to wait for initial network grid negotiations.
      */
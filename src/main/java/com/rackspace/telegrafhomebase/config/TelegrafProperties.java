@@ -1,10 +1,14 @@
 package com.rackspace.telegrafhomebase.config;
 
+import com.rackspace.telegrafhomebase.shared.ConfigPackStream;
+import com.rackspace.telegrafhomebase.shared.PlacementStrategy;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author Geoff Bourne
@@ -16,7 +20,150 @@ import java.util.List;
 public class TelegrafProperties {
 
     /**
-     * Defines the allowed/expected regions where remote telegrafs will be originating their contact with us.
+     * Seeds the registry of allowed/expected regions where remote telegrafs will be originating their contact
+     * with us. More regions can be registered at runtime.
      */
     List<String> regions;
+
+    /**
+     * The number of seconds a region's dispatching may sit without any connected telegrafs on this node before
+     * its threads and bundle are retired. They are re-created when a telegraf of that region connects again.
+     */
+    long regionIdleTimeout = 300;
+
+    /**
+     * The maximum number of config packs queued for a remote telegraf whose stream is not ready for more.
+     */
+    int outboundQueueCapacity = 100;
+
+    /**
+     * Decides what happens when a config pack is sent to a remote telegraf with a full outbound queue.
+     */
+    ConfigPackStream.OverflowPolicy outboundOverflowPolicy = ConfigPackStream.OverflowPolicy.COALESCE;
+
+    /**
+     * Decides how the pending config queues of the regions are consumed.
+     */
+    DispatcherMode dispatcherMode = DispatcherMode.BLOCKING;
+
+    /**
+     * The number of threads shared by all regions when using {@link DispatcherMode#EVENT_LOOP}.
+     */
+    int dispatcherThreads = 2;
+
+    /**
+     * The number of threads that handle the configs polled by an {@link DispatcherMode#EVENT_LOOP} dispatcher,
+     * which keeps a region that is slow to handle its configs from holding up the polling of the others.
+     */
+    int dispatcherWorkerThreads = 8;
+
+    /**
+     * The number of milliseconds an {@link DispatcherMode#EVENT_LOOP} dispatcher waits before polling
+     * an empty pending config queue again.
+     */
+    long dispatcherPollInterval = 100;
+
+    /**
+     * The maximum number of milliseconds an {@link DispatcherMode#EVENT_LOOP} dispatcher backs off to, since the
+     * poll interval doubles with each consecutive poll of an empty pending config queue.
+     */
+    long dispatcherMaxPollInterval = 5000;
+
+    /**
+     * The number of buckets each tag's posting list is split across, so that a telegraf connecting or
+     * disconnecting only rewrites its own bucket of a popular tag. This MUST be the same on all nodes of the cluster.
+     */
+    int tagBuckets = 16;
+
+    /**
+     * The maximum number of telegrafs updated together when a newly created assigned input is fanned out
+     * to all of its matching telegrafs.
+     */
+    int assignmentFanoutBatchSize = 500;
+
+    /**
+     * The maximum number of managed inputs committed together in one transaction by a bulk creation.
+     */
+    int bulkCreateBatchSize = 500;
+
+    /**
+     * The maximum number of assignment journal entries retained per telegraf. A telegraf resuming from further
+     * back than that is sent its full set of assignments instead.
+     */
+    int assignmentJournalSize = 100;
+
+    /**
+     * The number of single-threaded lanes that observed managed input and connection events are processed on.
+     * The events of one tenant always share a lane, so they are handled in order.
+     */
+    int eventLanes = 4;
+
+    /**
+     * Decides which nodes of the cluster observe managed input, connection, and lease expiration events.
+     * This MUST be the same on all nodes of the cluster.
+     */
+    ObserverMode observerMode = ObserverMode.SINGLETON;
+
+    /**
+     * The settings used by regions without an entry in {@link #regionSettings}.
+     */
+    RegionSettings defaultRegionSettings = new RegionSettings();
+
+    /**
+     * Overrides the settings of specific regions, keyed by region. An override replaces the default settings
+     * as a whole, so any field it leaves out takes the built-in default.
+     */
+    Map<String, RegionSettings> regionSettings = new HashMap<>();
+
+    public RegionSettings settingsFor(String region) {
+        return regionSettings.getOrDefault(region, defaultRegionSettings);
+    }
+
+    public enum DispatcherMode {
+        /**
+         * Each shard of each region gets its own thread that blocks on its pending config queue.
+         */
+        BLOCKING,
+        /**
+         * A small, fixed pool of threads polls the pending config queues of all regions without blocking.
+         */
+        EVENT_LOOP
+    }
+
+    public enum ObserverMode {
+        /**
+         * Only the oldest node of the cluster observes events and it handles all of them.
+         */
+        SINGLETON,
+        /**
+         * Every node observes the events of the keys in its own primary partitions, so the handling is spread
+         * across the cluster.
+         */
+        PARTITIONED
+    }
+
+    @Data
+    public static class RegionSettings {
+        /**
+         * Decides which of the region's telegrafs is given each regional input.
+         */
+        PlacementStrategy.Type placement = PlacementStrategy.Type.RANDOM;
+
+        /**
+         * The number of pending config queues, each with its own consumer, that the region's work is split across.
+         * This MUST be the same on all nodes of the cluster.
+         */
+        int shards = 1;
+
+        /**
+         * The maximum number of pending configs handled together, which are then sent as one config pack
+         * per selected telegraf.
+         */
+        int batchSize = 1;
+
+        /**
+         * The amount of time in milliseconds to wait for a batch to fill once its first config is taken.
+         */
+        long batchWait = 0;
+    }
 }
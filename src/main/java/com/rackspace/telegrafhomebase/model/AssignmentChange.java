@@ -0,0 +1,24 @@
+package com.rackspace.telegrafhomebase.model;
+
+import lombok.Data;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One entry of a telegraf's assignment journal, which holds only what changed in its direct assignments.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Data
+public class AssignmentChange implements Serializable {
+    static final long serialVersionUID = 0L;
+
+    long sequence;
+
+    List<String/*mid*/> added = new ArrayList<>();
+
+    List<String/*mid*/> removed = new ArrayList<>();
+}
@@ -0,0 +1,23 @@
+package com.rackspace.telegrafhomebase.model;
+
+import lombok.Data;
+import org.apache.ignite.cache.affinity.AffinityKeyMapped;
+
+import java.io.Serializable;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Data
+public class AssignmentJournalKey implements Serializable {
+    static final long serialVersionUID = 0L;
+
+    /**
+     * Collocates all of a telegraf's journal entries, so their change events are observed in sequence order.
+     */
+    @AffinityKeyMapped
+    final String tid;
+
+    final long sequence;
+}
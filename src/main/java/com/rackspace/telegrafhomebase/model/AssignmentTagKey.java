@@ -0,0 +1,27 @@
+package com.rackspace.telegrafhomebase.model;
+
+import lombok.Data;
+
+import java.io.Serializable;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Data
+public class AssignmentTagKey implements Serializable {
+    static final long serialVersionUID = 0L;
+
+    /**
+     * The tenant that owns the assigned managed inputs
+     */
+    final String tenantId;
+    /**
+     * name of the required tag
+     */
+    final String name;
+    /**
+     * value of the required tag
+     */
+    final String value;
+}
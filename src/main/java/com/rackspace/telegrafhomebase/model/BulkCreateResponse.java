@@ -0,0 +1,31 @@
+package com.rackspace.telegrafhomebase.model;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Data
+public class BulkCreateResponse {
+    /**
+     * The outcome of each given definition, in the order they were given.
+     */
+    List<Item> results = new ArrayList<>();
+
+    @Data
+    public static class Item {
+        /**
+         * The IDs of the managed inputs created for the definition, which is one per region of a regional one.
+         */
+        List<String> created;
+
+        /**
+         * Why the definition was rejected or null if it was created.
+         */
+        String error;
+    }
+}
@@ -0,0 +1,20 @@
+package com.rackspace.telegrafhomebase.model;
+
+import lombok.Data;
+
+import javax.validation.Valid;
+
+/**
+ * One item of a bulk creation, which MUST set exactly one of its definitions.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Data
+public class BulkInputDefinition {
+    @Valid
+    RegionalInputDefinition regional;
+
+    @Valid
+    AssignedInputDefinition assigned;
+}
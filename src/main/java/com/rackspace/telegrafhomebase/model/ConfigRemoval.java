@@ -0,0 +1,31 @@
+package com.rackspace.telegrafhomebase.model;
+
+import lombok.Data;
+
+import java.io.Serializable;
+
+/**
+ * Announced to all nodes of the cluster when a managed input is deleted, so that each one can tell its own
+ * telegrafs running the input to stop.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Data
+public class ConfigRemoval implements Serializable {
+    static final long serialVersionUID = 0L;
+
+    public static final String TOPIC = "config-removals";
+
+    final String id;
+
+    /**
+     * The region of a regional input or null if it is an assigned input.
+     */
+    final String region;
+
+    /**
+     * When the input was deleted, in milliseconds since the epoch.
+     */
+    final long deletedAt;
+}
@@ -1,81 +1,223 @@
 package com.rackspace.telegrafhomebase.model;
 
-import lombok.ToString;
-
-import java.util.Collections;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
+ * An immutable set of the managed input IDs directly assigned to a telegraf. The IDs are kept in a sorted array,
+ * which is far more compact than a hash set, is cheap to serialize into the cache, and allows two instances to be
+ * diffed with a single merge pass.
+ *
+ * <p>
+ *     Every change produces an instance with the next {@link #getSequence() sequence}, which numbers the
+ *     telegraf's entries in the {@link com.rackspace.telegrafhomebase.services.AssignmentJournal}.
+ * </p>
+ *
  * @author Geoff Bourne
  * @since Aug 2017
  */
-@ToString
 public class DirectAssignments {
+    private static final String[] NONE = new String[0];
 
-    final Set<String/*mid*/> managedInputIds;
+    /**
+     * Sorted and without duplicates
+     */
+    final String[/*mid*/] managedInputIds;
+    final long sequence;
 
     public DirectAssignments() {
-        managedInputIds = null;
+        managedInputIds = NONE;
+        sequence = 0;
     }
 
     public DirectAssignments(String managedInputId) {
-        this.managedInputIds = Collections.singleton(managedInputId);
+        this.managedInputIds = new String[]{managedInputId};
+        sequence = 1;
     }
 
-    private DirectAssignments(Set<String> managedInputIds) {
+    private DirectAssignments(String[] managedInputIds, long sequence) {
         this.managedInputIds = managedInputIds;
+        this.sequence = sequence;
     }
 
     /**
-     * Adds the given managed input ID by making a deep clone of itself.
+     * Adds the given managed input ID by making a copy of itself.
      * @param mid the managed input ID
      * @return a new instance if added or itself if already present
      */
     public DirectAssignments add(String mid) {
-        if (managedInputIds == null) {
-            return new DirectAssignments(Collections.singleton(mid));
-        } else if (!managedInputIds.contains(mid)) {
-            final HashSet<String> content = new HashSet<>(managedInputIds);
-            content.add(mid);
-            return new DirectAssignments(content);
-        }
-        else {
+        final int pos = Arrays.binarySearch(managedInputIds, mid);
+        if (pos >= 0) {
             return this;
         }
+
+        final int insertAt = -pos - 1;
+        final String[] content = new String[managedInputIds.length + 1];
+        System.arraycopy(managedInputIds, 0, content, 0, insertAt);
+        content[insertAt] = mid;
+        System.arraycopy(managedInputIds, insertAt, content, insertAt + 1, managedInputIds.length - insertAt);
+        return new DirectAssignments(content, sequence + 1);
+    }
+
+    /**
+     * Adds all of the given managed input IDs with a single copy of itself.
+     * @return a new instance if any were added or itself if all were already present
+     */
+    public DirectAssignments addAll(Collection<String> mids) {
+        final String[] additions = new HashSet<>(mids).toArray(NONE);
+        Arrays.sort(additions);
+
+        final String[] merged = new String[managedInputIds.length + additions.length];
+        int i = 0, j = 0, count = 0;
+        while (i < managedInputIds.length || j < additions.length) {
+            if (j >= additions.length) {
+                merged[count++] = managedInputIds[i++];
+            } else if (i >= managedInputIds.length) {
+                merged[count++] = additions[j++];
+            } else {
+                final int cmp = managedInputIds[i].compareTo(additions[j]);
+                if (cmp < 0) {
+                    merged[count++] = managedInputIds[i++];
+                } else if (cmp > 0) {
+                    merged[count++] = additions[j++];
+                } else {
+                    merged[count++] = managedInputIds[i++];
+                    j++;
+                }
+            }
+        }
+
+        return count == managedInputIds.length ?
+                this : new DirectAssignments(Arrays.copyOf(merged, count), sequence + 1);
+    }
+
+    /**
+     * Replaces the assigned managed input IDs with exactly the given ones.
+     * @return a new instance if that changed anything or itself if the same IDs were already assigned
+     */
+    public DirectAssignments replaceWith(Collection<String> mids) {
+        final String[] content = new HashSet<>(mids).toArray(NONE);
+        Arrays.sort(content);
+
+        return Arrays.equals(content, managedInputIds) ? this : new DirectAssignments(content, sequence + 1);
     }
 
     public DirectAssignments remove(String mid) {
-        if (managedInputIds == null) {
-            return this;
-        } else if (managedInputIds.contains(mid)) {
-            final HashSet<String> content = new HashSet<>(managedInputIds);
-            content.remove(mid);
-            return new DirectAssignments(content);
-        } else {
+        final int pos = Arrays.binarySearch(managedInputIds, mid);
+        if (pos < 0) {
             return this;
         }
+
+        final String[] content = new String[managedInputIds.length - 1];
+        System.arraycopy(managedInputIds, 0, content, 0, pos);
+        System.arraycopy(managedInputIds, pos + 1, content, pos, content.length - pos);
+        return new DirectAssignments(content, sequence + 1);
+    }
+
+    /**
+     * @return a copy with the same managed input IDs and the next sequence, such as to journal a re-send of some
+     * of them
+     */
+    public DirectAssignments nextSequence() {
+        return new DirectAssignments(managedInputIds, sequence + 1);
     }
 
+    /**
+     * @return a read-only view of the assigned managed input IDs
+     */
     public Set<String> get() {
-        return managedInputIds;
+        return new SortedArraySet(managedInputIds);
+    }
+
+    /**
+     * @return the sequence of the change that produced this instance, which is zero if it was never changed
+     */
+    public long getSequence() {
+        return sequence;
     }
 
     public Set<String> additionsIn(DirectAssignments updatedAssignments) {
-        if (this.managedInputIds == null || updatedAssignments == null || updatedAssignments.managedInputIds == null) {
+        if (updatedAssignments == null) {
             return null;
         }
-        final HashSet<String> content = new HashSet<>(updatedAssignments.managedInputIds);
-        content.removeAll(this.managedInputIds);
-        return content.isEmpty() ? null : content;
+        return difference(updatedAssignments.managedInputIds, this.managedInputIds);
     }
 
     public Set<String> removalsIn(DirectAssignments updatedAssignments) {
-        if (this.managedInputIds == null || updatedAssignments.managedInputIds == null) {
+        if (updatedAssignments == null) {
             return null;
         }
-        final HashSet<String> content = new HashSet<>(this.managedInputIds);
-        content.removeAll(updatedAssignments.managedInputIds);
-        return content.isEmpty() ? null : content;
+        return difference(this.managedInputIds, updatedAssignments.managedInputIds);
+    }
+
+    @Override
+    public String toString() {
+        return "DirectAssignments(managedInputIds=" + Arrays.toString(managedInputIds) +
+                ", sequence=" + sequence + ")";
+    }
+
+    /**
+     * @return the elements of lhs that are not in rhs or null if there are none
+     */
+    private static Set<String> difference(String[] lhs, String[] rhs) {
+        final List<String> content = new ArrayList<>();
+        int i = 0, j = 0;
+        while (i < lhs.length) {
+            final int cmp = j < rhs.length ? lhs[i].compareTo(rhs[j]) : -1;
+            if (cmp < 0) {
+                content.add(lhs[i++]);
+            } else if (cmp > 0) {
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return content.isEmpty() ? null : new SortedArraySet(content.toArray(NONE));
+    }
+
+    private static class SortedArraySet extends AbstractSet<String> {
+        private final String[] content;
+
+        SortedArraySet(String[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof String && Arrays.binarySearch(content, o) >= 0;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                int next = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return next < content.length;
+                }
+
+                @Override
+                public String next() {
+                    if (next >= content.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return content[next++];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return content.length;
+        }
     }
 }
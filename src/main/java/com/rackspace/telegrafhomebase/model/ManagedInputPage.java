@@ -0,0 +1,21 @@
+package com.rackspace.telegrafhomebase.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * One page of a tenant's managed inputs, ordered by ID.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Data
+public class ManagedInputPage {
+    List<ManagedInputExt> items;
+
+    /**
+     * An opaque cursor to pass back in order to get the next page or null if this is the last page.
+     */
+    String next;
+}
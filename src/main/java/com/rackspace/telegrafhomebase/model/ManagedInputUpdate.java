@@ -0,0 +1,22 @@
+package com.rackspace.telegrafhomebase.model;
+
+import lombok.Data;
+
+/**
+ * Used by REST interactions to change the definition of an existing managed input. Its region or assignment tags
+ * are not changed, so it stays running on the same telegrafs.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Data
+public class ManagedInputUpdate {
+    /**
+     * The actual telegraf input definition which MUST be an [[inputs.*]] block.
+     */
+    String text;
+
+    StructuredInputConfig structured;
+
+    String title;
+}
@@ -0,0 +1,20 @@
+package com.rackspace.telegrafhomebase.model;
+
+import lombok.Data;
+
+import java.io.Serializable;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Data
+public class RegisteredRegion implements Serializable {
+    static final long serialVersionUID = 0L;
+
+    String name;
+    /**
+     * Epoch milliseconds of when the region was registered.
+     */
+    long registeredAt;
+}
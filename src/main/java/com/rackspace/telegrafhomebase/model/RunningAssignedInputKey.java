@@ -18,4 +18,10 @@ public class RunningAssignedInputKey implements Serializable {
 
     @QuerySqlField(index = true)
     final String telegrafId;
+
+    /**
+     * The partition of the telegraf's lease, which locates the telegrafs of a lost partition without a scan.
+     */
+    @QuerySqlField(index = true)
+    final int leasePartition;
 }
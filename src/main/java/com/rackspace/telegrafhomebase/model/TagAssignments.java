@@ -0,0 +1,20 @@
+package com.rackspace.telegrafhomebase.model;
+
+import lombok.Data;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The assigned managed inputs that require a specific tag, along with the total number of tags each one requires.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Data
+public class TagAssignments implements Serializable {
+    static final long serialVersionUID = 0L;
+
+    Map<String/*managed input id*/, Integer/*required tag count*/> inputs = new HashMap<>();
+}
@@ -1,18 +1,20 @@
 package com.rackspace.telegrafhomebase.model;
 
 import lombok.Data;
+import org.roaringbitmap.RoaringBitmap;
 
 import java.io.Serializable;
-import java.util.HashSet;
-import java.util.Set;
 
 /**
+ * The posting list of one tag, which holds the {@link com.rackspace.telegrafhomebase.services.TelegrafHandles handles}
+ * of the telegrafs that reported it.
+ *
  * @author Geoff Bourne
  * @since Aug 2017
  */
 @Data
 public class TaggedNodes implements Serializable {
-    static final long serialVersionUID = 0L;
+    static final long serialVersionUID = 1L;
 
-    Set<String> tids = new HashSet<>();
+    RoaringBitmap handles = new RoaringBitmap();
 }
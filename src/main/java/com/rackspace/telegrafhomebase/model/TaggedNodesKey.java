@@ -10,7 +10,7 @@ import java.io.Serializable;
  */
 @Data
 public class TaggedNodesKey implements Serializable {
-    static final long serialVersionUID = 0L;
+    static final long serialVersionUID = 1L;
 
     /**
      * The tenant that owns this particular tag
@@ -24,4 +24,8 @@ public class TaggedNodesKey implements Serializable {
      * value of the tag
      */
     final String value;
+    /**
+     * the bucket of the tag's posting list, which is derived from the handles it holds
+     */
+    final int bucket;
 }
@@ -0,0 +1,35 @@
+package com.rackspace.telegrafhomebase.model;
+
+import lombok.Data;
+
+import java.io.Serializable;
+
+/**
+ * Represents the liveness of a connected telegraf. The running entries of the telegraf's inputs are bound
+ * to its lease and are all released together when the lease expires.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Data
+public class TelegrafLease implements Serializable {
+    static final long serialVersionUID = 0L;
+
+    String tid;
+    String region;
+    String clusterNodeId;
+    /**
+     * The {@link com.rackspace.telegrafhomebase.shared.ConfigPackStream#getConnectionId()} of the stream the lease
+     * was granted for or null if re-granted by a keep-alive.
+     */
+    String connectionId;
+
+    /**
+     * The fingerprint of the config IDs last reported by the telegraf that were fully validated.
+     */
+    long validatedFingerprint;
+    /**
+     * The assignment generation at the time of that validation or -1 if none has been done.
+     */
+    long validatedGeneration = -1;
+}
@@ -0,0 +1,33 @@
+package com.rackspace.telegrafhomebase.model;
+
+import lombok.Data;
+import org.apache.ignite.cache.query.annotations.QuerySqlField;
+
+import java.io.Serializable;
+
+/**
+ * Indexes a {@link RunningRegionalInputKey running regional input} by the telegraf running it, since the
+ * telegraf is the value of those entries and so can't be queried by index there.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Data
+public class TelegrafRegionalInputKey implements Serializable {
+    static final long serialVersionUID = 0L;
+
+    @QuerySqlField(index = true)
+    final String tid;
+
+    /**
+     * The partition of the telegraf's lease, which locates the telegrafs of a lost partition without a scan.
+     */
+    @QuerySqlField(index = true)
+    final int leasePartition;
+
+    @QuerySqlField
+    final String mid;
+
+    @QuerySqlField
+    final String region;
+}
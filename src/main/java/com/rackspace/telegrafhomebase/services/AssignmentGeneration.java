@@ -0,0 +1,51 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.google.common.base.Strings;
+import org.apache.ignite.Ignite;
+import org.apache.ignite.IgniteAtomicLong;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Grid-wide counters that are advanced whenever a change could invalidate a previously validated keep-alive
+ * report, such as a deleted config. There is one counter per scope, which is the region of regional telegrafs
+ * or the tenant of tenant-specific ones, so a change only affects the telegrafs that could be running the
+ * changed config.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Component
+public class AssignmentGeneration {
+
+    private final Ignite ignite;
+    private final ConcurrentMap<String/*scope*/, IgniteAtomicLong> generations = new ConcurrentHashMap<>();
+
+    @Autowired
+    public AssignmentGeneration(Ignite ignite) {
+        this.ignite = ignite;
+    }
+
+    /**
+     * @return the scope of a telegraf or managed input with the given region or, if that's empty, tenant
+     */
+    public static String scopeOf(String region, String tenantId) {
+        return !Strings.isNullOrEmpty(region) ? "region:" + region : "tenant:" + tenantId;
+    }
+
+    public long current(String scope) {
+        return generation(scope).get();
+    }
+
+    public void advance(String scope) {
+        generation(scope).incrementAndGet();
+    }
+
+    private IgniteAtomicLong generation(String scope) {
+        return generations.computeIfAbsent(scope,
+                                           s -> ignite.atomicLong("assignment-generation-" + s, 0, true));
+    }
+}
@@ -0,0 +1,311 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
+import com.rackspace.telegrafhomebase.config.IgniteProperties;
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import com.rackspace.telegrafhomebase.model.AssignmentChange;
+import com.rackspace.telegrafhomebase.model.AssignmentJournalKey;
+import com.rackspace.telegrafhomebase.model.DirectAssignments;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ignite.IgniteCache;
+import org.apache.ignite.IgniteTransactions;
+import org.apache.ignite.transactions.Transaction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.cache.expiry.Duration;
+import javax.cache.expiry.ModifiedExpiryPolicy;
+import javax.cache.processor.EntryProcessor;
+import javax.cache.processor.EntryProcessorException;
+import javax.cache.processor.EntryProcessorResult;
+import javax.cache.processor.MutableEntry;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies all changes to the telegrafs' {@link DirectAssignments} and records each one as a sequence-numbered
+ * {@link AssignmentChange} in the same transaction. Streams follow the journal rather than diffing whole
+ * assignment values, and a reconnecting telegraf resumes from the last sequence it applied.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Component
+@Slf4j
+public class AssignmentJournal {
+    private static final AssignmentUpdater ADDER = new AssignmentUpdater(AssignmentUpdater.Mode.ADD);
+    private static final AssignmentUpdater REPLACER = new AssignmentUpdater(AssignmentUpdater.Mode.REPLACE);
+    private static final AssignmentUpdater REFRESHER = new AssignmentUpdater(AssignmentUpdater.Mode.REFRESH);
+
+    private final IgniteTransactions igniteTransactions;
+    private final IgniteCache<String, DirectAssignments> directAssignmentsCache;
+    private final IgniteCache<AssignmentJournalKey, AssignmentChange> journalCache;
+    private final int journalSize;
+    private final long retention;
+
+    @Autowired
+    public AssignmentJournal(IgniteTransactions igniteTransactions,
+                             IgniteCacheProvider cacheProvider,
+                             TelegrafProperties telegrafProperties,
+                             IgniteProperties igniteProperties) {
+        this.igniteTransactions = igniteTransactions;
+        directAssignmentsCache = cacheProvider.directAssignmentsCache();
+        journalCache = cacheProvider.assignmentJournalCache();
+        journalSize = telegrafProperties.getAssignmentJournalSize();
+        retention = igniteProperties.getAssignmentRetention();
+        Assert.isTrue(journalSize > 0, "Assignment journal size must be positive");
+    }
+
+    /**
+     * Adds the given managed inputs to the direct assignments of each of the given telegrafs.
+     *
+     * @return the number of telegrafs whose assignments changed
+     */
+    public int assign(Set<String> tids, Collection<String> mids) {
+        return apply(directAssignmentsCache, tids, ADDER, mids);
+    }
+
+    /**
+     * Replaces the direct assignments of the given telegraf, such as when it connects with possibly different
+     * tags. Only the difference from its previous assignments is journaled.
+     *
+     * @return true if its assignments changed
+     */
+    public boolean reconcile(String tid, Collection<String> mids) {
+        // it's present again, so stop the retention countdown of a prior disconnect
+        final IgniteCache<String, DirectAssignments> cache =
+                directAssignmentsCache.withExpiryPolicy(new ModifiedExpiryPolicy(Duration.ETERNAL));
+        return apply(cache, Collections.singleton(tid), REPLACER, mids) > 0;
+    }
+
+    /**
+     * Same as {@link #reconcile(String, Collection)}, but only applied if the telegraf's assignments are still at
+     * the given sequence. That way a replacement that was looked up before a concurrent assignment can't undo
+     * that assignment.
+     *
+     * @param expectedSequence the sequence of the telegraf's assignments, or zero if it had none, read before
+     *                         looking up the given managed inputs
+     * @return false if the assignments changed since then, in which case nothing was applied and the caller needs
+     * to look up the managed inputs again
+     */
+    public boolean reconcile(String tid, Collection<String> mids, long expectedSequence) {
+        try (Transaction tx = igniteTransactions.txStart()) {
+            // locks the entry, so nothing can be assigned between the check and the replacement
+            if (sequenceOf(tid) != expectedSequence) {
+                return false;
+            }
+
+            if (reconcile(tid, mids)) {
+                log.debug("Reconciled assignments={} of telegraf={}", mids, tid);
+            }
+            tx.commit();
+            return true;
+        }
+    }
+
+    /**
+     * @return the sequence of the given telegraf's assignments or zero if it has none
+     */
+    public long sequenceOf(String tid) {
+        final DirectAssignments assignments = directAssignmentsCache.get(tid);
+        return assignments != null ? assignments.getSequence() : 0;
+    }
+
+    /**
+     * Journals the given managed inputs as added again to the given telegraf, without changing its assignments.
+     * That way they are sent in full when the telegraf resumes, such as after a modification of them could not
+     * be delivered. Those not assigned to the telegraf are ignored.
+     *
+     * @return true if any of them were assigned
+     */
+    public boolean refresh(String tid, Collection<String> mids) {
+        return apply(directAssignmentsCache, Collections.singleton(tid), REFRESHER, mids) > 0;
+    }
+
+    /**
+     * Keeps the direct assignments of a departed telegraf only for the retention period, so that it can still
+     * resume if it reconnects within that time. Participates in the caller's transaction, if any.
+     */
+    public void retire(String tid) {
+        directAssignmentsCache
+                .withExpiryPolicy(new ModifiedExpiryPolicy(new Duration(TimeUnit.SECONDS, retention)))
+                .invoke(tid, (entry, args) -> {
+                    if (entry.exists()) {
+                        // re-setting the value is what applies the expiry
+                        entry.setValue(entry.getValue());
+                    }
+                    return null;
+                });
+    }
+
+    public DirectAssignments get(String tid) {
+        return directAssignmentsCache.get(tid);
+    }
+
+    /**
+     * @return the journal entries of the given telegraf after the given sequence, up to and including the other
+     * one, or null if any of them are no longer retained
+     */
+    public List<AssignmentChange> changesSince(String tid, long afterSequence, long throughSequence) {
+        // no more than the journal size are retained, so a longer span can't be resumed and isn't looked up
+        if (throughSequence - afterSequence > journalSize) {
+            return null;
+        }
+
+        final Set<AssignmentJournalKey> keys = new HashSet<>();
+        for (long sequence = afterSequence + 1; sequence <= throughSequence; sequence++) {
+            keys.add(new AssignmentJournalKey(tid, sequence));
+        }
+
+        final Map<AssignmentJournalKey, AssignmentChange> found = journalCache.getAll(keys);
+        if (found.size() < keys.size()) {
+            return null;
+        }
+
+        final List<AssignmentChange> changes = new ArrayList<>(found.values());
+        changes.sort((lhs, rhs) -> Long.compare(lhs.getSequence(), rhs.getSequence()));
+        return changes;
+    }
+
+    /**
+     * Folds the given changes, in sequence order, into one net change. For example, an input that was removed
+     * and then added back appears in neither list.
+     */
+    public static AssignmentChange collapse(List<AssignmentChange> changes) {
+        final Set<String> added = new LinkedHashSet<>();
+        final Set<String> removed = new LinkedHashSet<>();
+        long sequence = 0;
+
+        for (AssignmentChange change : changes) {
+            for (String mid : change.getRemoved()) {
+                if (!added.remove(mid)) {
+                    removed.add(mid);
+                }
+            }
+            for (String mid : change.getAdded()) {
+                if (!removed.remove(mid)) {
+                    added.add(mid);
+                }
+            }
+            sequence = Math.max(sequence, change.getSequence());
+        }
+
+        final AssignmentChange collapsed = new AssignmentChange();
+        collapsed.setSequence(sequence);
+        collapsed.getAdded().addAll(added);
+        collapsed.getRemoved().addAll(removed);
+        return collapsed;
+    }
+
+    private int apply(IgniteCache<String, DirectAssignments> cache,
+                      Set<String> tids,
+                      AssignmentUpdater updater,
+                      Collection<String> mids) {
+        // joins the caller's transaction, if any, since only one can be active per thread
+        try (Transaction tx = igniteTransactions.tx() == null ? igniteTransactions.txStart() : null) {
+            final Map<String, EntryProcessorResult<AssignmentChange>> results =
+                    cache.invokeAll(tids, updater, new ArrayList<>(mids));
+
+            final Map<AssignmentJournalKey, AssignmentChange> entries = new HashMap<>();
+            final Set<AssignmentJournalKey> trimmed = new HashSet<>();
+            results.forEach((tid, result) -> {
+                final AssignmentChange change = result.get();
+                if (change != null) {
+                    entries.put(new AssignmentJournalKey(tid, change.getSequence()), change);
+                    if (change.getSequence() > journalSize) {
+                        trimmed.add(new AssignmentJournalKey(tid, change.getSequence() - journalSize));
+                    }
+                }
+            });
+
+            journalCache.putAll(entries);
+            journalCache.removeAll(trimmed);
+
+            if (tx != null) {
+                tx.commit();
+            }
+            return entries.size();
+        }
+    }
+
+    /**
+     * Adds, replaces, or refreshes the managed input IDs given as the only argument and returns the resulting
+     * change, or null if nothing changed.
+     */
+    private static class AssignmentUpdater implements EntryProcessor<String, DirectAssignments, AssignmentChange>,
+            Serializable {
+        private static final long serialVersionUID = 0L;
+
+        enum Mode {
+            ADD, REPLACE, REFRESH
+        }
+
+        private final Mode mode;
+
+        AssignmentUpdater(Mode mode) {
+            this.mode = mode;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public AssignmentChange process(MutableEntry<String, DirectAssignments> entry,
+                                        Object... args) throws EntryProcessorException {
+
+            Assert.notEmpty(args, "Requires managed input IDs arg");
+            final Collection<String> mids = (Collection<String>) args[0];
+
+            final DirectAssignments prev = entry.exists() ? entry.getValue() : new DirectAssignments();
+            if (mode == Mode.REFRESH) {
+                return refresh(entry, prev, mids);
+            }
+
+            final DirectAssignments updated = mode == Mode.REPLACE ? prev.replaceWith(mids) : prev.addAll(mids);
+            if (updated == prev) {
+                return null;
+            }
+            entry.setValue(updated);
+
+            final AssignmentChange change = new AssignmentChange();
+            change.setSequence(updated.getSequence());
+            final Set<String> additions = prev.additionsIn(updated);
+            if (additions != null) {
+                change.getAdded().addAll(additions);
+            }
+            final Set<String> removals = prev.removalsIn(updated);
+            if (removals != null) {
+                change.getRemoved().addAll(removals);
+            }
+            return change;
+        }
+
+        private static AssignmentChange refresh(MutableEntry<String, DirectAssignments> entry,
+                                                DirectAssignments prev,
+                                                Collection<String> mids) {
+            final Set<String> assigned = prev.get();
+            final AssignmentChange change = new AssignmentChange();
+            for (String mid : mids) {
+                if (assigned.contains(mid)) {
+                    change.getAdded().add(mid);
+                }
+            }
+            if (change.getAdded().isEmpty()) {
+                return null;
+            }
+
+            final DirectAssignments updated = prev.nextSequence();
+            entry.setValue(updated);
+            change.setSequence(updated.getSequence());
+            return change;
+        }
+    }
+}
@@ -15,4 +15,10 @@ public interface ConfigPackResponder {
     void startConfigStreaming(Telegraf.Identifiers identifiers,
                               Map<String, String> nodeTags,
                               StreamObserver<Telegraf.ConfigPack> responseObserver);
+
+    /**
+     * Declared here, rather than only on the implementation, so that scheduling can invoke it via the
+     * interface-based proxy.
+     */
+    void retireIdleRegions();
 }
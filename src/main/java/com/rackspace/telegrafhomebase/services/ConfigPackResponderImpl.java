@@ -1,17 +1,20 @@
 package com.rackspace.telegrafhomebase.services;
 
 import com.google.common.base.Strings;
+import com.rackspace.telegrafhomebase.CacheNames;
 import com.rackspace.telegrafhomebase.StandardTags;
 import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
 import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import com.rackspace.telegrafhomebase.model.AssignmentChange;
+import com.rackspace.telegrafhomebase.model.AssignmentJournalKey;
+import com.rackspace.telegrafhomebase.model.ConfigRemoval;
 import com.rackspace.telegrafhomebase.model.ConnectedNode;
 import com.rackspace.telegrafhomebase.model.DirectAssignments;
 import com.rackspace.telegrafhomebase.model.ManagedInput;
 import com.rackspace.telegrafhomebase.model.RunningAssignedInputKey;
 import com.rackspace.telegrafhomebase.model.RunningRegionalInputKey;
+import com.rackspace.telegrafhomebase.shared.ConfigPackStream;
 import com.rackspace.telegrafhomebase.shared.ConfigResponseStreamBundle;
-import io.grpc.Status;
-import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.ignite.Ignite;
@@ -19,9 +22,14 @@ import org.apache.ignite.IgniteCache;
 import org.apache.ignite.IgniteTransactions;
 import org.apache.ignite.cache.query.ContinuousQuery;
 import org.apache.ignite.cache.query.QueryCursor;
+import org.apache.ignite.cache.query.SqlFieldsQuery;
+import org.apache.ignite.lang.IgniteBiPredicate;
 import org.apache.ignite.transactions.Transaction;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
 import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import remote.Telegraf;
 
@@ -31,11 +39,21 @@ import javax.cache.event.CacheEntryEvent;
 import javax.cache.event.EventType;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Queue;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author Geoff Bourne
@@ -53,17 +71,35 @@ public class ConfigPackResponderImpl implements Closeable, ConfigPackResponder {
     private final PendingConfigQueuer pendingConfigQueuer;
     private final TelegrafProperties telegrafProperties;
     private final TaskExecutor taskExecutor;
-    private final Random rand;
-    private final IgniteCache<String, DirectAssignments> directAssignmentsCache;
+    private final RegionalLoadTracker regionalLoadTracker;
+    private final IgniteCache<AssignmentJournalKey, AssignmentChange> assignmentJournalCache;
+    private final IgniteCache<String, ManagedInput> managedInputsCache;
+    private final AssignmentJournal assignmentJournal;
     private final String ourId;
     private final IgniteCache<RunningAssignedInputKey, String> runningAssignedInputsCache;
     private final IgniteCache<String, ConnectedNode> connectedNodesCache;
+    private final ConfigPackStreams configPackStreams;
+    private final CounterService counterService;
+    private final GaugeService gaugeService;
+    private final RegionRegistry regionRegistry;
+    private final TelegrafLeases telegrafLeases;
     private boolean closed;
     private ThreadGroup threadGroup;
-    private Map<String/*region*/, ConfigResponseStreamBundle> bundles = new HashMap<>();
-    private Map<String/*tid*/, StreamObserver<Telegraf.ConfigPack>> perTelegrafResponseStreams
+    private EventLoopDispatcher eventLoopDispatcher;
+    /**
+     * The regions with dispatching on this node, which are created when a telegraf of the region first connects.
+     */
+    private final ConcurrentMap<String/*region*/, RegionalDispatch> regionalDispatches = new ConcurrentHashMap<>();
+    private QueryCursor<Cache.Entry<AssignmentJournalKey, AssignmentChange>> assignmentJournalQueryCursor;
+    private QueryCursor<Cache.Entry<String, ManagedInput>> modifiedInputsQueryCursor;
+    private final Queue<ConfigRemoval> pendingRemovals = new ConcurrentLinkedQueue<>();
+    /**
+     * The modified inputs abandoned by the outbound queue of a still open stream, which are re-sent by its resync.
+     */
+    private final ConcurrentMap<ConfigPackStream, Set<String/*mid*/>> undeliveredModifications
             = new ConcurrentHashMap<>();
-    private QueryCursor<Cache.Entry<String, DirectAssignments>> directAssignmentsQueryCursor;
+    private final AtomicBoolean removalsScheduled = new AtomicBoolean();
+    private IgniteBiPredicate<UUID, Object> removalListener;
 
     @Autowired
     public ConfigPackResponderImpl(Ignite ignite,
@@ -74,145 +110,436 @@ public class ConfigPackResponderImpl implements Closeable, ConfigPackResponder {
                                    PendingConfigQueuer pendingConfigQueuer,
                                    TelegrafProperties telegrafProperties,
                                    TaskExecutor taskExecutor,
-                                   Random rand) {
+                                   RegionalLoadTracker regionalLoadTracker,
+                                   ConfigPackStreams configPackStreams,
+                                   CounterService counterService,
+                                   GaugeService gaugeService,
+                                   RegionRegistry regionRegistry,
+                                   TelegrafLeases telegrafLeases,
+                                   AssignmentJournal assignmentJournal) {
         this.ignite = ignite;
         ourId = ignite.cluster().localNode().id().toString();
         this.igniteTransactions = igniteTransactions;
         this.taggingRepository = taggingRepository;
         runningRegionalCache = cacheProvider.runningRegionalInputsCache();
         runningAssignedInputsCache = cacheProvider.runningAssignedInputsCache();
-        directAssignmentsCache = cacheProvider.directAssignmentsCache();
+        assignmentJournalCache = cacheProvider.assignmentJournalCache();
+        managedInputsCache = cacheProvider.managedInputsCache();
+        this.assignmentJournal = assignmentJournal;
         connectedNodesCache = cacheProvider.connectedNodesCache();
         this.configRepository = configRepository;
         this.pendingConfigQueuer = pendingConfigQueuer;
         this.telegrafProperties = telegrafProperties;
         this.taskExecutor = taskExecutor;
-        this.rand = rand;
+        this.regionalLoadTracker = regionalLoadTracker;
+        this.configPackStreams = configPackStreams;
+        this.counterService = counterService;
+        this.gaugeService = gaugeService;
+        this.regionRegistry = regionRegistry;
+        this.telegrafLeases = telegrafLeases;
     }
 
     @PostConstruct
     public void startRegionalResponders() {
 
-        threadGroup = new ThreadGroup("responders");
+        configPackStreams.addListener(new ConfigPackStream.Listener() {
+            @Override
+            public void handleStreamClosed(ConfigPackStream stream) {
+                handleClosedStream(stream);
+            }
 
-        for (String region : telegrafProperties.getRegions()) {
-            final ConfigResponseStreamBundle observerBundle
-                    = new ConfigResponseStreamBundle(rand, this::handleTelegrafRemoval);
-            bundles.put(region, observerBundle);
+            @Override
+            public void handleResyncNeeded(ConfigPackStream stream) {
+                resyncAssignments(stream);
+            }
+        });
 
-            final Thread thread = new Thread(threadGroup, String.format("responder-%s", region)) {
-                @Override
-                public void run() {
-                    log.debug("Starting {} region responder", region);
-                    try {
-                        regionalResponder(region, observerBundle);
-                    } catch (Exception e) {
-                        log.warn("Unexpected exception", e);
-                    }
-                    log.debug("Stopping {} region responder", region);
+        if (telegrafProperties.getDispatcherMode() == TelegrafProperties.DispatcherMode.EVENT_LOOP) {
+            log.info("Dispatching all regions using {} event loop threads", telegrafProperties.getDispatcherThreads());
+            eventLoopDispatcher = new EventLoopDispatcher(telegrafProperties.getDispatcherThreads(),
+                                                          telegrafProperties.getDispatcherWorkerThreads(),
+                                                          telegrafProperties.getDispatcherPollInterval(),
+                                                          telegrafProperties.getDispatcherMaxPollInterval());
+        } else {
+            threadGroup = new ThreadGroup("responders");
+        }
+
+        setupAssignmentJournalQuery();
+        setupModifiedInputQuery();
+        setupRemovalListener();
+    }
+
+    /**
+     * Creates the bundle of the given region and starts consuming each of its pending config queue shards.
+     */
+    private RegionalDispatch startRegionalDispatch(String region) {
+        log.info("Starting dispatch of region={}", region);
+        final ConfigResponseStreamBundle observerBundle
+                = new ConfigResponseStreamBundle(regionalLoadTracker.createPlacementStrategy(region),
+                                                 this::handleTelegrafRemoval);
+        final RegionalDispatch dispatch = new RegionalDispatch(observerBundle);
+
+        final int shards = pendingConfigQueuer.getShards(region);
+        gaugeService.submit(String.format("telegraf.dispatch.%s.shards", region), shards);
+
+        for (int shard = 0; shard < shards; shard++) {
+            if (eventLoopDispatcher != null) {
+                eventLoopDispatcher.register(region, shard, observerBundle,
+                                             pendingConfigQueuer.poller(region, shard),
+                                             createRegionalHandler(region, observerBundle));
+            } else {
+                dispatch.threads.add(startRegionalResponder(region, shard, observerBundle));
+            }
+        }
+
+        return dispatch;
+    }
+
+    /**
+     * Retires the dispatching of regions that have had no connected telegrafs on this node for longer than
+     * {@link TelegrafProperties#getRegionIdleTimeout()}.
+     */
+    @Override
+    @Scheduled(fixedDelayString = "${telegraf.region-retirement-interval:60000}")
+    public void retireIdleRegions() {
+        final long now = System.currentTimeMillis();
+        final long idleTimeout = TimeUnit.SECONDS.toMillis(telegrafProperties.getRegionIdleTimeout());
+
+        for (String region : regionalDispatches.keySet()) {
+            // computed atomically against connecting telegrafs, which add to the bundle within compute
+            regionalDispatches.computeIfPresent(region, (r, dispatch) -> {
+                if (!dispatch.bundle.isEmpty()) {
+                    dispatch.idleSince = 0;
+                    return dispatch;
+                } else if (dispatch.idleSince == 0) {
+                    dispatch.idleSince = now;
+                    return dispatch;
+                } else if (now - dispatch.idleSince < idleTimeout) {
+                    return dispatch;
                 }
-            };
 
-            thread.start();
+                log.info("Retiring dispatch of idle region={}", region);
+                dispatch.retire();
+                return null;
+            });
         }
+    }
 
-        setupDirectAssignmentQuery();
+    private Thread startRegionalResponder(String region, int shard, ConfigResponseStreamBundle observerBundle) {
+        final Thread thread = new Thread(threadGroup, String.format("responder-%s-%d", region, shard)) {
+            @Override
+            public void run() {
+                log.debug("Starting {} region responder for shard {}", region, shard);
+                try {
+                    regionalResponder(region, shard, observerBundle);
+                } catch (Exception e) {
+                    log.warn("Unexpected exception", e);
+                }
+                log.debug("Stopping {} region responder for shard {}", region, shard);
+            }
+        };
+
+        thread.start();
+        return thread;
     }
 
-    private void setupDirectAssignmentQuery() {
-        final ContinuousQuery<String, DirectAssignments> query = new ContinuousQuery<>();
+    private void setupAssignmentJournalQuery() {
+        final ContinuousQuery<AssignmentJournalKey, AssignmentChange> query = new ContinuousQuery<>();
 
+        query.setRemoteFilterFactory(() -> {
+            // trimmed and expired entries are of no interest
+            return cacheEntryEvent -> cacheEntryEvent.getEventType().equals(EventType.CREATED);
+        });
         query.setLocalListener(events -> {
-            log.debug("Executing batch of assigned input events={}", events);
+            log.debug("Executing batch of assignment journal events={}", events);
 
             taskExecutor.execute(() -> {
-                for (CacheEntryEvent<? extends String, ? extends DirectAssignments> event : events) {
-                    final String tid = event.getKey();
-                    final StreamObserver<Telegraf.ConfigPack> stream = perTelegrafResponseStreams.get(tid);
+                for (CacheEntryEvent<? extends AssignmentJournalKey, ? extends AssignmentChange> event : events) {
+                    final String tid = event.getKey().getTid();
+                    final ConfigPackStream stream = configPackStreams.get(tid);
 
                     if (stream != null) {
-                        handleUpdatedAssignment(event, tid, stream);
+                        catchUpAssignments(stream, event.getValue());
                     }
                 }
             });
         });
 
-        directAssignmentsQueryCursor = directAssignmentsCache.query(query);
+        assignmentJournalQueryCursor = assignmentJournalCache.query(query);
     }
 
-    private void handleUpdatedAssignment(CacheEntryEvent<? extends String, ? extends DirectAssignments> event,
-                                         String tid, StreamObserver<Telegraf.ConfigPack> stream) {
-        final DirectAssignments prev = event.getOldValue();
-        final Set<String> additions;
-        final Set<String> removals;
-        final DirectAssignments updatedAssignment = event.getValue();
-        log.debug("Handling updated assignment={} via event={}", updatedAssignment, event);
+    private void setupModifiedInputQuery() {
+        final ContinuousQuery<String, ManagedInput> query = new ContinuousQuery<>();
 
-        if (event.getEventType().equals(EventType.REMOVED)) {
-            log.debug("Full removal via event={} is already handled elsewhere", event);
-            return;
+        query.setRemoteFilterFactory(() -> {
+            return cacheEntryEvent -> cacheEntryEvent.getEventType().equals(EventType.UPDATED);
+        });
+        query.setLocalListener(events -> {
+            log.debug("Executing batch of modified managed input events={}", events);
+
+            final List<ManagedInput> modified = new ArrayList<>();
+            events.forEach(event -> modified.add(event.getValue()));
+            taskExecutor.execute(() -> sendModified(modified));
+        });
+
+        modifiedInputsQueryCursor = managedInputsCache.query(query);
+    }
+
+    /**
+     * Sends the modified definitions to the telegrafs of this node that are running them, with one config pack
+     * per telegraf.
+     */
+    private void sendModified(List<ManagedInput> modified) {
+        final Map<String/*tid*/, Telegraf.ConfigPack.Builder> packs = new HashMap<>();
+
+        for (ManagedInput managedInput : modified) {
+            final Telegraf.Config config = toConfig(managedInput);
+            localTelegrafsRunning(managedInput.getId(), managedInput.getRegion())
+                    .forEach(tid -> packs.computeIfAbsent(tid, t -> Telegraf.ConfigPack.newBuilder())
+                            .addModified(config));
         }
 
-        if (prev == null) {
-            additions = updatedAssignment.get();
-            removals = null;
+        packs.forEach((tid, configPackBuilder) -> {
+            final ConfigPackStream stream = configPackStreams.get(tid);
+            if (stream != null) {
+                log.debug("Sending modified configs to telegraf={}", tid);
+                stream.offer(configPackBuilder.build(), new ModifiedDelivery(stream, configPackBuilder));
+            }
+        });
+    }
+
+    private void setupRemovalListener() {
+        removalListener = (nodeId, message) -> {
+            pendingRemovals.add((ConfigRemoval) message);
+            if (removalsScheduled.compareAndSet(false, true)) {
+                taskExecutor.execute(this::sendRemovals);
+            }
+            return true;
+        };
+        ignite.message().localListen(ConfigRemoval.TOPIC, removalListener);
+    }
+
+    /**
+     * Tells the telegrafs of this node that are running the deleted inputs to stop them. Removals announced
+     * while a previous send was underway are sent together, with one config pack per telegraf.
+     */
+    private void sendRemovals() {
+        // cleared first so that a removal announced during this run is never left behind
+        removalsScheduled.set(false);
+
+        final Map<String/*tid*/, List<ConfigRemoval>> byTelegraf = new HashMap<>();
+        ConfigRemoval removal;
+        while ((removal = pendingRemovals.poll()) != null) {
+            final ConfigRemoval removed = removal;
+            localTelegrafsRunning(removed.getId(), removed.getRegion())
+                    .forEach(tid -> byTelegraf.computeIfAbsent(tid, t -> new ArrayList<>()).add(removed));
         }
-        else {
-            additions = prev.additionsIn(updatedAssignment);
-            removals = prev.removalsIn(updatedAssignment);
+
+        byTelegraf.forEach((tid, removals) -> {
+            final ConfigPackStream stream = configPackStreams.get(tid);
+            if (stream != null) {
+                final Telegraf.ConfigPack.Builder configPackBuilder = Telegraf.ConfigPack.newBuilder();
+                removals.forEach(r -> configPackBuilder.addRemovedIds(r.getId()));
+
+                log.debug("Sending removals={} to telegraf={}", removals, tid);
+                stream.offer(configPackBuilder.build(), new RemovalDelivery(tid, removals));
+            }
+        });
+    }
+
+    /**
+     * @return the telegrafs with a stream on this node that are running the given managed input
+     */
+    private List<String> localTelegrafsRunning(String mid, String region) {
+        final List<String> tids = new ArrayList<>();
+        if (region != null) {
+            final String tid = runningRegionalCache.get(new RunningRegionalInputKey(mid, region));
+            if (tid != null) {
+                tids.add(tid);
+            }
+        } else {
+            // the running entries record the node that delivered them, so only ours are of interest
+            final SqlFieldsQuery query
+                    = new SqlFieldsQuery("select telegrafId" +
+                                                 " from \"" + CacheNames.RUNNING_ASSIGNED_INPUTS + "\".String" +
+                                                 " where managedInputId = ? and _val = ?");
+            for (List<?> row : runningAssignedInputsCache.query(query.setArgs(mid, ourId))) {
+                tids.add((String) row.get(0));
+            }
         }
 
-        final Telegraf.ConfigPack.Builder configPackBuilder = Telegraf.ConfigPack.newBuilder();
+        tids.removeIf(tid -> configPackStreams.get(tid) == null);
+        return tids;
+    }
 
-        if (additions != null) {
-            try (Transaction tx = igniteTransactions.txStart()) {
-                for (String additionalMid : additions) {
-                    final ManagedInput managedInput = configRepository.get(additionalMid);
-                    if (managedInput != null) {
-                        addToConfigPack(managedInput, configPackBuilder);
+    /**
+     * Brings the stream's telegraf up to date with its direct assignments by sending only the journal entries
+     * after the sequence it was last brought up to. If those are no longer retained, all of its assignments
+     * are sent instead.
+     *
+     * @param latest the newly journaled change or null to catch up to the current assignments
+     */
+    private void catchUpAssignments(ConfigPackStream stream, AssignmentChange latest) {
+        final String tid = stream.getTid();
+
+        // journal events of one telegraf can be handled by concurrent tasks
+        synchronized (stream) {
+            final long last = stream.getAssignmentSequence();
+            final long through;
+            DirectAssignments current = null;
+            if (latest != null) {
+                through = latest.getSequence();
+            } else {
+                current = assignmentJournal.get(tid);
+                through = current != null ? current.getSequence() : 0;
+            }
+            if (through <= last && (latest != null || through == last)) {
+                if (latest == null) {
+                    resumeRunningAssignments(tid, current, Collections.emptySet());
+                }
+                return;
+            }
 
-                        runningAssignedInputsCache.put(new RunningAssignedInputKey(additionalMid, tid), ourId);
-                    }
-                    else {
-                        log.warn("Assignment update indicated managedInput={} was new, but no config available", additionalMid);
-                    }
+            final AssignmentChange delta;
+            if (latest != null && through == last + 1) {
+                delta = latest;
+            } else if (through > last) {
+                final List<AssignmentChange> changes = assignmentJournal.changesSince(tid, last, through);
+                delta = changes != null ? AssignmentJournal.collapse(changes) : null;
+            } else {
+                // the telegraf is ahead of its retained assignments, which must have expired while it was away
+                delta = null;
+            }
+
+            if (delta == null) {
+                log.debug("Unable to resume telegraf={} from assignment sequence={}, so sending all", tid, last);
+                sendAllAssignments(stream);
+                return;
+            }
+            if (latest == null) {
+                resumeRunningAssignments(tid, current, new HashSet<>(delta.getAdded()));
+            }
+
+            final Telegraf.ConfigPack.Builder configPackBuilder = Telegraf.ConfigPack.newBuilder();
+            final List<String> addedMids = new ArrayList<>();
+
+            final Map<String, ManagedInput> added = configRepository.getAll(delta.getAdded());
+            for (String additionalMid : delta.getAdded()) {
+                final ManagedInput managedInput = added.get(additionalMid);
+                if (managedInput != null) {
+                    addToConfigPack(managedInput, configPackBuilder);
+                    addedMids.add(additionalMid);
+                } else {
+                    log.warn("Assignment journal indicated managedInput={} was new, but no config available",
+                             additionalMid);
                 }
+            }
+            configPackBuilder.addAllRemovedIds(delta.getRemoved());
+            configPackBuilder.setAssignmentSequence(delta.getSequence());
+
+            final Telegraf.ConfigPack configPack = configPackBuilder.build();
+            log.debug("Queueing config pack={} for assignment changes through sequence={}",
+                      configPack, delta.getSequence());
+            stream.offer(configPack, new AssignedDelivery(tid, addedMids));
+            stream.setAssignmentSequence(delta.getSequence());
+        }
+    }
 
-                tx.commit();
+    /**
+     * Records the retained assignments of a resuming telegraf as running again, since their running entries were
+     * removed when it was released and it won't be sent them again. The ones about to be sent are recorded once
+     * delivered instead.
+     */
+    private void resumeRunningAssignments(String tid, DirectAssignments assignments, Collection<String> sending) {
+        if (assignments == null || assignments.get() == null) {
+            return;
+        }
+
+        final Map<RunningAssignedInputKey, String> running = new HashMap<>();
+        for (String mid : assignments.get()) {
+            if (!sending.contains(mid)) {
+                running.put(telegrafLeases.assignedInputKey(mid, tid), ourId);
             }
         }
+        if (!running.isEmpty()) {
+            log.debug("Resuming running assigned inputs={} of telegraf={}", running.keySet(), tid);
+            runningAssignedInputsCache.putAll(running);
+        }
+    }
 
-        if (removals != null) {
-            configPackBuilder.addAllRemovedIds(removals);
+    private void sendAllAssignments(ConfigPackStream stream) {
+        final String tid = stream.getTid();
+        final DirectAssignments assignments = assignmentJournal.get(tid);
+
+        final Telegraf.ConfigPack.Builder configPackBuilder = Telegraf.ConfigPack.newBuilder();
+        final List<String> sentMids = new ArrayList<>();
+        if (assignments != null) {
+            final Map<String, ManagedInput> configs = configRepository.getAll(assignments.get());
+            configs.forEach((mid, managedInput) -> {
+                addToConfigPack(managedInput, configPackBuilder);
+                sentMids.add(mid);
+            });
         }
+        final long sequence = assignments != null ? assignments.getSequence() : 0;
+        configPackBuilder.setAssignmentSequence(sequence);
 
-        final Telegraf.ConfigPack configPack = configPackBuilder.build();
+        stream.offer(configPackBuilder.build(), new AssignedDelivery(tid, sentMids));
+        stream.setAssignmentSequence(sequence);
+    }
 
-        try {
+    /**
+     * Re-sends the direct assignments and modified inputs of the given stream's telegraf that were abandoned due
+     * to an overflow of its outbound queue. Abandoned regional inputs don't need this since they get re-queued for
+     * any telegraf.
+     */
+    private void resyncAssignments(ConfigPackStream stream) {
+        final String tid = stream.getTid();
+
+        final Set<String> modifiedMids = undeliveredModifications.remove(stream);
+        if (modifiedMids != null) {
+            final Telegraf.ConfigPack.Builder configPackBuilder = Telegraf.ConfigPack.newBuilder();
+            configRepository.getAll(modifiedMids).values()
+                    .forEach(managedInput -> configPackBuilder.addModified(toConfig(managedInput)));
+            if (configPackBuilder.getModifiedCount() > 0) {
+                log.debug("Resyncing modified inputs={} to telegraf={}", modifiedMids, tid);
+                stream.offer(configPackBuilder.build(), new ModifiedDelivery(stream, configPackBuilder));
+            }
+        }
 
-            log.debug("Sending config pack={} due to assignment update", configPack);
-            stream.onNext(configPack);
+        final DirectAssignments assignments = assignmentJournal.get(tid);
+        if (assignments == null || assignments.get() == null) {
+            return;
+        }
 
-        } catch (StatusRuntimeException e) {
-            if (e.getStatus().equals(Status.CANCELLED)) {
-                log.debug("Farend telegraf={} cancelled", tid);
-            } else {
-                log.warn("Observed exception providing config pack to telegraf={}", tid, e);
+        final Telegraf.ConfigPack.Builder configPackBuilder = Telegraf.ConfigPack.newBuilder()
+                .setAssignmentSequence(stream.getAssignmentSequence());
+        final List<String> resentMids = new ArrayList<>();
+        for (String mid : assignments.get()) {
+            if (!runningAssignedInputsCache.containsKey(telegrafLeases.assignedInputKey(mid, tid))) {
+                final ManagedInput managedInput = configRepository.get(mid);
+                if (managedInput != null) {
+                    addToConfigPack(managedInput, configPackBuilder);
+                    resentMids.add(mid);
+                }
             }
+        }
 
-            bundles.forEach((region, bundle) -> {
-                bundle.handleDisconnect(tid);
-            });
-            handleTelegrafRemoval(tid);
+        if (!resentMids.isEmpty()) {
+            log.debug("Resyncing assigned inputs={} to telegraf={}", resentMids, tid);
+            stream.offer(configPackBuilder.build(), new AssignedDelivery(tid, resentMids));
         }
+    }
 
+    private void regionalResponder(String region, int shard, ConfigResponseStreamBundle observerBundle) {
+        pendingConfigQueuer.observe(region, shard, createRegionalHandler(region, observerBundle));
     }
 
-    private void regionalResponder(String region, ConfigResponseStreamBundle observerBundle) {
-        pendingConfigQueuer.observe(region, new PendingConfigQueuer.Handler() {
+    private PendingConfigQueuer.Handler createRegionalHandler(String region,
+                                                              ConfigResponseStreamBundle observerBundle) {
+        return new PendingConfigQueuer.Handler() {
             @Override
-            public boolean handle(String configId) {
-                return handleAcquiredRegionalConfig(configId, observerBundle, region);
+            public boolean handle(List<String> configIds) {
+                return handleAcquiredRegionalConfigs(configIds, observerBundle, region);
             }
 
             @Override
@@ -232,54 +559,64 @@ public class ConfigPackResponderImpl implements Closeable, ConfigPackResponder {
             public boolean waitForReady() throws InterruptedException {
                 return observerBundle.waitForReady();
             }
-        });
+        };
     }
 
-    private boolean handleAcquiredRegionalConfig(String configId,
-                                                 ConfigResponseStreamBundle observerBundle,
-                                                 String region) {
-        final ManagedInput config = configRepository.get(configId);
+    /**
+     * Places each of the acquired regional configs onto a telegraf of the bundle and sends one config pack
+     * per selected telegraf.
+     */
+    private boolean handleAcquiredRegionalConfigs(List<String> configIds,
+                                                  ConfigResponseStreamBundle observerBundle,
+                                                  String region) {
+        final Map<String, ManagedInput> configs = configRepository.getAll(configIds);
+
+        final Map<ConfigResponseStreamBundle.Entry, Telegraf.ConfigPack.Builder> packs = new HashMap<>();
+        final Map<ConfigResponseStreamBundle.Entry, List<String>> placedIds = new HashMap<>();
+        final List<String> unplaced = new ArrayList<>();
+
+        for (String configId : configIds) {
+            final ManagedInput config = configs.get(configId);
+            if (config == null) {
+                log.warn("Saw configId={} in pending queue, but no corresponding config object", configId);
+                continue;
+            }
 
-        if (config != null) {
-            observerBundle.respondToOne(entry -> {
-                final Telegraf.ConfigPack configPack = ConfigPackResponderImpl.this.addToConfigPack(config,
-                                                                                                    Telegraf.ConfigPack.newBuilder()).build();
-                String tid = entry.getTid();
+            final ConfigResponseStreamBundle.Entry entry = observerBundle.select();
+            if (entry == null) {
+                unplaced.add(configId);
+                continue;
+            }
 
-                try {
-                    log.debug("Responding to {} with configPack={}", tid, configPack);
-                    entry.getStream().onNext(configPack);
+            regionalLoadTracker.recordPlacement(region, entry.getTid());
+            addToConfigPack(config, packs.computeIfAbsent(entry, e -> Telegraf.ConfigPack.newBuilder()));
+            placedIds.computeIfAbsent(entry, e -> new ArrayList<>()).add(configId);
+        }
 
+        packs.forEach((entry, configPackBuilder) -> {
+            final String tid = entry.getTid();
+            final ConfigPackStream stream = entry.getStream();
+            final List<String> ids = placedIds.get(entry);
 
-                    try (Transaction tx = ignite.transactions().txStart()) {
-                        runningRegionalCache.put(new RunningRegionalInputKey(configId, region), tid);
-                        tx.commit();
-                    }
-                    // keep this telegraf in rotation
-                    return true;
-                } catch (StatusRuntimeException e) {
-                    if (e.getStatus().equals(Status.CANCELLED)) {
-                        log.debug("Farend telegraf={} cancelled", tid);
-                    } else {
-                        log.warn("Observed exception providing config pack to telegraf={}", tid, e);
-                    }
+            final Telegraf.ConfigPack configPack = configPackBuilder.build();
+            log.debug("Responding to {} with configPack={}", tid, configPack);
+            stream.offer(configPack, new RegionalDelivery(ids, region, tid));
 
-                    if (region != null) {
-                        log.debug("Re-queueing due to exception: {}", configId);
-                        pendingConfigQueuer.offer(region, configId, true);
-                    }
-                    // and take this telegraf out of rotation
-                    return false;
-                } catch (Exception e) {
-                    log.warn("Unexpected exception while responding", e);
-                    return false;
-                }
-            });
-        } else {
-            log.warn("Saw configId={} in pending queue, but no corresponding config object", configId);
+            // take this telegraf out of rotation if its stream turned out to be closed
+            if (stream.isClosed()) {
+                observerBundle.discard(entry);
+            }
+
+            ids.forEach(id -> counterService.increment(String.format("telegraf.dispatch.%s.dispatched", region)));
+        });
+
+        if (!unplaced.isEmpty()) {
+            log.debug("All telegrafs in region={} went away, so re-queueing configIds={}", region, unplaced);
+            pendingConfigQueuer.offerAll(region, unplaced);
         }
 
-        return !closed;
+        // a retired bundle has no telegrafs left to place onto
+        return !closed && !observerBundle.isClosed();
     }
 
     @Override
@@ -298,7 +635,30 @@ public class ConfigPackResponderImpl implements Closeable, ConfigPackResponder {
 
         log.debug("Setting up config pack provider for telegraf={}", identifiers);
 
-        perTelegrafResponseStreams.put(tid, responseStream);
+        final ConfigPackStream stream = configPackStreams.open(tid, responseStream);
+
+        // rejected before anything is tracked for the telegraf, since a rejected one would otherwise hold on to
+        // its lease, connected node and tags until the lease expired
+        final boolean hasTenant = !Strings.isNullOrEmpty(tenant);
+        final boolean hasRegion = !Strings.isNullOrEmpty(region);
+        if (hasTenant && hasRegion) {
+            stream.onError(new IllegalArgumentException("Tenant specific regions not yet supported"));
+            return;
+        } else if (!hasTenant && !hasRegion) {
+            stream.onError(new IllegalArgumentException("Missing region and tenant designation."));
+            return;
+        } else if (hasRegion && !regionRegistry.isRegistered(region)) {
+            log.warn("telegraf={} reported a region={} that is not configured",
+                     tid,
+                     region);
+            stream.onError(new IllegalArgumentException("Unknown region"));
+            return;
+        }
+
+        configPackStreams.register(stream);
+        // granted first, since that waits for any release of an earlier connection, which would otherwise
+        // remove what's written for this one
+        telegrafLeases.grant(tid, region, stream.getConnectionId());
 
         ConnectedNode connectedNodeValue = new ConnectedNode();
         connectedNodeValue.setClusterNodeId(ourId);
@@ -307,49 +667,52 @@ public class ConfigPackResponderImpl implements Closeable, ConfigPackResponder {
         connectedNodeValue.setTags(nodeTags);
         connectedNodesCache.put(tid, connectedNodeValue);
 
-        final boolean hasTenant = !Strings.isNullOrEmpty(tenant);
-        final boolean hasRegion = !Strings.isNullOrEmpty(region);
-
-        if (hasRegion && !hasTenant) {
-            final ConfigResponseStreamBundle bundle = bundles.get(region);
-            if (bundle != null) {
-                bundle.add(new ConfigResponseStreamBundle.Entry(tid, responseStream));
-            } else {
-                log.warn("telegraf={} reported a region={} that is not configured",
-                         tid,
-                         region);
-                responseStream.onError(new IllegalArgumentException("Unknown region"));
-                return;
-            }
-        } else if (hasTenant && !hasRegion) {
+        if (hasRegion) {
+            regionalDispatches.compute(region, (r, dispatch) -> {
+                if (dispatch == null) {
+                    dispatch = startRegionalDispatch(region);
+                }
+                dispatch.bundle.add(new ConfigResponseStreamBundle.Entry(tid, stream));
+                return dispatch;
+            });
+        } else {
             log.debug("Tracking telegraf={} for tenant={} with node tags={}", tid, tenant, nodeTags);
             taggingRepository.storeNodeTags(tenant, tid, nodeTags);
-        } else //noinspection ConstantConditions
-            if (hasTenant && hasRegion) {
-            responseStream.onError(new IllegalArgumentException("Tenant specific regions not yet supported"));
-            return;
-        } else {
-            responseStream.onError(new IllegalArgumentException("Missing region and tenant designation."));
-            return;
+            // resumes from the assignment sequence the telegraf reported, or sends everything already assigned
+            catchUpAssignments(stream, null);
         }
     }
 
-    private void handleTelegrafRemoval(String tid) {
-        perTelegrafResponseStreams.remove(tid);
+    private void handleClosedStream(ConfigPackStream stream) {
+        undeliveredModifications.remove(stream);
+        regionalDispatches.values().forEach(dispatch -> {
+            dispatch.bundle.handleDisconnect(stream);
+        });
+        handleTelegrafRemoval(stream);
+    }
 
-        try (Transaction tx = igniteTransactions.txStart()) {
-            directAssignmentsCache.remove(tid);
-            final ConnectedNode oldInfo = connectedNodesCache.getAndRemove(tid);
-            if (oldInfo != null) {
-                taggingRepository.removeNodeTags(oldInfo.getTenantId(), tid, oldInfo.getTags());
-            }
-            tx.commit();
-        } catch (Exception e) {
-            log.error("Unexpected exception while handling telegraf={} removal", tid, e);
+    /**
+     * Cleans up after the given stream, which may be a late close of a telegraf that already reconnected with
+     * a newer stream.
+     */
+    private void handleTelegrafRemoval(ConfigPackStream stream) {
+        final String tid = stream.getTid();
+        configPackStreams.remove(stream);
+        if (configPackStreams.get(tid) != null) {
+            log.debug("Not releasing telegraf={} since it reconnected to this node", tid);
+            return;
         }
+        // releases right away rather than waiting for the lease to expire
+        telegrafLeases.releaseConnection(tid, stream.getConnectionId());
     }
 
     private Telegraf.ConfigPack.Builder addToConfigPack(ManagedInput config, Telegraf.ConfigPack.Builder configPackBuilder) {
+        configPackBuilder.addNew(toConfig(config));
+
+        return configPackBuilder;
+    }
+
+    private static Telegraf.Config toConfig(ManagedInput config) {
         final Telegraf.Config.Builder builder = Telegraf.Config.newBuilder()
                 .setId(config.getId())
                 .setTenantId(config.getTenantId())
@@ -359,15 +722,221 @@ public class ConfigPackResponderImpl implements Closeable, ConfigPackResponder {
             builder.setTitle(config.getTitle());
         }
 
-        configPackBuilder.addNew(builder.build());
+        return builder.build();
+    }
 
-        return configPackBuilder;
+    /**
+     * The node-local dispatching state of a region.
+     */
+    private static class RegionalDispatch {
+        final ConfigResponseStreamBundle bundle;
+        /**
+         * The blocking responder threads, which is empty when using the event loop dispatcher.
+         */
+        final List<Thread> threads = new ArrayList<>();
+        /**
+         * When the bundle was first seen empty or zero if it is in use.
+         */
+        long idleSince;
+
+        RegionalDispatch(ConfigResponseStreamBundle bundle) {
+            this.bundle = bundle;
+        }
+
+        void retire() {
+            try {
+                bundle.close();
+            } catch (IOException e) {
+                log.warn("Unexpected exception while closing bundle", e);
+            }
+            // a responder may be blocked taking from its queue rather than waiting for the bundle to be ready
+            threads.forEach(Thread::interrupt);
+        }
+    }
+
+    /**
+     * Records the regional inputs as running, in one transaction, once delivered or re-queues them for
+     * another telegraf otherwise.
+     */
+    private class RegionalDelivery implements ConfigPackStream.DeliveryCallback {
+        final Collection<String> configIds;
+        final String region;
+        final String tid;
+
+        RegionalDelivery(Collection<String> configIds, String region, String tid) {
+            this.configIds = configIds;
+            this.region = region;
+            this.tid = tid;
+        }
+
+        @Override
+        public void delivered() {
+            final Map<RunningRegionalInputKey, String> running = new HashMap<>();
+            configIds.forEach(configId -> running.put(new RunningRegionalInputKey(configId, region), tid));
+
+            try (Transaction tx = igniteTransactions.txStart()) {
+                runningRegionalCache.putAll(running);
+                telegrafLeases.indexRegionalInputs(tid, running.keySet());
+                tx.commit();
+            }
+        }
+
+        @Override
+        public void failed() {
+            configIds.forEach(configId -> regionalLoadTracker.recordAbandoned(region, tid));
+            log.debug("Re-queueing undelivered configIds={}", configIds);
+            pendingConfigQueuer.offerAll(region, configIds);
+        }
+    }
+
+    /**
+     * Records the assigned inputs as running once delivered. Undelivered ones are left for a resync or for the
+     * removal of the telegraf.
+     */
+    private class AssignedDelivery implements ConfigPackStream.DeliveryCallback {
+        final String tid;
+        final Collection<String> mids;
+
+        AssignedDelivery(String tid, Collection<String> mids) {
+            this.tid = tid;
+            this.mids = mids;
+        }
+
+        @Override
+        public void delivered() {
+            if (mids.isEmpty()) {
+                return;
+            }
+
+            try (Transaction tx = igniteTransactions.txStart()) {
+                for (String mid : mids) {
+                    runningAssignedInputsCache.put(telegrafLeases.assignedInputKey(mid, tid), ourId);
+                }
+                tx.commit();
+            }
+        }
+
+        @Override
+        public void failed() {
+            log.debug("Assigned inputs={} were not delivered to telegraf={}", mids, tid);
+        }
+    }
+
+    /**
+     * Makes sure the telegraf ends up with the modified definitions, even if this config pack was abandoned.
+     * An open stream re-sends them when it resyncs. Otherwise the telegraf has to reconnect, so each input is
+     * handed out again in full: regional ones are re-placed and assigned ones are re-journaled, which sends them
+     * when the telegraf resumes.
+     */
+    private class ModifiedDelivery implements ConfigPackStream.DeliveryCallback {
+        final ConfigPackStream stream;
+        final List<Telegraf.Config> configs;
+
+        ModifiedDelivery(ConfigPackStream stream, Telegraf.ConfigPack.Builder configPackBuilder) {
+            this.stream = stream;
+            this.configs = configPackBuilder.getModifiedList();
+        }
+
+        @Override
+        public void delivered() {
+            configs.forEach(config -> counterService.increment("telegraf.config.modified.pushed"));
+        }
+
+        @Override
+        public void failed() {
+            final String tid = stream.getTid();
+            final List<String> mids = new ArrayList<>(configs.size());
+            configs.forEach(config -> mids.add(config.getId()));
+
+            if (!stream.isClosed()) {
+                log.debug("Modified inputs={} were dropped for telegraf={}, leaving for its resync", mids, tid);
+                undeliveredModifications.computeIfAbsent(stream, s -> ConcurrentHashMap.newKeySet()).addAll(mids);
+                return;
+            }
+
+            log.debug("Modified inputs={} were not delivered to closed stream of telegraf={}, so handing out again",
+                      mids, tid);
+            final Map<String, ManagedInput> managedInputs = configRepository.getAll(mids);
+            final List<String> assignedMids = new ArrayList<>();
+            final List<RunningRegionalInputKey> released = new ArrayList<>();
+            try (Transaction tx = igniteTransactions.txStart()) {
+                managedInputs.forEach((mid, managedInput) -> {
+                    if (managedInput.getRegion() != null) {
+                        final RunningRegionalInputKey key = new RunningRegionalInputKey(mid, managedInput.getRegion());
+                        if (runningRegionalCache.remove(key, tid)) {
+                            released.add(key);
+                        }
+                    } else {
+                        assignedMids.add(mid);
+                    }
+                });
+                telegrafLeases.unindexRegionalInputs(tid, released);
+                tx.commit();
+            }
+            released.forEach(key -> pendingConfigQueuer.offer(key.getRegion(), key.getMid(), true));
+            if (!assignedMids.isEmpty()) {
+                assignmentJournal.refresh(tid, assignedMids);
+            }
+        }
+    }
+
+    /**
+     * Clears the running entries of the removed inputs once the telegraf has been told to stop them, since it
+     * won't report them again. It also records the delete-to-push latency, which is from the deletion until
+     * the removal was written to the telegraf's stream; it does not include the telegraf receiving or applying it.
+     */
+    private class RemovalDelivery implements ConfigPackStream.DeliveryCallback {
+        final String tid;
+        final List<ConfigRemoval> removals;
+
+        RemovalDelivery(String tid, List<ConfigRemoval> removals) {
+            this.tid = tid;
+            this.removals = removals;
+        }
+
+        @Override
+        public void delivered() {
+            final long now = System.currentTimeMillis();
+            try (Transaction tx = igniteTransactions.txStart()) {
+                final List<RunningRegionalInputKey> regionalKeys = new ArrayList<>();
+                for (ConfigRemoval removal : removals) {
+                    if (removal.getRegion() != null) {
+                        final RunningRegionalInputKey key = new RunningRegionalInputKey(removal.getId(),
+                                                                                        removal.getRegion());
+                        runningRegionalCache.remove(key, tid);
+                        regionalKeys.add(key);
+                    } else {
+                        runningAssignedInputsCache.remove(telegrafLeases.assignedInputKey(removal.getId(), tid));
+                    }
+                }
+                telegrafLeases.unindexRegionalInputs(tid, regionalKeys);
+                tx.commit();
+            }
+
+            for (ConfigRemoval removal : removals) {
+                // the deletion time comes from the node that handled the deletion, so this includes any clock skew
+                gaugeService.submit("telegraf.config.removal.push.latency", now - removal.getDeletedAt());
+                counterService.increment("telegraf.config.removal.pushed");
+            }
+        }
+
+        @Override
+        public void failed() {
+            log.debug("Removals={} were not delivered to telegraf={}, leaving for its next state report",
+                      removals, tid);
+        }
     }
 
     @Override
     public void close() throws IOException {
         closed = true;
-        directAssignmentsQueryCursor.close();
+        assignmentJournalQueryCursor.close();
+        modifiedInputsQueryCursor.close();
+        ignite.message().stopLocalListen(ConfigRemoval.TOPIC, removalListener);
+        regionalDispatches.values().forEach(RegionalDispatch::retire);
+        if (eventLoopDispatcher != null) {
+            eventLoopDispatcher.close();
+        }
     }
 
 }
@@ -0,0 +1,99 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import com.rackspace.telegrafhomebase.shared.ConfigPackStream;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import remote.Telegraf;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tracks the {@link ConfigPackStream}s of the remote telegrafs connected to this homebase node and
+ * exposes their outbound queue metrics.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Component
+@Slf4j
+public class ConfigPackStreams implements PublicMetrics, ConfigPackStream.Listener {
+
+    private final TelegrafProperties telegrafProperties;
+    private final Map<String/*tid*/, ConfigPackStream> streams = new ConcurrentHashMap<>();
+    private final List<ConfigPackStream.Listener> listeners = new CopyOnWriteArrayList<>();
+
+    @Autowired
+    public ConfigPackStreams(TelegrafProperties telegrafProperties) {
+        this.telegrafProperties = telegrafProperties;
+    }
+
+    /**
+     * Wraps the given grpc response stream with a flow-controlled outbound queue. If the given stream is already
+     * wrapped, then it is returned as is.
+     */
+    public ConfigPackStream open(String tid, StreamObserver<Telegraf.ConfigPack> responseStream) {
+        if (responseStream instanceof ConfigPackStream) {
+            return (ConfigPackStream) responseStream;
+        }
+
+        return new ConfigPackStream(tid, responseStream,
+                                    telegrafProperties.getOutboundQueueCapacity(),
+                                    telegrafProperties.getOutboundOverflowPolicy(),
+                                    this);
+    }
+
+    public void register(ConfigPackStream stream) {
+        streams.put(stream.getTid(), stream);
+    }
+
+    public ConfigPackStream get(String tid) {
+        return streams.get(tid);
+    }
+
+    /**
+     * Removes the given stream, if it is still the one registered for its telegraf.
+     */
+    public void remove(ConfigPackStream stream) {
+        streams.remove(stream.getTid(), stream);
+    }
+
+    public void addListener(ConfigPackStream.Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void handleStreamClosed(ConfigPackStream stream) {
+        streams.remove(stream.getTid(), stream);
+        listeners.forEach(l -> l.handleStreamClosed(stream));
+    }
+
+    @Override
+    public void handleResyncNeeded(ConfigPackStream stream) {
+        listeners.forEach(l -> l.handleResyncNeeded(stream));
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("telegraf.outbound.streams", streams.size()));
+
+        streams.forEach((tid, stream) -> {
+            final String prefix = "telegraf.outbound." + tid;
+            metrics.add(new Metric<>(prefix + ".depth", stream.getDepth()));
+            metrics.add(new Metric<>(prefix + ".coalesced", stream.getCoalescedCount()));
+            metrics.add(new Metric<>(prefix + ".dropped", stream.getDroppedCount()));
+        });
+
+        return metrics;
+    }
+}
@@ -3,13 +3,20 @@ package com.rackspace.telegrafhomebase.services;
 import com.google.common.base.Strings;
 import com.rackspace.telegrafhomebase.CacheNames;
 import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
 import com.rackspace.telegrafhomebase.model.AssignedInputDefinition;
+import com.rackspace.telegrafhomebase.model.BulkCreateResponse;
+import com.rackspace.telegrafhomebase.model.BulkInputDefinition;
+import com.rackspace.telegrafhomebase.model.ConfigRemoval;
 import com.rackspace.telegrafhomebase.model.ManagedInput;
 import com.rackspace.telegrafhomebase.model.ManagedInputExt;
+import com.rackspace.telegrafhomebase.model.ManagedInputPage;
+import com.rackspace.telegrafhomebase.model.ManagedInputUpdate;
 import com.rackspace.telegrafhomebase.model.RegionalInputDefinition;
 import com.rackspace.telegrafhomebase.model.RunningAssignedInputKey;
 import com.rackspace.telegrafhomebase.model.RunningRegionalInputKey;
 import com.rackspace.telegrafhomebase.model.StructuredInputConfig;
+import com.rackspace.telegrafhomebase.shared.InvalidCursorException;
 import com.rackspace.telegrafhomebase.shared.NotFoundException;
 import com.rackspace.telegrafhomebase.shared.NotOwnedException;
 import com.rackspace.telegrafhomebase.shared.StructuredInputFormatter;
@@ -27,11 +34,18 @@ import org.springframework.stereotype.Repository;
 
 import javax.annotation.PostConstruct;
 import javax.cache.Cache;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -41,6 +55,9 @@ import java.util.stream.Collectors;
 @Repository
 @Slf4j
 public class ConfigRepository {
+    private static final int STREAM_CHUNK_SIZE = 500;
+
+    private final Ignite ignite;
     private final IgniteCache<String, ManagedInput> managedInputsCache;
     private final IgniteCache<RunningRegionalInputKey, String> runningRegionalCache;
     private final IdCreator idCreator;
@@ -49,12 +66,19 @@ public class ConfigRepository {
     private final StructuredInputFormatter structuredInputFormatter
             = new StructuredInputFormatter();
     private final IgniteCache<RunningAssignedInputKey, String> runningAssignedInputsCache;
+    private final AssignmentGeneration assignmentGeneration;
+    private final TelegrafProperties telegrafProperties;
 
     @Autowired
     public ConfigRepository(Ignite ignite,
                             IdCreator idCreator,
                             IgniteCacheProvider cacheProvider,
-                            TaggingRepository taggingRepository) {
+                            TaggingRepository taggingRepository,
+                            AssignmentGeneration assignmentGeneration,
+                            TelegrafProperties telegrafProperties) {
+        this.assignmentGeneration = assignmentGeneration;
+        this.telegrafProperties = telegrafProperties;
+        this.ignite = ignite;
         managedInputsCache = cacheProvider.managedInputsCache();
         runningRegionalCache = cacheProvider.runningRegionalInputsCache();
         runningAssignedInputsCache = cacheProvider.runningAssignedInputsCache();
@@ -123,6 +147,7 @@ public class ConfigRepository {
             log.debug("Creating assigned configuration: {}", config);
 
             managedInputsCache.putAsync(config.getId(), config);
+            taggingRepository.indexAssignedInput(tenantId, id, definition.getAssignmentTags());
 
             tx.commit();
 
@@ -130,6 +155,137 @@ public class ConfigRepository {
         }
     }
 
+    /**
+     * Creates any number of regional and assigned inputs, committing them in transactions of up to
+     * {@link TelegrafProperties#getBulkCreateBatchSize()} inputs. A definition that is invalid, or whose
+     * transaction fails, is reported in its own item of the response without preventing the others.
+     */
+    public BulkCreateResponse createBulk(String tenantId, Iterable<BulkInputDefinition> definitions) {
+        final BulkCreateResponse response = new BulkCreateResponse();
+        final int batchSize = Math.max(1, telegrafProperties.getBulkCreateBatchSize());
+        // many definitions usually share the same assignment tags
+        final Map<Map<String, String>, Boolean> matchable = new HashMap<>();
+
+        // the items are kept alongside, rather than as keys, since they are only equal by content
+        final List<BulkCreateResponse.Item> batchItems = new ArrayList<>();
+        final List<List<ManagedInput>> batchInputs = new ArrayList<>();
+        int batchCount = 0;
+        for (BulkInputDefinition definition : definitions) {
+            final BulkCreateResponse.Item item = new BulkCreateResponse.Item();
+            response.getResults().add(item);
+
+            final List<ManagedInput> managedInputs;
+            try {
+                managedInputs = buildBulkInputs(tenantId, definition, matchable);
+            } catch (IllegalArgumentException e) {
+                item.setError(e.getMessage());
+                continue;
+            }
+
+            batchItems.add(item);
+            batchInputs.add(managedInputs);
+            batchCount += managedInputs.size();
+            if (batchCount >= batchSize) {
+                commitBulk(tenantId, batchItems, batchInputs);
+                batchItems.clear();
+                batchInputs.clear();
+                batchCount = 0;
+            }
+        }
+        if (!batchItems.isEmpty()) {
+            commitBulk(tenantId, batchItems, batchInputs);
+        }
+
+        return response;
+    }
+
+    private List<ManagedInput> buildBulkInputs(String tenantId, BulkInputDefinition definition,
+                                               Map<Map<String, String>, Boolean> matchable) {
+        final RegionalInputDefinition regional = definition.getRegional();
+        final AssignedInputDefinition assigned = definition.getAssigned();
+        if ((regional == null) == (assigned == null)) {
+            throw new IllegalArgumentException("exactly one of regional or assigned needs to be specified");
+        }
+
+        final List<ManagedInput> managedInputs = new ArrayList<>();
+        if (regional != null) {
+            if (regional.getRegions() == null || regional.getRegions().isEmpty()) {
+                throw new IllegalArgumentException("at least one region needs to be specified");
+            }
+            final String definitionText = resolveDefinitionText(regional.getStructured(), regional.getText());
+            if (Strings.isNullOrEmpty(definitionText)) {
+                throw new IllegalArgumentException("text or structured needs to be specified");
+            }
+
+            for (String region : regional.getRegions()) {
+                final ManagedInput config = new ManagedInput();
+                config.setId(idCreator.create());
+                config.setText(definitionText);
+                config.setStructured(regional.getStructured());
+                config.setTitle(regional.getTitle());
+                config.setTenantId(tenantId);
+                config.setRegion(region);
+                managedInputs.add(config);
+            }
+        } else {
+            final Map<String, String> assignmentTags = assigned.getAssignmentTags();
+            if (assignmentTags == null || assignmentTags.isEmpty()) {
+                throw new IllegalArgumentException("at least one assignment tag needs to be specified");
+            }
+            final boolean matches = matchable.computeIfAbsent(assignmentTags, tags -> {
+                final Collection<String> matchingTelegrafs = taggingRepository.findMatches(tenantId, tags);
+                return matchingTelegrafs != null && !matchingTelegrafs.isEmpty();
+            });
+            if (!matches) {
+                throw new IllegalArgumentException(
+                        "Unable to find any running telegrafs that satisfy the assignment tags");
+            }
+            final String definitionText = resolveDefinitionText(assigned.getStructured(), assigned.getText());
+            if (Strings.isNullOrEmpty(definitionText)) {
+                throw new IllegalArgumentException("text or structured needs to be specified");
+            }
+
+            final ManagedInput config = new ManagedInput();
+            config.setId(idCreator.create());
+            config.setText(definitionText);
+            config.setStructured(assigned.getStructured());
+            config.setTitle(assigned.getTitle());
+            config.setTenantId(tenantId);
+            config.setAssignmentTags(assignmentTags);
+            managedInputs.add(config);
+        }
+        return managedInputs;
+    }
+
+    private void commitBulk(String tenantId,
+                            List<BulkCreateResponse.Item> items,
+                            List<List<ManagedInput>> itemInputs) {
+        final Map<String, ManagedInput> managedInputs = new HashMap<>();
+        itemInputs.forEach(configs -> configs.forEach(config -> managedInputs.put(config.getId(), config)));
+
+        log.debug("Creating batch of {} configurations for tenant={}", managedInputs.size(), tenantId);
+        try (Transaction tx = transactions.txStart()) {
+            managedInputsCache.putAll(managedInputs);
+            for (ManagedInput config : managedInputs.values()) {
+                if (config.getAssignmentTags() != null) {
+                    taggingRepository.indexAssignedInput(tenantId, config.getId(), config.getAssignmentTags());
+                }
+            }
+
+            tx.commit();
+        } catch (Exception e) {
+            log.warn("Failed to create batch of configurations for tenant={}", tenantId, e);
+            items.forEach(item -> item.setError("Failed to store: " + e.getMessage()));
+            return;
+        }
+
+        for (int i = 0; i < items.size(); i++) {
+            items.get(i).setCreated(
+                    itemInputs.get(i).stream().map(ManagedInput::getId).collect(Collectors.toList())
+            );
+        }
+    }
+
     private String resolveDefinitionText(StructuredInputConfig structured, String text) {
         final String definitionText;
         if (structured != null) {
@@ -140,11 +296,53 @@ public class ConfigRepository {
         return definitionText;
     }
 
+    /**
+     * Changes the definition of an existing managed input in place. The telegrafs already running it are sent
+     * the modified definition, rather than it being removed and placed again.
+     */
+    public ManagedInputExt update(String tenantId, String id, ManagedInputUpdate update)
+            throws NotFoundException, NotOwnedException {
+        final String definitionText = resolveDefinitionText(update.getStructured(), update.getText());
+        if (Strings.isNullOrEmpty(definitionText)) {
+            throw new IllegalArgumentException("text or structured needs to be specified");
+        }
+
+        final ManagedInput managedInput;
+        try (Transaction tx = transactions.txStart()) {
+            managedInput = managedInputsCache.get(id);
+            if (managedInput == null) {
+                throw new NotFoundException("Managed input with given id doesn't exist", id);
+            }
+            if (!managedInput.getTenantId().equals(tenantId)) {
+                log.debug("Attempted to update managed input={} for wrong tenant={}", id, tenantId);
+                throw new NotOwnedException("Not owned by tenant");
+            }
+
+            final boolean changed = !Objects.equals(managedInput.getText(), definitionText) ||
+                    !Objects.equals(managedInput.getTitle(), update.getTitle()) ||
+                    !Objects.equals(managedInput.getStructured(), update.getStructured());
+            if (changed) {
+                managedInput.setText(definitionText);
+                managedInput.setStructured(update.getStructured());
+                managedInput.setTitle(update.getTitle());
+
+                log.debug("Updating configuration: {}", managedInput);
+                managedInputsCache.put(id, managedInput);
+            }
+
+            tx.commit();
+        }
+
+        return fillManagedInputExtensions(Collections.singletonList(managedInput)).get(0);
+    }
+
     public void delete(String tenantId, String id) throws NotOwnedException {
         log.info("Deleting {}", id);
 
         final boolean valid;
+        final ManagedInput existing;
         try (Transaction tx = transactions.txStart()) {
+            existing = managedInputsCache.get(id);
             valid = managedInputsCache.invoke(id, (mutableEntry, args) -> {
                 if (mutableEntry.getValue() != null) {
                     if (args.length >= 1 && args[0] instanceof String) {
@@ -163,18 +361,35 @@ public class ConfigRepository {
                 return true;
             }, tenantId);
 
+            // within the removal, so an observer re-indexing the input either sees it gone or goes first
+            if (valid && existing != null && existing.getAssignmentTags() != null) {
+                taggingRepository.unindexAssignedInput(tenantId, id, existing.getAssignmentTags());
+            }
+
             tx.commit();
         }
 
         if (!valid) {
             throw new NotOwnedException("Not owned by tenant");
         }
+        if (existing != null) {
+            // only the telegrafs that could be running it need to validate their reports again
+            assignmentGeneration.advance(AssignmentGeneration.scopeOf(existing.getRegion(), existing.getTenantId()));
+
+            // the telegrafs running it are told right away rather than on their next state report
+            ignite.message().send(ConfigRemoval.TOPIC,
+                                  new ConfigRemoval(id, existing.getRegion(), System.currentTimeMillis()));
+        }
     }
 
     ManagedInput get(String id) {
         return managedInputsCache.get(id);
     }
 
+    Map<String, ManagedInput> getAll(Collection<String> ids) {
+        return managedInputsCache.getAll(new HashSet<>(ids));
+    }
+
     public ManagedInputExt getWithDetails(String tenantId, String id) throws NotFoundException, NotOwnedException {
         final ManagedInput managedInput = managedInputsCache.get(id);
         if (managedInput == null) {
@@ -185,7 +400,7 @@ public class ConfigRepository {
             throw new NotOwnedException("Not owned by tenant");
         }
 
-        return fillManagedInputExtensions(id, managedInput);
+        return fillManagedInputExtensions(Collections.singletonList(managedInput)).get(0);
     }
 
     public List<ManagedInputExt> getAllForTenant(String tenantId) {
@@ -197,35 +412,126 @@ public class ConfigRepository {
         try (Transaction tx = transactions.txStart()) {
             final QueryCursor<Cache.Entry<String, ManagedInput>> queryCursor =
                     managedInputsCache.query(query.setArgs(tenantId));
-            return queryCursor.getAll().stream()
-                    .map(entry -> {
-                        final String id = entry.getKey();
-                        final ManagedInput managedInput = entry.getValue();
-
-                        return fillManagedInputExtensions(id, managedInput);
-                    })
+            final List<ManagedInput> managedInputs = queryCursor.getAll().stream()
+                    .map(Cache.Entry::getValue)
                     .collect(Collectors.toList());
+
+            return fillManagedInputExtensions(managedInputs);
         }
     }
 
-    @NotNull
-    private ManagedInputExt fillManagedInputExtensions(String id, ManagedInput managedInput) {
-        final ManagedInputExt ext = new ManagedInputExt(managedInput);
-        if (managedInput.getRegion() != null) {
-            final String tid = runningRegionalCache.get(new RunningRegionalInputKey(id, managedInput.getRegion()));
-            ext.setRunningOn(Collections.singletonList(tid));
+    /**
+     * Gets one page of the tenant's managed inputs, ordered by ID, by seeking into the (tenantId, id) index.
+     *
+     * @param cursor the next cursor of the previous page or null to get the first page
+     * @param limit the maximum number of inputs in the page
+     */
+    public ManagedInputPage getPageForTenant(String tenantId, String cursor, int limit)
+            throws InvalidCursorException {
+        final SqlQuery<String, ManagedInput> query;
+        if (cursor == null) {
+            query = new SqlQuery<String, ManagedInput>(ManagedInput.class, "tenantId = ? order by id limit ?")
+                    .setArgs(tenantId, limit);
         } else {
+            query = new SqlQuery<String, ManagedInput>(ManagedInput.class,
+                                                       "tenantId = ? and id > ? order by id limit ?")
+                    .setArgs(tenantId, decodeCursor(cursor), limit);
+        }
+
+        final List<ManagedInput> managedInputs = new ArrayList<>(limit);
+        try (QueryCursor<Cache.Entry<String, ManagedInput>> queryCursor = managedInputsCache.query(query)) {
+            queryCursor.forEach(entry -> managedInputs.add(entry.getValue()));
+        }
+
+        final ManagedInputPage page = new ManagedInputPage();
+        page.setItems(fillManagedInputExtensions(managedInputs));
+        if (managedInputs.size() == limit) {
+            page.setNext(encodeCursor(managedInputs.get(managedInputs.size() - 1).getId()));
+        }
+        return page;
+    }
+
+    /**
+     * Passes each of the tenant's managed inputs, ordered by ID, to the given consumer as the query cursor
+     * yields them. Their running placements are resolved a chunk at a time, so no more than a chunk of inputs
+     * is held no matter how many the tenant has.
+     */
+    public void streamAllForTenant(String tenantId, Consumer<ManagedInputExt> consumer) {
+        final SqlQuery<String, ManagedInput> query = new SqlQuery<>(ManagedInput.class, "tenantId = ? order by id");
+        query.setPageSize(STREAM_CHUNK_SIZE);
+
+        final List<ManagedInput> chunk = new ArrayList<>(STREAM_CHUNK_SIZE);
+        try (QueryCursor<Cache.Entry<String, ManagedInput>> queryCursor =
+                     managedInputsCache.query(query.setArgs(tenantId))) {
+            for (Cache.Entry<String, ManagedInput> entry : queryCursor) {
+                chunk.add(entry.getValue());
+                if (chunk.size() >= STREAM_CHUNK_SIZE) {
+                    fillManagedInputExtensions(chunk).forEach(consumer);
+                    chunk.clear();
+                }
+            }
+        }
+        fillManagedInputExtensions(chunk).forEach(consumer);
+    }
+
+    private static String encodeCursor(String lastId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(lastId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeCursor(String cursor) throws InvalidCursorException {
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidCursorException("Malformed cursor");
+        }
+    }
+
+    /**
+     * Resolves where all of the given managed inputs are running with one bulk get of the regional placements
+     * and one query of the assigned placements, rather than a lookup per input.
+     */
+    @NotNull
+    private List<ManagedInputExt> fillManagedInputExtensions(List<ManagedInput> managedInputs) {
+        final Set<RunningRegionalInputKey> regionalKeys = new HashSet<>();
+        final List<String> assignedIds = new ArrayList<>();
+        for (ManagedInput managedInput : managedInputs) {
+            if (managedInput.getRegion() != null) {
+                regionalKeys.add(new RunningRegionalInputKey(managedInput.getId(), managedInput.getRegion()));
+            } else {
+                assignedIds.add(managedInput.getId());
+            }
+        }
+
+        final Map<RunningRegionalInputKey, String> runningRegional = regionalKeys.isEmpty() ?
+                Collections.emptyMap() : runningRegionalCache.getAll(regionalKeys);
+
+        final Map<String/*mid*/, List<String>> runningAssigned = new HashMap<>();
+        if (!assignedIds.isEmpty()) {
+            // joining against a table of the IDs, rather than an IN list, lets the query use the index
             final SqlFieldsQuery query
-                    = new SqlFieldsQuery("select telegrafId" +
-                                                 " from \"" + CacheNames.RUNNING_ASSIGNED_INPUTS + "\".String" +
-                                         " where managedInputId = ?");
+                    = new SqlFieldsQuery("select r.managedInputId, r.telegrafId" +
+                                                 " from \"" + CacheNames.RUNNING_ASSIGNED_INPUTS + "\".String r" +
+                                                 " join table(mid varchar = ?) i on r.managedInputId = i.mid");
+
+            final Object[] ids = assignedIds.toArray();
+            for (List<?> row : runningAssignedInputsCache.query(query.setArgs((Object) ids))) {
+                runningAssigned.computeIfAbsent((String) row.get(0), mid -> new ArrayList<>())
+                        .add((String) row.get(1));
+            }
+        }
 
-            final List<String> runningOn = new ArrayList<>();
-            for (List<?> row : runningAssignedInputsCache.query(query.setArgs(managedInput.getId()))) {
-                runningOn.add(((String) row.get(0)));
+        final List<ManagedInputExt> results = new ArrayList<>(managedInputs.size());
+        for (ManagedInput managedInput : managedInputs) {
+            final ManagedInputExt ext = new ManagedInputExt(managedInput);
+            if (managedInput.getRegion() != null) {
+                final String tid = runningRegional.get(
+                        new RunningRegionalInputKey(managedInput.getId(), managedInput.getRegion()));
+                ext.setRunningOn(Collections.singletonList(tid));
+            } else {
+                ext.setRunningOn(runningAssigned.getOrDefault(managedInput.getId(), new ArrayList<>()));
             }
-            ext.setRunningOn(runningOn);
+            results.add(ext);
         }
-        return ext;
+        return results;
     }
 }
@@ -0,0 +1,79 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.google.common.collect.Iterables;
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assigns managed inputs directly to many telegrafs. The telegrafs are processed in bounded batches, each of
+ * which is a single bulk update and its journal entries in a transaction of its own, so a popular input doesn't
+ * hold one huge transaction open.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Component
+@Slf4j
+public class DirectAssignmentFanout {
+    private final AssignmentJournal assignmentJournal;
+    private final TelegrafProperties telegrafProperties;
+    private final CounterService counterService;
+    private final GaugeService gaugeService;
+
+    @Autowired
+    public DirectAssignmentFanout(AssignmentJournal assignmentJournal,
+                                  TelegrafProperties telegrafProperties,
+                                  CounterService counterService,
+                                  GaugeService gaugeService) {
+        this.assignmentJournal = assignmentJournal;
+        this.telegrafProperties = telegrafProperties;
+        this.counterService = counterService;
+        this.gaugeService = gaugeService;
+    }
+
+    /**
+     * @return the number of telegrafs that were newly assigned the managed input
+     */
+    public int fanOut(String managedInputId, Collection<String> tids) {
+        return fanOut(Collections.singleton(managedInputId), tids);
+    }
+
+    /**
+     * Assigns all of the given managed inputs, such as ones created together with the same assignment tags,
+     * to each of the telegrafs with one update per telegraf.
+     *
+     * @return the number of telegrafs that were newly assigned any of the managed inputs
+     */
+    public int fanOut(Collection<String> managedInputIds, Collection<String> tids) {
+        final long start = System.nanoTime();
+        final int batchSize = Math.max(1, telegrafProperties.getAssignmentFanoutBatchSize());
+
+        int processed = 0;
+        int assigned = 0;
+        for (List<String> batch : Iterables.partition(tids, batchSize)) {
+            assigned += assignmentJournal.assign(new HashSet<>(batch), managedInputIds);
+
+            processed += batch.size();
+            // only logged, since concurrent fan-outs would overwrite each other's progress in a shared gauge
+            log.debug("Fanned out managedInputs={} to {} of {} telegrafs", managedInputIds, processed, tids.size());
+        }
+
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        gaugeService.submit("telegraf.assignment.fanout.duration", elapsed);
+        counterService.increment("telegraf.assignment.fanout.completed");
+        log.info("Assigned managedInputs={} to {} of {} matching telegrafs in {}ms",
+                 managedInputIds, assigned, tids.size(), elapsed);
+
+        return assigned;
+    }
+}
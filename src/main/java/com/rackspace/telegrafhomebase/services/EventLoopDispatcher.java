@@ -0,0 +1,200 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.shared.ConfigResponseStreamBundle;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multiplexes the pending config queues of any number of regions and shards onto a small, fixed pool of threads.
+ * Each registered queue is a lane that polls its queue without blocking. A lane whose bundle has no telegrafs
+ * is parked until the bundle reports it is ready again, and a lane whose queue is empty polls again after the
+ * configured interval, which doubles with each consecutive empty poll up to the configured maximum.
+ * <p>
+ * The configs of a poll are handed to a separate pool of workers, so a region that is slow to handle its
+ * configs only holds up its own lane while the loop threads keep polling the others.
+ * </p>
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Slf4j
+public class EventLoopDispatcher implements Closeable {
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService workers;
+    private final long pollInterval;
+    private final long maxPollInterval;
+    private volatile boolean closed;
+
+    public EventLoopDispatcher(int threads, int workerThreads, long pollInterval, long maxPollInterval) {
+        final ScheduledThreadPoolExecutor executor =
+                new ScheduledThreadPoolExecutor(threads, new CustomizableThreadFactory("dispatcher-"));
+        executor.setRemoveOnCancelPolicy(true);
+        this.scheduler = executor;
+        this.workers = Executors.newFixedThreadPool(workerThreads,
+                                                    new CustomizableThreadFactory("dispatcher-worker-"));
+        this.pollInterval = pollInterval;
+        this.maxPollInterval = Math.max(pollInterval, maxPollInterval);
+    }
+
+    /**
+     * Starts dispatching the configs polled by the given <code>poller</code> to the given <code>handler</code>.
+     * The handler's {@link PendingConfigQueuer.Handler#waitForReady()} is not used since readiness is
+     * observed from the <code>bundle</code> instead.
+     */
+    public void register(String region, int shard,
+                         ConfigResponseStreamBundle bundle,
+                         PendingConfigQueuer.Poller poller,
+                         PendingConfigQueuer.Handler handler) {
+        final Lane lane = new Lane(region, shard, bundle, poller, handler);
+        bundle.addReadyListener(lane::wake);
+        lane.wake();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private class Lane implements Runnable {
+        final String region;
+        final int shard;
+        final ConfigResponseStreamBundle bundle;
+        final PendingConfigQueuer.Poller poller;
+        final PendingConfigQueuer.Handler handler;
+        /**
+         * Counts the wake ups since the lane was last idle. Only the wake up that raises it from zero schedules
+         * the lane, which ensures a lane never runs concurrently with itself, including while its handler has a
+         * batch, and so keeps the per-shard ordering of the blocking dispatcher.
+         */
+        final AtomicInteger wakeUps = new AtomicInteger();
+        int emptyPolls;
+        boolean stopped;
+
+        Lane(String region, int shard,
+             ConfigResponseStreamBundle bundle,
+             PendingConfigQueuer.Poller poller,
+             PendingConfigQueuer.Handler handler) {
+            this.region = region;
+            this.shard = shard;
+            this.bundle = bundle;
+            this.poller = poller;
+            this.handler = handler;
+        }
+
+        void wake() {
+            if (!closed && wakeUps.getAndIncrement() == 0) {
+                scheduler.execute(this);
+            }
+        }
+
+        void wakeLater(long delay) {
+            if (!closed && wakeUps.getAndIncrement() == 0) {
+                scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Ends a run of the lane. If it was woken during the run, such as by a readiness notification, it runs
+         * again right away; otherwise it is woken after the given delay or, if negative, left parked.
+         * @param seen the wake ups counted when the run started
+         */
+        void finish(int seen, long delay) {
+            if (closed) {
+                return;
+            }
+
+            if (wakeUps.addAndGet(-seen) > 0) {
+                scheduler.execute(this);
+            } else if (delay == 0) {
+                wake();
+            } else if (delay > 0) {
+                wakeLater(delay);
+            }
+        }
+
+        /**
+         * @return the delay before polling again after an empty poll
+         */
+        long nextPollDelay() {
+            final long delay = Math.min(pollInterval << Math.min(emptyPolls, 20), maxPollInterval);
+            emptyPolls++;
+            return delay;
+        }
+
+        @Override
+        public void run() {
+            final int seen = wakeUps.get();
+            if (closed || stopped) {
+                return;
+            }
+
+            if (bundle.isClosed()) {
+                log.debug("Stopping {} region dispatch for shard {} since its bundle was retired", region, shard);
+                stopped = true;
+                return;
+            }
+
+            if (bundle.isEmpty()) {
+                log.debug("Parking {} region dispatch for shard {} until a telegraf is ready", region, shard);
+                emptyPolls = 0;
+                finish(seen, -1);
+                return;
+            }
+
+            final List<String> configIds;
+            try {
+                configIds = poller.poll();
+            } catch (Exception e) {
+                log.warn("Unexpected exception while polling {} region shard {}", region, shard, e);
+                stopped = true;
+                handler.onError(new IllegalStateException(
+                        "Unexpected exception while polling from pending config queue"));
+                return;
+            }
+
+            if (configIds.isEmpty()) {
+                finish(seen, nextPollDelay());
+                return;
+            }
+            emptyPolls = 0;
+
+            log.debug("Acquired next managed inputs={} in {} region shard {}", configIds, region, shard);
+            try {
+                workers.execute(() -> dispatch(configIds, seen));
+            } catch (RejectedExecutionException e) {
+                log.debug("Dropping dispatch of {} region shard {} since the dispatcher is closed", region, shard);
+            }
+        }
+
+        private void dispatch(List<String> configIds, int seen) {
+            final boolean proceed;
+            try {
+                proceed = handler.handle(configIds);
+            } catch (Exception e) {
+                log.warn("Unexpected exception while dispatching {} region shard {}", region, shard, e);
+                finish(seen, pollInterval);
+                return;
+            }
+
+            if (proceed) {
+                finish(seen, 0);
+            } else {
+                stopped = true;
+            }
+        }
+    }
+}
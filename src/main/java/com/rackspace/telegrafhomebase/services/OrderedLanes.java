@@ -0,0 +1,84 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs observed cache events on a fixed number of single-threaded lanes. Every task is given a key, such as
+ * a tenant ID, and the tasks of a key always run on the same lane and in the order they were submitted.
+ * Tasks of different keys usually land on different lanes and run in parallel.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Component
+@Slf4j
+public class OrderedLanes implements PublicMetrics, Closeable {
+
+    private final ThreadPoolExecutor[] lanes;
+
+    @Autowired
+    public OrderedLanes(TelegrafProperties telegrafProperties) {
+        final int count = telegrafProperties.getEventLanes();
+        Assert.isTrue(count > 0, "Event lanes must be positive");
+
+        final CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("event-lane-");
+        lanes = new ThreadPoolExecutor[count];
+        for (int i = 0; i < count; i++) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                              new LinkedBlockingQueue<>(), threadFactory);
+        }
+    }
+
+    /**
+     * Queues the given task onto the lane of the given key.
+     */
+    public void execute(Object key, Runnable task) {
+        lanes[laneOf(key)].execute(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.warn("Unexpected exception while processing events of key={}", key, e);
+            }
+        });
+    }
+
+    int laneOf(Object key) {
+        return key != null ? Math.floorMod(key.hashCode(), lanes.length) : 0;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final List<Metric<?>> metrics = new ArrayList<>();
+        int total = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            final int backlog = lanes[i].getQueue().size();
+            metrics.add(new Metric<>(String.format("telegraf.lanes.%d.backlog", i), backlog));
+            total += backlog;
+        }
+        metrics.add(new Metric<>("telegraf.lanes.backlog", total));
+        return metrics;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdownNow();
+        }
+    }
+}
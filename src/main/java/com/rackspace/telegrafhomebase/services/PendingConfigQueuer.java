@@ -15,7 +15,12 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 
-import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Geoff Bourne
@@ -28,40 +33,52 @@ public class PendingConfigQueuer {
     private final TelegrafProperties telegrafProperties;
     private final IgniteProperties igniteProperties;
     private final IgniteTransactions igniteTransactions;
+    private final RegionRegistry regionRegistry;
 
     @Autowired
     public PendingConfigQueuer(Ignite ignite, IgniteTransactions igniteTransactions,
-                               TelegrafProperties telegrafProperties, IgniteProperties igniteProperties) {
+                               TelegrafProperties telegrafProperties, IgniteProperties igniteProperties,
+                               RegionRegistry regionRegistry) {
         this.ignite = ignite;
         this.igniteTransactions = igniteTransactions;
         this.telegrafProperties = telegrafProperties;
         this.igniteProperties = igniteProperties;
+        this.regionRegistry = regionRegistry;
     }
 
-    @PostConstruct
-    public void setupQueues() {
-        telegrafProperties.getRegions().forEach(region -> {
-            log.info("Registering pending config queue for region={}", region);
+    /**
+     * Locates the given shard's queue, creating it on first use if the region is registered.
+     *
+     * @return the queue or null if the region is not registered
+     */
+    private IgniteQueue<String> queue(String region, int shard) {
+        if (!regionRegistry.isRegistered(region)) {
+            return null;
+        }
 
-            final CollectionConfiguration collectionConfig = new CollectionConfiguration();
-            collectionConfig.setBackups(igniteProperties.getRunningConfigCacheBackups());
+        final CollectionConfiguration collectionConfig = new CollectionConfiguration();
+        collectionConfig.setBackups(igniteProperties.getRunningConfigCacheBackups());
 
-            ignite.queue(DistributedQueueUtils.derivePendingConfigQueueName(region),
-                         0,
-                         collectionConfig);
-        });
+        return ignite.queue(DistributedQueueUtils.derivePendingConfigQueueName(region, shard),
+                            0,
+                            collectionConfig);
     }
 
+    public int getShards(String region) {
+        return telegrafProperties.settingsFor(region).getShards();
+    }
 
+    /**
+     * Queues the given config ID onto the region's shard that owns it. A config ID always maps to the same
+     * shard, so its queue operations stay ordered and it is only ever taken by one consumer.
+     */
     public void offer(String region, String configId, boolean force) {
 
-        final IgniteQueue<String> queue = ignite.queue(
-                DistributedQueueUtils.derivePendingConfigQueueName(region),
-                0, null
-        );
+        final int shard = DistributedQueueUtils.derivePendingConfigShard(configId, getShards(region));
+        final IgniteQueue<String> queue = queue(region, shard);
 
         if (queue != null) {
-            log.debug("Queueing non-running configId={} for region={}", configId, region);
+            log.debug("Queueing non-running configId={} for region={} shard={}", configId, region, shard);
 
             try (Transaction tx = igniteTransactions.txStart()) {
                 queue.offer(configId);
@@ -70,45 +87,86 @@ public class PendingConfigQueuer {
             }
         }
         else {
-            log.warn("Queue is not configured for region={} referenced by configId={}", region, configId);
+            log.warn("Region={} referenced by configId={} is not registered", region, configId);
         }
 
     }
 
     /**
-     * Blocks waiting for another pending configuration ID and notifies the given <code>handler</code>
+     * Queues all of the given config IDs using one transaction per shard of the region.
+     */
+    public void offerAll(String region, Collection<String> configIds) {
+        final int shards = getShards(region);
+        final Map<Integer, List<String>> byShard = new HashMap<>();
+        for (String configId : configIds) {
+            byShard.computeIfAbsent(DistributedQueueUtils.derivePendingConfigShard(configId, shards),
+                                    s -> new ArrayList<>())
+                    .add(configId);
+        }
+
+        byShard.forEach((shard, shardConfigIds) -> {
+            final IgniteQueue<String> queue = queue(region, shard);
+
+            if (queue != null) {
+                log.debug("Queueing non-running configIds={} for region={} shard={}", shardConfigIds, region, shard);
+
+                try (Transaction tx = igniteTransactions.txStart()) {
+                    queue.addAll(shardConfigIds);
+
+                    tx.commit();
+                }
+            } else {
+                log.warn("Region={} referenced by configIds={} is not registered", region, shardConfigIds);
+            }
+        });
+    }
+
+    /**
+     * Blocks waiting for more pending configuration IDs in the given shard and notifies the given
+     * <code>handler</code> with each batch. After the first ID is taken, the batch is filled with up to the
+     * region's configured batch size by draining what's already queued and then waiting up to the region's
+     * batch wait for more.
      * @param region
+     * @param shard
      * @param handler
      */
-    public void observe(String region, Handler handler) {
+    public void observe(String region, int shard, Handler handler) {
         Assert.notNull(handler, "handler is required");
         final IgniteQueue<String> queue;
         try {
-            queue = ignite.queue(DistributedQueueUtils.derivePendingConfigQueueName(region),
-                                 0, null);
-
+            queue = queue(region, shard);
         } catch (Exception e) {
             log.warn("Unexpected exception while locating queue", e);
             handler.onError(new IllegalStateException("Unexpected exception while locating queue"));
             return;
         }
+        if (queue == null) {
+            handler.onError(new IllegalStateException("Region is not registered"));
+            return;
+        }
+
+        final TelegrafProperties.RegionSettings settings = telegrafProperties.settingsFor(region);
+        final int batchSize = Math.max(1, settings.getBatchSize());
 
         boolean proceed = true;
         while (proceed) {
 
             try {
-                proceed = handler.waitForReady();
+                if (!handler.waitForReady()) {
+                    return;
+                }
             } catch (InterruptedException e) {
-                log.debug("Interrupted", e);
-                continue;
+                log.debug("Interrupted while waiting for ready, so stopping");
+                return;
             }
 
             log.debug("Waiting for next pending config");
-            final String configId;
+            final List<String> configIds = new ArrayList<>(batchSize);
             try {
-                configId = queue.take();
+                configIds.add(queue.take());
+                fillBatch(queue, configIds, batchSize, settings.getBatchWait());
             } catch (IgniteInterruptedException e) {
-                log.warn("Interrupted during queue take, should happen only during shutdown");
+                log.debug("Interrupted during queue take, which happens when stopped");
                 return;
             } catch (IgniteException e) {
                 log.warn("Unexpected exception while taking from pending config queue", e);
@@ -116,19 +174,69 @@ public class PendingConfigQueuer {
                         "Unexpected exception while taking from pending config queue"));
                 return;
             }
-            log.debug("Acquired next managed input={} in queue", configId);
+            log.debug("Acquired next managed inputs={} in queue", configIds);
 
-            proceed = handler.handle(configId);
+            proceed = handler.handle(configIds);
         }
     }
 
+    private void fillBatch(IgniteQueue<String> queue, List<String> configIds, int batchSize, long batchWait) {
+        if (configIds.size() >= batchSize) {
+            return;
+        }
+
+        queue.drainTo(configIds, batchSize - configIds.size());
+
+        final long deadline = System.currentTimeMillis() + batchWait;
+        while (configIds.size() < batchSize) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return;
+            }
+
+            final String next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+            if (next == null) {
+                return;
+            }
+            configIds.add(next);
+        }
+    }
+
+    /**
+     * Locates the given shard's queue for consumers that must not block, such as the
+     * {@link EventLoopDispatcher}. Each poll of the returned poller drains up to the region's batch size of
+     * what's already queued; the region's batch wait is not applied since that would block.
+     * @throws IllegalStateException if the region is not registered
+     */
+    public Poller poller(String region, int shard) {
+        final IgniteQueue<String> queue = queue(region, shard);
+        if (queue == null) {
+            throw new IllegalStateException("Region is not registered: " + region);
+        }
+
+        final int batchSize = Math.max(1, telegrafProperties.settingsFor(region).getBatchSize());
+
+        return () -> {
+            final List<String> configIds = new ArrayList<>();
+            queue.drainTo(configIds, batchSize);
+            return configIds;
+        };
+    }
+
+    public interface Poller {
+        /**
+         * @return the next batch of configIds, which is empty if nothing is currently queued
+         */
+        List<String> poll();
+    }
+
     public interface Handler {
         /**
          *
-         * @param configId the next acquired configId
+         * @param configIds the next acquired batch of configIds, never empty
          * @return true to proceed, false to stop
          */
-        boolean handle(String configId);
+        boolean handle(List<String> configIds);
 
         void onError(Throwable throwable);
 
@@ -0,0 +1,87 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import com.rackspace.telegrafhomebase.model.RegisteredRegion;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ignite.IgniteCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.cache.Cache;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maintains the cluster-wide set of regions that remote telegrafs are allowed to report. The registry is seeded
+ * from {@link TelegrafProperties#getRegions()} and can be changed at runtime without restarting any node.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Service
+@Slf4j
+public class RegionRegistry {
+
+    private final TelegrafProperties telegrafProperties;
+    private final IgniteCache<String, RegisteredRegion> regionsCache;
+
+    @Autowired
+    public RegionRegistry(TelegrafProperties telegrafProperties, IgniteCacheProvider cacheProvider) {
+        this.telegrafProperties = telegrafProperties;
+        regionsCache = cacheProvider.regionsCache();
+    }
+
+    @PostConstruct
+    public void seedRegions() {
+        if (telegrafProperties.getRegions() != null) {
+            telegrafProperties.getRegions().forEach(this::register);
+        }
+    }
+
+    /**
+     * @return true if the region was newly registered
+     */
+    public boolean register(String region) {
+        final RegisteredRegion registeredRegion = new RegisteredRegion();
+        registeredRegion.setName(region);
+        registeredRegion.setRegisteredAt(System.currentTimeMillis());
+
+        final boolean added = regionsCache.putIfAbsent(region, registeredRegion);
+        if (added) {
+            log.info("Registered region={}", region);
+        }
+        return added;
+    }
+
+    /**
+     * Removes the region from the registry. Telegrafs already connected from the region are left alone, but new
+     * ones from that region will be rejected.
+     * <p>
+     * The pending config queues of the region are kept, since responders on any node may still be consuming
+     * them and they are picked up again if the region is re-registered.
+     * </p>
+     *
+     * @return true if the region was registered
+     */
+    public boolean unregister(String region) {
+        final boolean removed = regionsCache.remove(region);
+        if (removed) {
+            log.info("Unregistered region={}", region);
+        }
+        return removed;
+    }
+
+    public boolean isRegistered(String region) {
+        return regionsCache.containsKey(region);
+    }
+
+    public List<RegisteredRegion> getAll() {
+        final List<RegisteredRegion> regions = new ArrayList<>();
+        for (Cache.Entry<String, RegisteredRegion> entry : regionsCache) {
+            regions.add(entry.getValue());
+        }
+        return regions;
+    }
+}
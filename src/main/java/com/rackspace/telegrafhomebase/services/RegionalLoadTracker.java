@@ -0,0 +1,188 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import com.rackspace.telegrafhomebase.model.RunningRegionalInputKey;
+import com.rackspace.telegrafhomebase.shared.LeastLoadedPlacementStrategy;
+import com.rackspace.telegrafhomebase.shared.PlacementStrategy;
+import com.rackspace.telegrafhomebase.shared.PowerOfTwoChoicesPlacementStrategy;
+import com.rackspace.telegrafhomebase.shared.RandomPlacementStrategy;
+import com.rackspace.telegrafhomebase.shared.TelegrafLoadIndex;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ignite.IgniteCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.cache.configuration.Factory;
+import javax.cache.configuration.MutableCacheEntryListenerConfiguration;
+import javax.cache.event.CacheEntryEvent;
+import javax.cache.event.CacheEntryExpiredListener;
+import javax.cache.event.CacheEntryListener;
+import javax.cache.event.CacheEntryListenerException;
+import javax.cache.event.CacheEntryRemovedListener;
+import javax.cache.event.CacheEntryUpdatedListener;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the number of regional inputs running on each telegraf connected to this node and creates the
+ * {@link PlacementStrategy} of each region.
+ *
+ * <p>
+ *     A placement is counted as soon as it is chosen, so that a burst of dispatches doesn't pile onto the same
+ *     telegraf before its running entries are written. Removals and expirations of <code>runningRegionalCache</code>
+ *     entries release the count.
+ * </p>
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Component
+@Slf4j
+public class RegionalLoadTracker implements Closeable {
+
+    private final TelegrafProperties telegrafProperties;
+    private final Random rand;
+    private final IgniteCache<RunningRegionalInputKey, String> runningRegionalCache;
+    private final Map<String/*region*/, TelegrafLoadIndex> loadIndexes = new ConcurrentHashMap<>();
+    private MutableCacheEntryListenerConfiguration<RunningRegionalInputKey, String> listenerConfig;
+
+    @Autowired
+    public RegionalLoadTracker(TelegrafProperties telegrafProperties,
+                               IgniteCacheProvider cacheProvider,
+                               Random rand) {
+        this.telegrafProperties = telegrafProperties;
+        this.rand = rand;
+        runningRegionalCache = cacheProvider.runningRegionalInputsCache();
+    }
+
+    @PostConstruct
+    public void registerListener() {
+        listenerConfig = new MutableCacheEntryListenerConfiguration<>(new ListenerFactory(this),
+                                                                      null, true, false);
+        runningRegionalCache.registerCacheEntryListener(listenerConfig);
+    }
+
+    public PlacementStrategy createPlacementStrategy(String region) {
+        final PlacementStrategy.Type type = telegrafProperties.settingsFor(region).getPlacement();
+        log.debug("Using placement={} for region={}", type, region);
+
+        switch (type) {
+            case LEAST_LOADED:
+                return new LeastLoadedPlacementStrategy(loadIndexFor(region));
+            case POWER_OF_TWO_CHOICES:
+                return new PowerOfTwoChoicesPlacementStrategy(rand, loadIndexFor(region));
+            default:
+                return new RandomPlacementStrategy(rand);
+        }
+    }
+
+    public TelegrafLoadIndex loadIndexFor(String region) {
+        return loadIndexes.computeIfAbsent(region, r -> new TelegrafLoadIndex());
+    }
+
+    /**
+     * Counts a regional input that was just given to the telegraf.
+     */
+    public void recordPlacement(String region, String tid) {
+        loadIndexFor(region).adjust(tid, 1);
+    }
+
+    /**
+     * Releases the count of a regional input that was given to the telegraf, but never delivered.
+     */
+    public void recordAbandoned(String region, String tid) {
+        loadIndexFor(region).adjust(tid, -1);
+    }
+
+    private void handleEvents(Iterable<CacheEntryEvent<? extends RunningRegionalInputKey, ? extends String>> events) {
+        for (CacheEntryEvent<? extends RunningRegionalInputKey, ? extends String> event : events) {
+            final TelegrafLoadIndex loadIndex = loadIndexes.get(event.getKey().getRegion());
+            if (loadIndex == null) {
+                continue;
+            }
+
+            final String previousTid = event.isOldValueAvailable() ? event.getOldValue() : null;
+            switch (event.getEventType()) {
+                case UPDATED:
+                    // placement onto the new telegraf was already counted
+                    if (previousTid != null && !previousTid.equals(event.getValue())) {
+                        loadIndex.adjust(previousTid, -1);
+                    }
+                    break;
+
+                case REMOVED:
+                case EXPIRED:
+                    final String tid = previousTid != null ? previousTid : event.getValue();
+                    if (tid != null) {
+                        log.trace("Releasing load of input={} from telegraf={}", event.getKey(), tid);
+                        loadIndex.adjust(tid, -1);
+                    }
+                    break;
+
+                default:
+                    // creations were already counted at placement
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (listenerConfig != null) {
+            runningRegionalCache.deregisterCacheEntryListener(listenerConfig);
+        }
+    }
+
+    private static class Listener implements CacheEntryUpdatedListener<RunningRegionalInputKey, String>,
+            CacheEntryRemovedListener<RunningRegionalInputKey, String>,
+            CacheEntryExpiredListener<RunningRegionalInputKey, String> {
+
+        private final RegionalLoadTracker tracker;
+
+        Listener(RegionalLoadTracker tracker) {
+            this.tracker = tracker;
+        }
+
+        @Override
+        public void onUpdated(Iterable<CacheEntryEvent<? extends RunningRegionalInputKey, ? extends String>> events)
+                throws CacheEntryListenerException {
+            tracker.handleEvents(events);
+        }
+
+        @Override
+        public void onRemoved(Iterable<CacheEntryEvent<? extends RunningRegionalInputKey, ? extends String>> events)
+                throws CacheEntryListenerException {
+            tracker.handleEvents(events);
+        }
+
+        @Override
+        public void onExpired(Iterable<CacheEntryEvent<? extends RunningRegionalInputKey, ? extends String>> events)
+                throws CacheEntryListenerException {
+            tracker.handleEvents(events);
+        }
+    }
+
+    /**
+     * The listener configuration needs to be serializable, but the listener itself is only ever created on
+     * this node, so the tracker reference is transient.
+     */
+    private static class ListenerFactory
+            implements Factory<CacheEntryListener<? super RunningRegionalInputKey, ? super String>> {
+        static final long serialVersionUID = 0L;
+
+        private final transient RegionalLoadTracker tracker;
+
+        ListenerFactory(RegionalLoadTracker tracker) {
+            this.tracker = tracker;
+        }
+
+        @Override
+        public CacheEntryListener<? super RunningRegionalInputKey, ? super String> create() {
+            return new Listener(tracker);
+        }
+    }
+}
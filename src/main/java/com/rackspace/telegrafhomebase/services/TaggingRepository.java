@@ -1,6 +1,9 @@
 package com.rackspace.telegrafhomebase.services;
 
 import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import com.rackspace.telegrafhomebase.model.AssignmentTagKey;
+import com.rackspace.telegrafhomebase.model.TagAssignments;
 import com.rackspace.telegrafhomebase.model.TaggedNodes;
 import com.rackspace.telegrafhomebase.model.TaggedNodesKey;
 import lombok.extern.slf4j.Slf4j;
@@ -8,6 +11,7 @@ import org.apache.ignite.IgniteCache;
 import org.apache.ignite.IgniteTransactions;
 import org.apache.ignite.cache.query.SqlFieldsQuery;
 import org.apache.ignite.transactions.Transaction;
+import org.roaringbitmap.RoaringBitmap;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 import org.springframework.util.Assert;
@@ -17,55 +21,60 @@ import org.springframework.util.MultiValueMap;
 import javax.cache.processor.EntryProcessor;
 import javax.cache.processor.EntryProcessorException;
 import javax.cache.processor.MutableEntry;
+import java.io.Serializable;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
 /**
+ * Maintains an inverted index from each tenant's tags to the telegrafs that reported them. Each posting list is a
+ * compressed bitmap of {@link TelegrafHandles telegraf handles}, so matching several tags is a bitmap AND.
+ * The posting list of a tag is split across {@link TelegrafProperties#getTagBuckets()} entries by handle, so
+ * storing or removing one telegraf's tags only rewrites that telegraf's bucket of each tag.
+ *
+ * <p>
+ *     It also maintains the reverse index from each required tag to the tenant's assigned managed inputs,
+ *     which is used to match a newly connected telegraf.
+ * </p>
+ *
  * @author Geoff Bourne
  * @since Aug 2017
  */
 @Repository
 @Slf4j
 public class TaggingRepository {
+    private static final TaggedNodesAdder TAGGED_NODES_ADDER = new TaggedNodesAdder();
+    private static final TaggedNodesRemover TAGGED_NODES_REMOVER = new TaggedNodesRemover();
+    private static final AssignmentIndexer ASSIGNMENT_INDEXER = new AssignmentIndexer();
+    private static final AssignmentUnindexer ASSIGNMENT_UNINDEXER = new AssignmentUnindexer();
+
     private final IgniteTransactions igniteTransactions;
     private final IgniteCache<TaggedNodesKey, TaggedNodes> taggedNodes;
-    private final TaggedNodesAdder taggedNodesAdder = new TaggedNodesAdder();
+    private final IgniteCache<AssignmentTagKey, TagAssignments> assignmentTagsCache;
+    private final TelegrafHandles telegrafHandles;
+    private final int buckets;
 
     @Autowired
-    public TaggingRepository(IgniteTransactions igniteTransactions, IgniteCacheProvider cacheProvider) {
+    public TaggingRepository(IgniteTransactions igniteTransactions,
+                             IgniteCacheProvider cacheProvider,
+                             TelegrafHandles telegrafHandles,
+                             TelegrafProperties telegrafProperties) {
         this.igniteTransactions = igniteTransactions;
         taggedNodes = cacheProvider.taggedNodesCache();
+        assignmentTagsCache = cacheProvider.assignmentTagsCache();
+        this.telegrafHandles = telegrafHandles;
+        buckets = telegrafProperties.getTagBuckets();
+        Assert.isTrue(buckets > 0, "Tag buckets must be positive");
     }
 
     public void storeNodeTags(String tenantId, String tid, Map<String, String> nodeTags) {
+        final int handle = telegrafHandles.handleOf(tid);
 
         try (Transaction tx = igniteTransactions.txStart()) {
-            nodeTags.entrySet().stream()
-                    .filter(entry -> entry.getValue() != null)
-                    .map(entry -> new TaggedNodesKey(tenantId,
-                                                     entry.getKey(),
-                                                     entry.getValue()))
-                    .forEach(key -> taggedNodes.invoke(key,
-                                                       (entry, args) -> {
-                                                           final TaggedNodes nodes;
-                                                           if (entry.getValue() == null) {
-                                                               nodes = new TaggedNodes();
-                                                           } else {
-                                                               nodes = entry.getValue();
-                                                           }
-
-                                                           final boolean didntContain = nodes.getTids().add(tid);
-                                                           if (didntContain) {
-                                                               entry.setValue(nodes);
-                                                           } else {
-                                                               log.warn("Tagged node={} was already present with tag {}", tid, entry.getKey());
-                                                           }
-
-                                                           return didntContain;
-
-                                                       }));
+            // invokeAll maps the keys to their primary nodes and sends one request per node
+            taggedNodes.invokeAll(keysOf(tenantId, nodeTags, handle), TAGGED_NODES_ADDER, handle);
 
             tx.commit();
         }
@@ -83,32 +92,18 @@ public class TaggingRepository {
             return;
         }
 
+        final Integer handle = telegrafHandles.find(tid);
+        if (handle == null) {
+            log.warn("Trying to remove node tags of telegraf={}, but it was never tagged", tid);
+            return;
+        }
+
         log.debug("Removing use of node tags={} by telegraf={} for tenant={}", tags, tid, tenantId);
-        tags.entrySet().stream()
-                .filter(entry -> entry.getValue() != null)
-                .map(entry -> new TaggedNodesKey(tenantId, entry.getKey(), entry.getValue()))
-                .forEach(key -> {
-                    taggedNodes.invoke(key, (entry, args) -> {
-                        if (entry.getValue() != null) {
-                            if (entry.getValue().getTids().remove(tid)) {
-                                if (entry.getValue().getTids().isEmpty()) {
-                                    // was the last one, so remove the whole entry
-                                    entry.remove();
-                                } else {
-                                    entry.setValue(entry.getValue());
-                                }
-                            }
-                            else {
-                                log.warn("Trying to remove tagged node={}, but not present", key);
-                            }
-                        }
-                        return null;
-                    });
-                });
+        taggedNodes.invokeAll(keysOf(tenantId, tags, handle), TAGGED_NODES_REMOVER, handle);
     }
 
     public MultiValueMap<String, String> getActiveTags(String tenantId) {
-        final SqlFieldsQuery query = new SqlFieldsQuery("select name, value from TaggedNodes as t" +
+        final SqlFieldsQuery query = new SqlFieldsQuery("select distinct name, value from TaggedNodes as t" +
                                                                 " where t.tenantId = ?");
 
         final MultiValueMap<String, String> result = new LinkedMultiValueMap<>();
@@ -120,40 +115,113 @@ public class TaggingRepository {
     }
 
     public Collection<String> findMatches(String tenantId, Map<String, String> requestedTags) {
-        Set<String> intersection = null;
+        final Set<TaggedNodesKey> keys = new HashSet<>();
+        requestedTags.forEach((name, value) -> {
+            for (int bucket = 0; bucket < buckets; bucket++) {
+                keys.add(new TaggedNodesKey(tenantId, name, value, bucket));
+            }
+        });
 
-        for (Map.Entry<String, String> entry : requestedTags.entrySet()) {
-            final TaggedNodes matches = this.taggedNodes.get(new TaggedNodesKey(tenantId,
-                                                                                entry.getKey(),
-                                                                                entry.getValue()));
+        // reassemble each tag's posting list from whichever of its buckets are populated
+        final Map<String/*name*/, RoaringBitmap> postings = new HashMap<>();
+        taggedNodes.getAll(keys).forEach((key, nodes) -> postings.merge(key.getName(), nodes.getHandles(),
+                                                                         (lhs, rhs) -> {
+                                                                             lhs.or(rhs);
+                                                                             return lhs;
+                                                                         }));
+        if (postings.size() < requestedTags.size()) {
+            return null;
+        }
 
-            if (matches == null) {
+        RoaringBitmap intersection = null;
+        for (RoaringBitmap matches : postings.values()) {
+            if (intersection == null) {
+                // already a copy of the cached value, so it is safe to narrow it in place
+                intersection = matches;
+            } else {
+                intersection.and(matches);
+            }
+            if (intersection.isEmpty()) {
                 return null;
             }
+        }
 
-            if (intersection == null) {
-                intersection = new HashSet<>(matches.getTids());
-            } else {
-                intersection.retainAll(matches.getTids());
-                if (intersection.isEmpty()) {
-                    return null;
+        if (intersection == null) {
+            return null;
+        }
+        return telegrafHandles.resolve(intersection);
+    }
+
+    /**
+     * Indexes an assigned managed input under each of its required tags, so that a connecting telegraf can find
+     * the inputs it satisfies by probing only its own tags.
+     */
+    public void indexAssignedInput(String tenantId, String managedInputId, Map<String, String> assignmentTags) {
+        final Set<AssignmentTagKey> keys = assignmentKeysOf(tenantId, assignmentTags);
+        assignmentTagsCache.invokeAll(keys, ASSIGNMENT_INDEXER, managedInputId, keys.size());
+    }
+
+    public void unindexAssignedInput(String tenantId, String managedInputId, Map<String, String> assignmentTags) {
+        assignmentTagsCache.invokeAll(assignmentKeysOf(tenantId, assignmentTags), ASSIGNMENT_UNINDEXER, managedInputId);
+    }
+
+    /**
+     * @return the IDs of the tenant's assigned managed inputs whose required tags are all satisfied by the given
+     * node tags
+     */
+    public Collection<String> findAssignedInputs(String tenantId, Map<String, String> nodeTags) {
+        final Map<String/*managed input id*/, Integer> hits = new HashMap<>();
+        final Set<String> matches = new HashSet<>();
+
+        assignmentTagsCache.getAll(assignmentKeysOf(tenantId, nodeTags)).values().forEach(
+                tagAssignments -> tagAssignments.getInputs().forEach((managedInputId, required) -> {
+                    // each node tag probes a distinct key, so an input is satisfied once every one of its tags hit
+                    if (hits.merge(managedInputId, 1, Integer::sum).equals(required)) {
+                        matches.add(managedInputId);
+                    }
+                }));
+
+        return matches;
+    }
+
+    private Set<AssignmentTagKey> assignmentKeysOf(String tenantId, Map<String, String> tags) {
+        final Set<AssignmentTagKey> keys = new HashSet<>();
+        if (tags != null) {
+            tags.forEach((name, value) -> {
+                if (value != null) {
+                    keys.add(new AssignmentTagKey(tenantId, name, value));
                 }
-            }
+            });
         }
+        return keys;
+    }
 
-        return intersection;
+    private Set<TaggedNodesKey> keysOf(String tenantId, Map<String, String> tags, int handle) {
+        final Set<TaggedNodesKey> keys = new HashSet<>();
+        tags.forEach((name, value) -> {
+            if (value != null) {
+                keys.add(new TaggedNodesKey(tenantId, name, value, handle % buckets));
+            }
+        });
+        return keys;
     }
 
-    private class TaggedNodesAdder implements EntryProcessor<TaggedNodesKey, TaggedNodes, Boolean> {
+    /**
+     * Adds the handle given as the only argument to each tag bucket. It is static so that only the processor
+     * itself, and nothing of this repository, is serialized to the primary nodes.
+     */
+    private static class TaggedNodesAdder implements EntryProcessor<TaggedNodesKey, TaggedNodes, Boolean>,
+            Serializable {
+        private static final long serialVersionUID = 0L;
 
         @Override
         public Boolean process(MutableEntry<TaggedNodesKey, TaggedNodes> entry,
                                Object... args) throws EntryProcessorException {
 
-            Assert.notEmpty(args, "Requires tid arg");
-            Assert.isInstanceOf(String.class, args[0]);
+            Assert.notEmpty(args, "Requires handle arg");
+            Assert.isInstanceOf(Integer.class, args[0]);
 
-            final String tid = (String) args[0];
+            final int handle = (Integer) args[0];
 
             final TaggedNodes nodes;
             if (entry.getValue() == null) {
@@ -162,14 +230,94 @@ public class TaggingRepository {
                 nodes = entry.getValue();
             }
 
-            final boolean didntContain = nodes.getTids().add(tid);
+            final boolean didntContain = nodes.getHandles().checkedAdd(handle);
             if (didntContain) {
+                nodes.getHandles().runOptimize();
                 entry.setValue(nodes);
             } else {
-                log.warn("Tagged node={} was already present with tag {}", tid, entry.getKey());
+                log.warn("Tagged node handle={} was already present with tag {}", handle, entry.getKey());
             }
 
             return didntContain;
         }
     }
+
+    /**
+     * Removes the handle given as the only argument from each tag bucket and removes the buckets left empty.
+     */
+    private static class TaggedNodesRemover implements EntryProcessor<TaggedNodesKey, TaggedNodes, Boolean>,
+            Serializable {
+        private static final long serialVersionUID = 0L;
+
+        @Override
+        public Boolean process(MutableEntry<TaggedNodesKey, TaggedNodes> entry,
+                               Object... args) throws EntryProcessorException {
+
+            Assert.notEmpty(args, "Requires handle arg");
+            Assert.isInstanceOf(Integer.class, args[0]);
+
+            final int handle = (Integer) args[0];
+
+            final TaggedNodes nodes = entry.getValue();
+            if (nodes == null || !nodes.getHandles().checkedRemove(handle)) {
+                log.warn("Trying to remove tagged node handle={} from {}, but not present", handle, entry.getKey());
+                return false;
+            }
+
+            if (nodes.getHandles().isEmpty()) {
+                // was the last one, so remove the whole bucket
+                entry.remove();
+            } else {
+                entry.setValue(nodes);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Adds the managed input ID given as the first argument, along with its total number of required tags given
+     * as the second argument.
+     */
+    private static class AssignmentIndexer implements EntryProcessor<AssignmentTagKey, TagAssignments, Void>,
+            Serializable {
+        private static final long serialVersionUID = 0L;
+
+        @Override
+        public Void process(MutableEntry<AssignmentTagKey, TagAssignments> entry,
+                            Object... args) throws EntryProcessorException {
+
+            Assert.isTrue(args.length == 2, "Requires managed input ID and tag count args");
+
+            final TagAssignments assignments = entry.exists() ? entry.getValue() : new TagAssignments();
+            if (!args[1].equals(assignments.getInputs().put((String) args[0], (Integer) args[1]))) {
+                entry.setValue(assignments);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Removes the managed input ID given as the only argument and removes the entry if it was the last one.
+     */
+    private static class AssignmentUnindexer implements EntryProcessor<AssignmentTagKey, TagAssignments, Void>,
+            Serializable {
+        private static final long serialVersionUID = 0L;
+
+        @Override
+        public Void process(MutableEntry<AssignmentTagKey, TagAssignments> entry,
+                            Object... args) throws EntryProcessorException {
+
+            Assert.notEmpty(args, "Requires managed input ID arg");
+
+            final TagAssignments assignments = entry.getValue();
+            if (assignments != null && assignments.getInputs().remove((String) args[0]) != null) {
+                if (assignments.getInputs().isEmpty()) {
+                    entry.remove();
+                } else {
+                    entry.setValue(assignments);
+                }
+            }
+            return null;
+        }
+    }
 }
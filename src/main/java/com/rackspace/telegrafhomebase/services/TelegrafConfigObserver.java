@@ -2,22 +2,18 @@ package com.rackspace.telegrafhomebase.services;
 
 import com.rackspace.telegrafhomebase.CacheNames;
 import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
 import com.rackspace.telegrafhomebase.model.ConnectedNode;
-import com.rackspace.telegrafhomebase.model.DirectAssignments;
 import com.rackspace.telegrafhomebase.model.ManagedInput;
-import com.rackspace.telegrafhomebase.model.RunningAssignedInputKey;
-import com.rackspace.telegrafhomebase.model.RunningRegionalInputKey;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.ignite.Ignite;
 import org.apache.ignite.IgniteAtomicReference;
 import org.apache.ignite.IgniteCache;
-import org.apache.ignite.IgniteTransactions;
-import org.apache.ignite.binary.BinaryObject;
 import org.apache.ignite.cache.query.ContinuousQuery;
 import org.apache.ignite.cache.query.QueryCursor;
 import org.apache.ignite.cache.query.ScanQuery;
-import org.apache.ignite.cache.query.SqlQuery;
 import org.apache.ignite.events.CacheEvent;
+import org.apache.ignite.events.CacheRebalancingEvent;
 import org.apache.ignite.events.Event;
 import org.apache.ignite.events.EventType;
 import org.apache.ignite.lang.IgnitePredicate;
@@ -26,13 +22,23 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.task.TaskExecutor;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.cache.Cache;
 import javax.cache.event.CacheEntryEvent;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
+ * Observes the creation of managed inputs, the connection of telegrafs, and the expiration of their leases.
+ * Depending on {@link TelegrafProperties#getObserverMode()}, either only the cluster singleton observes all of
+ * those events or every node observes the events of the keys in its own primary partitions.
+ *
  * @author Geoff Bourne
  * @since Jul 2017
  */
@@ -40,7 +46,6 @@ import java.util.Collection;
 @Slf4j
 public class TelegrafConfigObserver implements Closeable, ClusterSingletonListener {
     private final Ignite ignite;
-    private final IgniteTransactions igniteTransactions;
     private final IgniteCache<String, ManagedInput> managedInputsCache;
     private final PendingConfigQueuer pendingConfigQueuer;
     private final IgnitePredicate<Event> handler;
@@ -50,35 +55,67 @@ public class TelegrafConfigObserver implements Closeable, ClusterSingletonListen
     private final IgniteAtomicReference<Boolean> inputsLoaded;
     private final TaggingRepository taggingRepository;
     private final TaskExecutor taskExecutor;
-    private final IgniteCache<String, DirectAssignments> directAssignmentsCache;
+    private final OrderedLanes orderedLanes;
+    private final TelegrafLeases telegrafLeases;
+    private final DirectAssignmentFanout directAssignmentFanout;
+    private final AssignmentJournal assignmentJournal;
     private final IgniteCache<String, ConnectedNode> connectedNodesCache;
+    private final boolean partitioned;
     private boolean closed;
     private QueryCursor<Cache.Entry<String, ManagedInput>> regionalQueryCursor;
     private QueryCursor<Cache.Entry<String, ConnectedNode>> connectedNodesQueryCursor;
 
     @Autowired
     public TelegrafConfigObserver(Ignite ignite,
-                                  IgniteTransactions igniteTransactions,
                                   IgniteCacheProvider cacheProvider,
                                   PendingConfigQueuer pendingConfigQueuer,
                                   TaggingRepository taggingRepository,
-                                  TaskExecutor taskExecutor) {
+                                  TaskExecutor taskExecutor,
+                                  OrderedLanes orderedLanes,
+                                  TelegrafLeases telegrafLeases,
+                                  DirectAssignmentFanout directAssignmentFanout,
+                                  AssignmentJournal assignmentJournal,
+                                  TelegrafProperties telegrafProperties) {
         this.ignite = ignite;
-        this.igniteTransactions = igniteTransactions;
         managedInputsCache = cacheProvider.managedInputsCache();
-        directAssignmentsCache = cacheProvider.directAssignmentsCache();
         connectedNodesCache = cacheProvider.connectedNodesCache();
         this.pendingConfigQueuer = pendingConfigQueuer;
 
         inputsLoaded = ignite.atomicReference("inputs-loaded", Boolean.FALSE, true);
         this.taggingRepository = taggingRepository;
         this.taskExecutor = taskExecutor;
+        this.orderedLanes = orderedLanes;
+        this.telegrafLeases = telegrafLeases;
+        this.directAssignmentFanout = directAssignmentFanout;
+        this.assignmentJournal = assignmentJournal;
+        partitioned = telegrafProperties.getObserverMode() == TelegrafProperties.ObserverMode.PARTITIONED;
 
         this.handler = this::handleIgniteEvent;
     }
 
+    @PostConstruct
+    public void startPartitioned() {
+        if (partitioned) {
+            log.info("Observing events of the locally primary partitions");
+            start();
+        }
+    }
+
     @Override
     public void handleGainedLeadership() throws Exception {
+        if (!partitioned) {
+            start();
+        }
+    }
+
+    @Override
+    public void handleLostLeadership() throws Exception {
+        if (!partitioned) {
+            close();
+        }
+    }
+
+    private void start() {
         setupRunningExpiredListener();
 
         setupContinuousManagedInputQuery();
@@ -88,27 +125,27 @@ public class TelegrafConfigObserver implements Closeable, ClusterSingletonListen
         closed = false;
     }
 
-    @Override
-    public void handleLostLeadership() throws Exception {
-        close();
-    }
-
     private void setupRunningExpiredListener() {
         log.info("Starting cache event listening");
 
         // Apparently all we need is a local listener even for events originating elsewhere in the cluster
         // Related to http://apache-ignite-users.70518.x6.nabble.com/Cache-Events-Questions-tp1090p1096.html
         ignite.events().localListen(handler,
-                                    EventType.EVT_CACHE_OBJECT_EXPIRED);
+                                    EventType.EVT_CACHE_OBJECT_EXPIRED,
+                                    EventType.EVT_CACHE_REBALANCE_PART_DATA_LOST);
         log.debug("Started event listening");
     }
 
     private void setupContinuousManagedInputQuery() {
         final ContinuousQuery<String, ManagedInput> query = new ContinuousQuery<>();
-        if (inputsLoaded.compareAndSet(false, true)) {
+        final boolean initialLoad = inputsLoaded.compareAndSet(false, true);
+        if (initialLoad) {
             log.info("Will perform initial loading of managed inputs");
-            query.setInitialQuery(new ScanQuery<>((cid, managedInput) -> managedInput.getRegion() != null));
+            if (!partitioned) {
+                query.setInitialQuery(new ScanQuery<>());
+            }
         }
+        query.setLocal(partitioned);
         query.setRemoteFilterFactory(() -> {
             return cacheEntryEvent -> {
                 return cacheEntryEvent.getEventType().equals(javax.cache.event.EventType.CREATED);
@@ -116,20 +153,34 @@ public class TelegrafConfigObserver implements Closeable, ClusterSingletonListen
         });
         query.setLocalListener(events -> {
             log.debug("Executing batch of managed input events={}", events);
-            taskExecutor.execute(() -> {
-                events.forEach(cacheEntryEvent -> {
-                    final ManagedInput createdManagedInput = cacheEntryEvent.getValue();
-                    handleCreatedManagedInput(createdManagedInput);
-                });
+            final Map<String/*tenant*/, List<ManagedInput>> byTenant = new LinkedHashMap<>();
+            events.forEach(cacheEntryEvent -> {
+                final ManagedInput createdManagedInput = cacheEntryEvent.getValue();
+                byTenant.computeIfAbsent(createdManagedInput.getTenantId(), t -> new ArrayList<>())
+                        .add(createdManagedInput);
+            });
+
+            byTenant.forEach((tenantId, createdManagedInputs) -> {
+                orderedLanes.execute(tenantId, () -> handleCreatedManagedInputs(createdManagedInputs));
             });
         });
 
         regionalQueryCursor = managedInputsCache.query(query);
+        // a local query only covers this node's partitions, so the one node doing the initial load scans them all
+        final Iterable<Cache.Entry<String, ManagedInput>> initialEntries = partitioned && initialLoad ?
+                managedInputsCache.query(new ScanQuery<String, ManagedInput>()) : regionalQueryCursor;
         taskExecutor.execute(() -> {
-            regionalQueryCursor.forEach(e -> {
+            initialEntries.forEach(e -> {
                 final ManagedInput loadedManagedInput = e.getValue();
-                log.debug("Queuing loaded input={} to queue", loadedManagedInput);
-                pendingConfigQueuer.offer(loadedManagedInput.getRegion(), loadedManagedInput.getId(), true);
+                if (loadedManagedInput.getRegion() != null) {
+                    log.debug("Queuing loaded input={} to queue", loadedManagedInput);
+                    pendingConfigQueuer.offer(loadedManagedInput.getRegion(), loadedManagedInput.getId(), true);
+                } else if (loadedManagedInput.getAssignmentTags() != null) {
+                    // the assignment tag index isn't persisted, so rebuild it from the loaded inputs
+                    taggingRepository.indexAssignedInput(loadedManagedInput.getTenantId(),
+                                                         loadedManagedInput.getId(),
+                                                         loadedManagedInput.getAssignmentTags());
+                }
             });
         });
         log.debug("Started continuous regional config query");
@@ -137,6 +188,7 @@ public class TelegrafConfigObserver implements Closeable, ClusterSingletonListen
 
     private void setupConnectedNodeQuery() {
         final ContinuousQuery<String, ConnectedNode> query = new ContinuousQuery<>();
+        query.setLocal(partitioned);
 
         query.setRemoteFilterFactory(() -> {
             return cacheEntryEvent -> {
@@ -149,43 +201,42 @@ public class TelegrafConfigObserver implements Closeable, ClusterSingletonListen
 
         query.setLocalListener(events -> {
 
-            taskExecutor.execute(() -> {
-
-                for (CacheEntryEvent<? extends String, ? extends ConnectedNode> event : events) {
-                    final String tid = event.getKey();
-                    final ConnectedNode info = event.getValue();
-                    if (info == null) {
-                        log.warn("ConnectedNode was null for event={} with type={}", event.getEventType());
-                        continue;
-                    }
-
-                    log.debug("Finding assignable inputs for connected node={}", info);
-
-                    final SqlQuery<String, ManagedInput> inputSqlQuery
-                            = new SqlQuery<>(ManagedInput.class, "tenantId = ?");
-
-                    managedInputsCache.query(inputSqlQuery.setArgs(info.getTenantId())).forEach(entry -> {
-                        final ManagedInput input = entry.getValue();
-
-                        // For this managed input, see if this telegraf satisfies all the tags
-                        if (input.getAssignmentTags() != null &&
-                                input.getAssignmentTags().entrySet().stream()
-                                        .allMatch(inputTag ->
-                                                  inputTag.getValue().equals(info.getTags().get(inputTag.getKey())))) {
-
-                            assignDirectly(input, tid);
-
-                        }
-                    });
+            for (CacheEntryEvent<? extends String, ? extends ConnectedNode> event : events) {
+                final String tid = event.getKey();
+                final ConnectedNode info = event.getValue();
+                if (info == null) {
+                    log.warn("ConnectedNode was null for event={} with type={}", event, event.getEventType());
+                    continue;
                 }
 
-            });
+                orderedLanes.execute(info.getTenantId(), () -> handleConnectedNode(tid, info));
+            }
 
         });
 
         connectedNodesQueryCursor = connectedNodesCache.query(query);
     }
 
+    private void handleConnectedNode(String tid, ConnectedNode info) {
+        log.debug("Finding assignable inputs for connected node={}", info);
+
+        // In partitioned mode, the fan-out of a newly created input can run on another node at the same time.
+        // Its assignment would be lost if replaced with a lookup that didn't see it, so the replacement
+        // is only applied if nothing was assigned since the lookup started.
+        boolean reconciled;
+        do {
+            final long sequence = assignmentJournal.sequenceOf(tid);
+            // only the node's own tags are probed rather than scanning all of the tenant's inputs
+            final Collection<String> assignable
+                    = taggingRepository.findAssignedInputs(info.getTenantId(), info.getTags());
+            // replaces any assignments retained from a prior connection, since its tags may have changed
+            reconciled = assignmentJournal.reconcile(tid, assignable, sequence);
+            if (!reconciled) {
+                log.debug("Assignments of telegraf={} changed while reconciling, so looking up again", tid);
+            }
+        } while (!reconciled);
+    }
+
     private boolean handleIgniteEvent(Event e) {
         log.trace("Handling event={}", e);
 
@@ -195,15 +246,20 @@ public class TelegrafConfigObserver implements Closeable, ClusterSingletonListen
 
                 case EventType.EVT_CACHE_OBJECT_EXPIRED:
 
-                    if (cacheEvent.cacheName().equals(CacheNames.RUNNING_REGIONAL_INPUTS)) {
-                        handleRunningRegionalExpiration(cacheEvent);
-                    } else if (cacheEvent.cacheName().equals(CacheNames.RUNNING_ASSIGNED_INPUTS)) {
-                        handleRunningAssignedExpiration(cacheEvent);
+                    if (cacheEvent.cacheName().equals(CacheNames.TELEGRAF_LEASES) &&
+                            isPrimaryHere(CacheNames.TELEGRAF_LEASES, cacheEvent.key())) {
+                        handleLeaseExpiration(cacheEvent);
                     }
                     break;
                 default:
                     log.trace("Ignoring {}", e);
             }
+        } else if (e instanceof CacheRebalancingEvent &&
+                e.type() == EventType.EVT_CACHE_REBALANCE_PART_DATA_LOST) {
+            final CacheRebalancingEvent rebalancingEvent = (CacheRebalancingEvent) e;
+            if (rebalancingEvent.cacheName().equals(CacheNames.TELEGRAF_LEASES)) {
+                handleLostLeasePartition(rebalancingEvent.partition());
+            }
         } else {
             log.trace("Ignoring {}", e);
         }
@@ -211,121 +267,91 @@ public class TelegrafConfigObserver implements Closeable, ClusterSingletonListen
         return !closed;
     }
 
-    private void handleCreatedManagedInput(ManagedInput createdManagedInput) {
+    /**
+     * Handles the managed inputs of one tenant created together, such as by a bulk creation. Regional inputs
+     * are queued in one batch per region and assigned inputs with the same assignment tags are fanned out
+     * together.
+     */
+    private void handleCreatedManagedInputs(List<ManagedInput> createdManagedInputs) {
+        final Map<String/*region*/, List<String>> regional = new HashMap<>();
+        final Map<Map<String, String>/*tags*/, List<ManagedInput>> assigned = new HashMap<>();
+        for (ManagedInput createdManagedInput : createdManagedInputs) {
+            if (createdManagedInput.getRegion() != null) {
+                regional.computeIfAbsent(createdManagedInput.getRegion(), r -> new ArrayList<>())
+                        .add(createdManagedInput.getId());
+            } else {
+                assigned.computeIfAbsent(createdManagedInput.getAssignmentTags(), t -> new ArrayList<>())
+                        .add(createdManagedInput);
+            }
+        }
 
-        if (createdManagedInput.getRegion() != null) {
-            // REGIONAL
+        // REGIONAL
+        regional.forEach((region, mids) -> {
+            log.debug("Queuing created regional-inputs={} to queue of region={}", mids, region);
+            pendingConfigQueuer.offerAll(region, mids);
+        });
 
-            log.debug("Queuing created regional-input={} to queue", createdManagedInput);
-            pendingConfigQueuer.offer(createdManagedInput.getRegion(), createdManagedInput.getId(), true);
-        } else {
-            // ASSIGNED
+        // ASSIGNED
+        assigned.forEach((assignmentTags, managedInputs) -> {
+            log.debug("Handling created assigned-inputs={}", managedInputs);
+            final List<String> mids = new ArrayList<>(managedInputs.size());
+            for (ManagedInput createdManagedInput : managedInputs) {
+                // usually already indexed at creation, but inputs loaded from the store arrive only here
+                reindexIfPresent(createdManagedInput, assignmentTags);
+                mids.add(createdManagedInput.getId());
+            }
 
-            log.debug("Handling created assigned-input={}", createdManagedInput);
-            final Collection<String> matches = taggingRepository.findMatches(createdManagedInput.getTenantId(),
-                                                                             createdManagedInput.getAssignmentTags());
+            final Collection<String> matches = taggingRepository.findMatches(managedInputs.get(0).getTenantId(),
+                                                                             assignmentTags);
 
             if (matches == null || matches.isEmpty()) {
-                log.warn("Unable to find any running telegrafs that satisfy the assignment tags");
+                log.warn("Unable to find any running telegrafs that satisfy the assignment tags={}", assignmentTags);
                 return;
             }
 
-            try (Transaction tx = igniteTransactions.txStart()) {
-                for (String tid : matches) {
-                    assignDirectly(createdManagedInput, tid);
-                }
+            directAssignmentFanout.fanOut(mids, matches);
+        });
+    }
 
-                tx.commit();
+    /**
+     * Indexes the assigned input only if it still exists. The lookup locks the input within the same transaction,
+     * so a concurrent delete, which unindexes within its own removal, can't leave it indexed.
+     */
+    private void reindexIfPresent(ManagedInput managedInput, Map<String, String> assignmentTags) {
+        try (Transaction tx = ignite.transactions().txStart()) {
+            if (managedInputsCache.get(managedInput.getId()) != null) {
+                taggingRepository.indexAssignedInput(managedInput.getTenantId(),
+                                                     managedInput.getId(),
+                                                     assignmentTags);
             }
+            tx.commit();
         }
-
     }
 
-    private void handleRunningRegionalExpiration(CacheEvent cacheEvent) {
-        final Object rawKey = cacheEvent.key();
-        final RunningRegionalInputKey key;
-        if (rawKey instanceof BinaryObject) {
-            key = ((BinaryObject) rawKey).deserialize();
-        } else {
-            key = (RunningRegionalInputKey) rawKey;
-        }
-        log.info("Observed expiration of running regional config {}", key);
-
-        if (key.getRegion() != null) {
-            log.info("Re-queueing regional config: {}", key);
-            pendingConfigQueuer.offer(key.getRegion(), key.getMid(), true);
-        }
+    /**
+     * @return true if this node should handle the events of the given key, which is always the case when
+     * acting as the cluster singleton
+     */
+    private boolean isPrimaryHere(String cacheName, Object key) {
+        return !partitioned || ignite.affinity(cacheName).isPrimary(ignite.cluster().localNode(), key);
     }
 
-    private void handleRunningAssignedExpiration(CacheEvent cacheEvent) {
-        final Object rawKey = cacheEvent.key();
-        final RunningAssignedInputKey key;
-        if (rawKey instanceof BinaryObject) {
-            key = ((BinaryObject) rawKey).deserialize();
-        } else {
-            key = (RunningAssignedInputKey) rawKey;
+    private void handleLostLeasePartition(int partition) {
+        if (partitioned &&
+                !ignite.affinity(CacheNames.TELEGRAF_LEASES).mapPartitionToNode(partition).isLocal()) {
+            return;
         }
+        log.warn("Observed loss of lease partition={}", partition);
 
-        log.info("Observed expiration of running assigned config {}", key);
-
-        final Boolean nowEmpty = directAssignmentsCache.invoke(key.getTelegrafId(), (mutableEntry, args) -> {
-            DirectAssignments assignments = mutableEntry.getValue();
-            if (assignments != null) {
-                final String mid = (String) args[0];
-                assignments = assignments.remove(mid);
-
-                if (assignments.get().isEmpty()) {
-                    log.debug("Removing direct assignment");
-                    mutableEntry.remove();
-                    return true;
-                } else {
-                    log.debug("Removing managed input={} from direct assignments of {}", mid, mutableEntry.getKey());
-                    mutableEntry.setValue(assignments);
-                }
-            }
-
-            return false;
-        }, key.getManagedInputId());
-
-        if (nowEmpty) {
-            log.debug("Removing connected node entry");
-            final ConnectedNode info = connectedNodesCache.getAndRemove(key.getTelegrafId());
-
-            if (info != null) {
-                taggingRepository.removeNodeTags(info.getTenantId(), key.getTelegrafId(), info.getTags());
-            }
-        }
+        taskExecutor.execute(() -> telegrafLeases.releaseOrphans(partition));
     }
 
-    private void assignDirectly(ManagedInput createdManagedInput, String tid) {
-        final String createdInputId = createdManagedInput.getId();
-        log.debug("Assigning managedInput={} to telegraf={}", createdInputId, tid);
-
-        final Boolean didNotExist = directAssignmentsCache.invoke(tid, (mutableEntry, args) -> {
-
-            final DirectAssignments prev = mutableEntry.getValue();
-
-            final DirectAssignments assignments;
-            if (prev == null) {
-                assignments = new DirectAssignments(createdInputId);
-            }
-            else {
-                assignments = prev.add(createdInputId);
-            }
-
-            if (prev != assignments) {
-                mutableEntry.setValue(assignments);
-                return true;
-            } else {
-                return false;
-            }
-        });
+    private void handleLeaseExpiration(CacheEvent cacheEvent) {
+        final String tid = (String) cacheEvent.key();
+        log.info("Observed expiration of lease for telegraf={}", tid);
 
-        if (!didNotExist) {
-            log.warn("Attempted to add assignment={} to telegraf={} when it already had it",
-                     createdInputId, tid);
-
-        }
+        // the release queries the running caches, which shouldn't be done from the event notification thread
+        taskExecutor.execute(() -> telegrafLeases.release(tid));
     }
 
     @Override
@@ -333,10 +359,15 @@ public class TelegrafConfigObserver implements Closeable, ClusterSingletonListen
         log.info("Stopping cache event listening");
 
         ignite.events().stopLocalListen(handler,
-                                        EventType.EVT_CACHE_OBJECT_EXPIRED);
+                                        EventType.EVT_CACHE_OBJECT_EXPIRED,
+                                        EventType.EVT_CACHE_REBALANCE_PART_DATA_LOST);
 
-        regionalQueryCursor.close();
-        connectedNodesQueryCursor.close();
+        if (regionalQueryCursor != null) {
+            regionalQueryCursor.close();
+        }
+        if (connectedNodesQueryCursor != null) {
+            connectedNodesQueryCursor.close();
+        }
 
         closed = true;
     }
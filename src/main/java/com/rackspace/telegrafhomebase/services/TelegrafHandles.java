@@ -0,0 +1,84 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ignite.Ignite;
+import org.apache.ignite.IgniteAtomicSequence;
+import org.apache.ignite.IgniteCache;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Allocates a dense, grid-wide int handle to each telegraf ID so that the tag index can store its posting lists
+ * as compressed bitmaps. Handles are never reused, so a handle found in a bitmap always resolves back to the
+ * telegraf it was allocated for.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Component
+@Slf4j
+public class TelegrafHandles {
+
+    private final IgniteAtomicSequence sequence;
+    private final IgniteCache<String, Integer> handlesCache;
+    private final IgniteCache<Integer, String> telegrafsCache;
+
+    @Autowired
+    public TelegrafHandles(Ignite ignite, IgniteCacheProvider cacheProvider) {
+        sequence = ignite.atomicSequence("telegraf-handle-sequence", 0, true);
+        handlesCache = cacheProvider.telegrafHandlesCache();
+        telegrafsCache = cacheProvider.handleTelegrafsCache();
+    }
+
+    /**
+     * @return the handle of the given telegraf, allocating one if it never had one
+     */
+    public int handleOf(String tid) {
+        final Integer existing = handlesCache.get(tid);
+        if (existing != null) {
+            return existing;
+        }
+
+        final long next = sequence.incrementAndGet();
+        if (next > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Telegraf handles have been exhausted");
+        }
+        final int handle = (int) next;
+
+        // the reverse mapping goes first so that a visible handle can always be resolved
+        telegrafsCache.put(handle, tid);
+        final Integer raced = handlesCache.getAndPutIfAbsent(tid, handle);
+        if (raced != null) {
+            log.debug("Lost race allocating handle of telegraf={}, using handle={}", tid, raced);
+            telegrafsCache.remove(handle);
+            return raced;
+        }
+        return handle;
+    }
+
+    /**
+     * @return the handle of the given telegraf or null if it was never allocated one
+     */
+    public Integer find(String tid) {
+        return handlesCache.get(tid);
+    }
+
+    /**
+     * @return the telegraf IDs of the given handles
+     */
+    public Collection<String> resolve(RoaringBitmap handles) {
+        final Set<Integer> keys = new TreeSet<>();
+        for (int handle : handles.toArray()) {
+            keys.add(handle);
+        }
+
+        return new ArrayList<>(telegrafsCache.getAll(keys).values());
+    }
+}
@@ -1,5 +1,6 @@
 package com.rackspace.telegrafhomebase.services;
 
+import com.rackspace.telegrafhomebase.shared.ConfigPackStream;
 import io.grpc.stub.StreamObserver;
 import org.lognet.springboot.grpc.GRpcService;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -15,19 +16,28 @@ public class TelegrafHomeService extends TelegrafRemoteImplBase {
 
     private final ConfigPackResponder configPackResponder;
     private final TelegrafWellBeingHandler wellBeingHandler;
+    private final ConfigPackStreams configPackStreams;
 
     @Autowired
     public TelegrafHomeService(ConfigPackResponder configPackResponder,
-                               TelegrafWellBeingHandler wellBeingHandler) {
+                               TelegrafWellBeingHandler wellBeingHandler,
+                               ConfigPackStreams configPackStreams) {
         this.configPackResponder = configPackResponder;
         this.wellBeingHandler = wellBeingHandler;
+        this.configPackStreams = configPackStreams;
     }
 
     @Override
     public void startConfigStreaming(Telegraf.Greeting request, StreamObserver<Telegraf.ConfigPack> responseObserver) {
+        // The flow control handlers of the server call can only be registered before this method returns, so the
+        // outbound stream is prepared here rather than in the async responder.
+        final ConfigPackStream stream = configPackStreams.open(request.getIdentifiers().getTid(), responseObserver);
+        // only the assignment changes after what the telegraf already applied will be streamed
+        stream.setAssignmentSequence(request.getResumeFromSequence());
+
         configPackResponder.startConfigStreaming(request.getIdentifiers(),
                                                  request.getNodeTagMap(),
-                                                 responseObserver);
+                                                 stream);
     }
 
     @Override
@@ -0,0 +1,282 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.CacheNames;
+import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
+import com.rackspace.telegrafhomebase.model.ConnectedNode;
+import com.rackspace.telegrafhomebase.model.RunningAssignedInputKey;
+import com.rackspace.telegrafhomebase.model.RunningRegionalInputKey;
+import com.rackspace.telegrafhomebase.model.TelegrafLease;
+import com.rackspace.telegrafhomebase.model.TelegrafRegionalInputKey;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ignite.Ignite;
+import org.apache.ignite.IgniteCache;
+import org.apache.ignite.IgniteTransactions;
+import org.apache.ignite.cache.affinity.Affinity;
+import org.apache.ignite.cache.query.ScanQuery;
+import org.apache.ignite.cache.query.SqlFieldsQuery;
+import org.apache.ignite.transactions.Transaction;
+import org.apache.ignite.transactions.TransactionConcurrency;
+import org.apache.ignite.transactions.TransactionIsolation;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Maintains one lease per connected telegraf. A keep-alive renews only the lease, rather than touching the
+ * running entry of every input, and the running entries are all released together when the lease expires
+ * or the telegraf goes away.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Service
+@Slf4j
+public class TelegrafLeases {
+
+    private final Ignite ignite;
+    private final IgniteTransactions igniteTransactions;
+    private final IgniteCache<String, TelegrafLease> leasesCache;
+    private final IgniteCache<RunningRegionalInputKey, String> runningRegionalCache;
+    private final IgniteCache<TelegrafRegionalInputKey, Boolean> telegrafRegionalInputsCache;
+    private final IgniteCache<RunningAssignedInputKey, String> runningAssignedInputsCache;
+    private final AssignmentJournal assignmentJournal;
+    private final IgniteCache<String, ConnectedNode> connectedNodesCache;
+    private final PendingConfigQueuer pendingConfigQueuer;
+    private final TaggingRepository taggingRepository;
+    private final CounterService counterService;
+    private final String ourId;
+
+    @Autowired
+    public TelegrafLeases(Ignite ignite,
+                          IgniteTransactions igniteTransactions,
+                          IgniteCacheProvider cacheProvider,
+                          PendingConfigQueuer pendingConfigQueuer,
+                          TaggingRepository taggingRepository,
+                          CounterService counterService,
+                          AssignmentJournal assignmentJournal) {
+        this.ignite = ignite;
+        this.igniteTransactions = igniteTransactions;
+        ourId = ignite.cluster().localNode().id().toString();
+        leasesCache = cacheProvider.telegrafLeasesCache();
+        runningRegionalCache = cacheProvider.runningRegionalInputsCache();
+        telegrafRegionalInputsCache = cacheProvider.telegrafRegionalInputsCache();
+        runningAssignedInputsCache = cacheProvider.runningAssignedInputsCache();
+        this.assignmentJournal = assignmentJournal;
+        connectedNodesCache = cacheProvider.connectedNodesCache();
+        this.pendingConfigQueuer = pendingConfigQueuer;
+        this.taggingRepository = taggingRepository;
+        this.counterService = counterService;
+    }
+
+    /**
+     * Grants a new lease to a telegraf that just connected to this node.
+     */
+    public void grant(String tid, String region, String connectionId) {
+        final TelegrafLease lease = new TelegrafLease();
+        lease.setTid(tid);
+        lease.setRegion(region);
+        lease.setClusterNodeId(ourId);
+        lease.setConnectionId(connectionId);
+
+        leasesCache.put(tid, lease);
+    }
+
+    /**
+     * Renews the lease of the given telegraf, which is a single touch of its lease entry.
+     *
+     * @return the renewed lease or null if it had already expired and was re-granted, in which case its inputs
+     * were already released
+     */
+    public TelegrafLease renew(String tid, String region) {
+        // getting the key is enough to touch it and keep the entry alive
+        final TelegrafLease lease = leasesCache.get(tid);
+        if (lease != null) {
+            return lease;
+        }
+
+        log.info("Lease of telegraf={} had expired, so re-granting", tid);
+        grant(tid, region, null);
+        return null;
+    }
+
+    /**
+     * Records that the given set of reported config IDs was fully validated as of the given generation.
+     */
+    public void recordValidated(String tid, long fingerprint, long generation) {
+        leasesCache.invoke(tid, (mutableEntry, args) -> {
+            final TelegrafLease lease = mutableEntry.getValue();
+            if (lease != null) {
+                lease.setValidatedFingerprint((Long) args[0]);
+                lease.setValidatedGeneration((Long) args[1]);
+                mutableEntry.setValue(lease);
+            }
+            return null;
+        }, fingerprint, generation);
+    }
+
+    /**
+     * Indexes the given regional inputs as running on the given telegraf, which needs to be done in the same
+     * transaction that writes their running entries.
+     */
+    public void indexRegionalInputs(String tid, Collection<RunningRegionalInputKey> keys) {
+        final Map<TelegrafRegionalInputKey, Boolean> entries = new HashMap<>();
+        keys.forEach(key -> entries.put(indexKey(tid, key), Boolean.TRUE));
+        telegrafRegionalInputsCache.putAll(entries);
+    }
+
+    /**
+     * Removes the index entries of the given regional inputs that were running on the given telegraf, which
+     * needs to be done in the same transaction that removes their running entries.
+     */
+    public void unindexRegionalInputs(String tid, Collection<RunningRegionalInputKey> keys) {
+        telegrafRegionalInputsCache.removeAll(keys.stream()
+                                                      .map(key -> indexKey(tid, key))
+                                                      .collect(Collectors.toSet()));
+    }
+
+    /**
+     * @return the key of the given assigned input's running entry on the given telegraf
+     */
+    public RunningAssignedInputKey assignedInputKey(String mid, String tid) {
+        return new RunningAssignedInputKey(mid, tid, leasePartition(tid));
+    }
+
+    private TelegrafRegionalInputKey indexKey(String tid, RunningRegionalInputKey key) {
+        return new TelegrafRegionalInputKey(tid, leasePartition(tid), key.getMid(), key.getRegion());
+    }
+
+    private int leasePartition(String tid) {
+        return ignite.affinity(CacheNames.TELEGRAF_LEASES).partition(tid);
+    }
+
+    /**
+     * Releases the given telegraf only if its lease still belongs to the given, now closed, connection. A
+     * telegraf that already reconnected, here or to another node, keeps its new lease and running entries.
+     *
+     * @return true if the telegraf was released
+     */
+    public boolean releaseConnection(String tid, String connectionId) {
+        return release(tid, lease -> lease == null || (lease.getConnectionId() != null ?
+                lease.getConnectionId().equals(connectionId) : ourId.equals(lease.getClusterNodeId())));
+    }
+
+    /**
+     * Releases everything bound to the given telegraf, whose lease expired or was lost. Its regional inputs are
+     * re-queued in bulk for the other telegrafs of the region. Nothing is released if it was granted a new lease
+     * in the meantime.
+     *
+     * @return true if the telegraf was released
+     */
+    public boolean release(String tid) {
+        return release(tid, lease -> lease == null);
+    }
+
+    private boolean release(String tid, Predicate<TelegrafLease> owned) {
+        // The generation isn't advanced since the validated reports of other telegrafs can't include the released
+        // inputs, and this telegraf's own validation goes away with its lease.
+
+        // queries don't participate in the transaction, so each entry found is only removed if still bound to it
+        final Set<RunningRegionalInputKey> regionalKeys = new HashSet<>();
+        final SqlFieldsQuery regionalQuery
+                = new SqlFieldsQuery("select mid, region" +
+                                             " from \"" + CacheNames.TELEGRAF_REGIONAL_INPUTS + "\".Boolean" +
+                                             " where tid = ?");
+        for (List<?> row : telegrafRegionalInputsCache.query(regionalQuery.setArgs(tid))) {
+            regionalKeys.add(new RunningRegionalInputKey((String) row.get(0), (String) row.get(1)));
+        }
+
+        final SqlFieldsQuery assignedQuery
+                = new SqlFieldsQuery("select managedInputId" +
+                                             " from \"" + CacheNames.RUNNING_ASSIGNED_INPUTS + "\".String" +
+                                             " where telegrafId = ?");
+        final Set<RunningAssignedInputKey> assignedKeys = new HashSet<>();
+        for (List<?> row : runningAssignedInputsCache.query(assignedQuery.setArgs(tid))) {
+            assignedKeys.add(assignedInputKey((String) row.get(0), tid));
+        }
+
+        final Map<String/*region*/, List<String>> released = new HashMap<>();
+        try (Transaction tx = igniteTransactions.txStart(TransactionConcurrency.PESSIMISTIC,
+                                                         TransactionIsolation.REPEATABLE_READ)) {
+            // locks the lease, so the telegraf can't be granted a new one until this is done
+            final TelegrafLease lease = leasesCache.get(tid);
+            if (!owned.test(lease)) {
+                log.debug("Not releasing telegraf={} since it has a newer lease on node={}",
+                          tid, lease.getClusterNodeId());
+                return false;
+            }
+
+            for (RunningRegionalInputKey key : regionalKeys) {
+                // only release what the telegraf still owns, since it may have been re-placed concurrently
+                if (runningRegionalCache.remove(key, tid)) {
+                    released.computeIfAbsent(key.getRegion(), r -> new ArrayList<>()).add(key.getMid());
+                }
+            }
+            unindexRegionalInputs(tid, regionalKeys);
+
+            runningAssignedInputsCache.removeAll(assignedKeys);
+            // retained for a while, so the telegraf can resume its assignments if it comes back
+            assignmentJournal.retire(tid);
+            final ConnectedNode oldInfo = connectedNodesCache.getAndRemove(tid);
+            if (oldInfo != null) {
+                taggingRepository.removeNodeTags(oldInfo.getTenantId(), tid, oldInfo.getTags());
+            }
+            leasesCache.remove(tid);
+            tx.commit();
+        } catch (Exception e) {
+            log.error("Unexpected exception while releasing telegraf={}", tid, e);
+            return false;
+        }
+
+        released.forEach((region, mids) -> {
+            log.debug("Re-queueing regional inputs={} released by telegraf={}", mids, tid);
+            pendingConfigQueuer.offerAll(region, mids);
+            mids.forEach(mid -> counterService.increment(String.format("telegraf.dispatch.%s.released", region)));
+        });
+        return true;
+    }
+
+    /**
+     * Releases the telegrafs whose leases were in the given lost partition of the leases cache. Those leases are
+     * gone without ever expiring, so whatever is still bound to their telegrafs would otherwise never be released.
+     */
+    public void releaseOrphans(int partition) {
+        final Set<String> tids = new HashSet<>();
+        final SqlFieldsQuery regionalQuery
+                = new SqlFieldsQuery("select distinct tid" +
+                                             " from \"" + CacheNames.TELEGRAF_REGIONAL_INPUTS + "\".Boolean" +
+                                             " where leasePartition = ?");
+        for (List<?> row : telegrafRegionalInputsCache.query(regionalQuery.setArgs(partition))) {
+            tids.add((String) row.get(0));
+        }
+        final SqlFieldsQuery assignedQuery
+                = new SqlFieldsQuery("select distinct telegrafId" +
+                                             " from \"" + CacheNames.RUNNING_ASSIGNED_INPUTS + "\".String" +
+                                             " where leasePartition = ?");
+        for (List<?> row : runningAssignedInputsCache.query(assignedQuery.setArgs(partition))) {
+            tids.add((String) row.get(0));
+        }
+        // both are keyed by telegraf with the default affinity, so its connected node is in the same partition
+        final ScanQuery<String, ConnectedNode> connectedQuery = new ScanQuery<>();
+        if (ignite.affinity(CacheNames.CONNECTED_NODES).partitions() ==
+                ignite.affinity(CacheNames.TELEGRAF_LEASES).partitions()) {
+            connectedQuery.setPartition(partition);
+        }
+        connectedNodesCache.query(connectedQuery).forEach(entry -> tids.add(entry.getKey()));
+
+        final Affinity<String> affinity = ignite.affinity(CacheNames.TELEGRAF_LEASES);
+        tids.removeIf(tid -> affinity.partition(tid) != partition || leasesCache.containsKey(tid));
+
+        log.info("Releasing telegrafs={} whose leases were lost with partition={}", tids, partition);
+        tids.forEach(this::release);
+    }
+}
@@ -4,32 +4,52 @@ import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
 import com.rackspace.telegrafhomebase.model.ManagedInput;
 import com.rackspace.telegrafhomebase.model.RunningAssignedInputKey;
 import com.rackspace.telegrafhomebase.model.RunningRegionalInputKey;
+import com.rackspace.telegrafhomebase.model.TelegrafLease;
+import com.rackspace.telegrafhomebase.shared.ConfigIdFingerprint;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.ignite.IgniteCache;
 import org.apache.ignite.IgniteTransactions;
 import org.apache.ignite.transactions.Transaction;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.stereotype.Service;
 import remote.Telegraf;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Geoff Bourne
  * @since Jul 2017
  */
 @Service @Slf4j
-public class TelegrafWellBeingHandler {
+public class TelegrafWellBeingHandler implements PublicMetrics {
 
     private final IgniteCache<RunningRegionalInputKey, String> runningRegionalCache;
     private final IgniteCache<String, ManagedInput> managedInputCache;
     private final IgniteTransactions igniteTransactions;
     private final IgniteCache<RunningAssignedInputKey, String> runningAssignedInputsCache;
+    private final TelegrafLeases telegrafLeases;
+    private final AssignmentGeneration assignmentGeneration;
+    private final AtomicLong fastPathHits = new AtomicLong();
+    private final AtomicLong fastPathMisses = new AtomicLong();
 
     @Autowired
     public TelegrafWellBeingHandler(IgniteTransactions igniteTransactions,
-                                    IgniteCacheProvider cacheProvider) {
+                                    IgniteCacheProvider cacheProvider,
+                                    TelegrafLeases telegrafLeases,
+                                    AssignmentGeneration assignmentGeneration) {
         this.igniteTransactions = igniteTransactions;
+        this.telegrafLeases = telegrafLeases;
+        this.assignmentGeneration = assignmentGeneration;
         runningRegionalCache = cacheProvider.runningRegionalInputsCache();
         runningAssignedInputsCache = cacheProvider.runningAssignedInputsCache();
         managedInputCache = cacheProvider.managedInputsCache();
@@ -43,49 +63,112 @@ public class TelegrafWellBeingHandler {
 
         Telegraf.CurrentStateResponse.Builder resp = Telegraf.CurrentStateResponse.newBuilder();
 
-        try (Transaction tx = igniteTransactions.txStart()) {
-
-            activeConfigIdsList.forEach(configId -> {
-                final RunningRegionalInputKey runningKey = new RunningRegionalInputKey(configId, region);
-
-                if (managedInputCache.containsKey(configId)) {
-                    // getting the key is enough to touch it and keep the entry alive
-                    final String runningOn = runningRegionalCache.get(runningKey);
-
-                    // runningOn might be null
-                    if (runningOn == null) {
-                        // but might be an assigned input
-                        final RunningAssignedInputKey assignedKey = new RunningAssignedInputKey(configId, tid);
-                        final String createdOnClusterNode = runningAssignedInputsCache.get(assignedKey);
-                        if (createdOnClusterNode == null) {
-                            // we must have restarted, so need to capture running assignment
-                            log.info("Telegraf={} reported running managed input={}, but we didn't know it",
-                                     tid, configId);
-                            //  it's nobody's (because we probably did a cold restart), so tell them to stop
-                            resp.addRemovedId(configId);
-                        }
-
-                    } else if (!tid.equals(runningOn)) {
-                        log.warn("The managed input={} got reported by telegraf={}, but we thought it was assigned to {}",
-                                 configId, tid, runningOn);
-                        //  it's not theirs, so tell them to stop
+        // a single renewal keeps all of the telegraf's running inputs alive
+        final TelegrafLease lease = telegrafLeases.renew(tid, region);
+
+        if (activeConfigIdsList.isEmpty()) {
+            return resp.build();
+        }
+
+        // read before validating so that a change made during validation forces the next one to validate again
+        final long generation = assignmentGeneration.current(
+                AssignmentGeneration.scopeOf(region, identifiers.getTenant()));
+        final long fingerprint = ConfigIdFingerprint.of(new HashSet<>(activeConfigIdsList));
+        if (lease != null &&
+                lease.getValidatedGeneration() == generation &&
+                lease.getValidatedFingerprint() == fingerprint) {
+            log.trace("Skipping validation of unchanged report from telegraf={}", tid);
+            fastPathHits.incrementAndGet();
+            return resp.build();
+        }
+        fastPathMisses.incrementAndGet();
+
+        // build all of the keys up front so each cache is consulted with a single bulk operation
+        final Set<String> configIds = new LinkedHashSet<>(activeConfigIdsList);
+        final Set<RunningRegionalInputKey> regionalKeys = new HashSet<>(configIds.size());
+        final Set<RunningAssignedInputKey> assignedKeys = new HashSet<>(configIds.size());
+        for (String configId : configIds) {
+            regionalKeys.add(new RunningRegionalInputKey(configId, region));
+            assignedKeys.add(telegrafLeases.assignedInputKey(configId, tid));
+        }
+
+        // the common case is that all still exist, which avoids transferring the config values
+        final Set<String> existing = managedInputCache.containsKeys(configIds) ?
+                configIds : managedInputCache.getAll(configIds).keySet();
+        final Map<RunningRegionalInputKey, String> runningOn = runningRegionalCache.getAll(regionalKeys);
+        final Set<RunningAssignedInputKey> runningAssigned = runningAssignedInputsCache.getAll(assignedKeys).keySet();
+
+        final Set<RunningRegionalInputKey> staleRegionalKeys = new HashSet<>();
+        final Set<RunningAssignedInputKey> staleAssignedKeys = new HashSet<>();
+
+        for (String configId : configIds) {
+            final RunningRegionalInputKey runningKey = new RunningRegionalInputKey(configId, region);
+            final RunningAssignedInputKey assignedKey = telegrafLeases.assignedInputKey(configId, tid);
+
+            if (existing.contains(configId)) {
+                final String regionalTid = runningOn.get(runningKey);
+
+                // regionalTid might be null
+                if (regionalTid == null) {
+                    // but might be an assigned input
+                    if (!runningAssigned.contains(assignedKey)) {
+                        // we must have restarted, so need to capture running assignment
+                        log.info("Telegraf={} reported running managed input={}, but we didn't know it",
+                                 tid, configId);
+                        //  it's nobody's (because we probably did a cold restart), so tell them to stop
                         resp.addRemovedId(configId);
                     }
-                }
-                else {
-                    log.info("Config {} was removed, so reporting back to telegraf as such", configId);
-                    // it's been removed, let them know and let's clean up
-                    resp.addRemovedId(configId);
 
-                    final RunningAssignedInputKey assignedKey = new RunningAssignedInputKey(configId, tid);
-                    runningAssignedInputsCache.remove(assignedKey);
-                    runningRegionalCache.remove(runningKey);
+                } else if (!tid.equals(regionalTid)) {
+                    log.warn("The managed input={} got reported by telegraf={}, but we thought it was assigned to {}",
+                             configId, tid, regionalTid);
+                    //  it's not theirs, so tell them to stop
+                    resp.addRemovedId(configId);
                 }
-            });
+            }
+            else {
+                log.info("Config {} was removed, so reporting back to telegraf as such", configId);
+                // it's been removed, let them know and let's clean up
+                resp.addRemovedId(configId);
+
+                if (runningOn.containsKey(runningKey)) {
+                    staleRegionalKeys.add(runningKey);
+                }
+                if (runningAssigned.contains(assignedKey)) {
+                    staleAssignedKeys.add(assignedKey);
+                }
+            }
+        }
 
-            tx.commit();
+        // only write, and only pay for a transaction, when there is something to clean up
+        if (!staleRegionalKeys.isEmpty() || !staleAssignedKeys.isEmpty()) {
+            try (Transaction tx = igniteTransactions.txStart()) {
+                runningAssignedInputsCache.removeAll(staleAssignedKeys);
+                runningRegionalCache.removeAll(staleRegionalKeys);
+                staleRegionalKeys.forEach(key -> telegrafLeases.unindexRegionalInputs(
+                        runningOn.get(key), Collections.singleton(key)));
+
+                tx.commit();
+            }
+        }
+
+        // a report with removals will be followed by a different one once the telegraf acts on them
+        if (resp.getRemovedIdCount() == 0) {
+            telegrafLeases.recordValidated(tid, fingerprint, generation);
         }
 
         return resp.build();
     }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final long hits = fastPathHits.get();
+        final long total = hits + fastPathMisses.get();
+
+        final List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("telegraf.keepalive.fastpath.hits", hits));
+        metrics.add(new Metric<>("telegraf.keepalive.fastpath.misses", total - hits));
+        metrics.add(new Metric<>("telegraf.keepalive.fastpath.ratio", total > 0 ? (double) hits / total : 0.0));
+        return metrics;
+    }
 }
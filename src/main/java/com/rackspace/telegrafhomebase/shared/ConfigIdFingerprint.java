@@ -0,0 +1,30 @@
+package com.rackspace.telegrafhomebase.shared;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Computes a compact, order-independent fingerprint of a set of config IDs.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+public class ConfigIdFingerprint {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private ConfigIdFingerprint() {
+    }
+
+    public static long of(Collection<String> configIds) {
+        long fingerprint = configIds.size();
+        for (String configId : configIds) {
+            // addition keeps this independent of the order the telegraf reported them
+            fingerprint += HASH_FUNCTION.hashString(configId, StandardCharsets.UTF_8).asLong();
+        }
+        return fingerprint;
+    }
+}
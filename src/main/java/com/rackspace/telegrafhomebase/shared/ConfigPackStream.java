@@ -0,0 +1,505 @@
+package com.rackspace.telegrafhomebase.shared;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.Assert;
+import remote.Telegraf;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps the grpc config response stream of a single remote telegraf with a bounded outbound queue.
+ * Config packs are only written to the underlying stream while grpc reports it as ready, so a slow or stalled
+ * telegraf accumulates queued packs rather than holding up the thread that produced them.
+ *
+ * <p>
+ *     When backed by a {@link ServerCallStreamObserver}, this MUST be constructed before the grpc service
+ *     method returns since that is the only time the on-ready and on-cancel handlers can be registered.
+ * </p>
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Slf4j
+public class ConfigPackStream implements StreamObserver<Telegraf.ConfigPack> {
+
+    private final String tid;
+    /**
+     * Distinguishes this stream from earlier and later streams of the same telegraf.
+     */
+    private final String connectionId = UUID.randomUUID().toString();
+    private final StreamObserver<Telegraf.ConfigPack> delegate;
+    /**
+     * Non-null only when the delegate is a server call that supports flow control.
+     */
+    private final ServerCallStreamObserver<Telegraf.ConfigPack> serverCall;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Listener listener;
+    /**
+     * Guards the queue and the closed/resync/terminal state.
+     */
+    private final Deque<Pending> queue = new ArrayDeque<>();
+    /**
+     * Ensures only one thread at a time writes to the delegate, since grpc stream observers are not thread-safe.
+     * That includes terminating the delegate, which is done by whichever thread owns the drain.
+     */
+    private final AtomicBoolean draining = new AtomicBoolean();
+    /**
+     * The removals within config packs dropped for a resync, which are sent again by the resync.
+     */
+    private final Set<String> droppedRemovedIds = new LinkedHashSet<>();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private boolean closed;
+    private boolean resyncNeeded;
+    /**
+     * The termination of the delegate that is waiting for the drain to be free.
+     */
+    private Runnable pendingTerminal;
+    /**
+     * The sequence of the telegraf's direct assignments that has been offered to it so far
+     */
+    private volatile long assignmentSequence;
+
+    public ConfigPackStream(String tid,
+                            StreamObserver<Telegraf.ConfigPack> delegate,
+                            int capacity,
+                            OverflowPolicy overflowPolicy,
+                            Listener listener) {
+        Assert.isTrue(capacity > 0, "capacity must be positive");
+        this.tid = tid;
+        this.delegate = delegate;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.listener = listener;
+
+        if (delegate instanceof ServerCallStreamObserver) {
+            serverCall = (ServerCallStreamObserver<Telegraf.ConfigPack>) delegate;
+            serverCall.setOnReadyHandler(this::drain);
+            serverCall.setOnCancelHandler(this::handleCancelled);
+        } else {
+            serverCall = null;
+        }
+    }
+
+    public String getTid() {
+        return tid;
+    }
+
+    public String getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * @return the number of config packs waiting for the stream to become ready
+     */
+    public int getDepth() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getAssignmentSequence() {
+        return assignmentSequence;
+    }
+
+    public void setAssignmentSequence(long assignmentSequence) {
+        this.assignmentSequence = assignmentSequence;
+    }
+
+    public boolean isClosed() {
+        synchronized (queue) {
+            return closed;
+        }
+    }
+
+    /**
+     * Queues the given config pack for delivery without blocking on the remote telegraf.
+     *
+     * @param configPack the config pack to deliver
+     * @param callback optional, notified once the config pack is written to the stream or is abandoned
+     */
+    public void offer(Telegraf.ConfigPack configPack, DeliveryCallback callback) {
+        List<Pending> abandoned = Collections.emptyList();
+        boolean overflowed = false;
+        boolean dropped = false;
+
+        synchronized (queue) {
+            if (closed) {
+                abandoned = Collections.singletonList(new Pending(configPack, callback));
+            } else if (queue.size() < capacity) {
+                queue.addLast(new Pending(configPack, callback));
+                // a later config pack supersedes dropped removals of the same inputs
+                trackDroppedRemovals(configPack);
+            } else {
+                switch (overflowPolicy) {
+                    case COALESCE:
+                        queue.peekLast().merge(configPack, callback);
+                        coalescedCount.incrementAndGet();
+                        trackDroppedRemovals(configPack);
+                        break;
+
+                    case DROP_AND_RESYNC:
+                        abandoned = new ArrayList<>(queue);
+                        abandoned.add(new Pending(configPack, callback));
+                        queue.clear();
+                        droppedCount.addAndGet(abandoned.size());
+                        // in queued order, so the net removals remain
+                        abandoned.forEach(pending -> {
+                            droppedRemovedIds.addAll(pending.configPack.getRemovedIdsList());
+                            trackDroppedRemovals(pending.configPack);
+                        });
+                        dropped = true;
+                        break;
+
+                    case DISCONNECT:
+                        abandoned = new ArrayList<>(queue);
+                        abandoned.add(new Pending(configPack, callback));
+                        queue.clear();
+                        droppedCount.addAndGet(abandoned.size());
+                        closed = true;
+                        overflowed = true;
+                        break;
+                }
+            }
+        }
+
+        abandoned.forEach(Pending::failed);
+
+        if (dropped) {
+            // only requested after the abandoned callbacks ran, so the resync includes whatever they recorded
+            synchronized (queue) {
+                resyncNeeded = true;
+            }
+        }
+
+        if (overflowed) {
+            log.warn("Disconnecting telegraf={} since its outbound queue overflowed", tid);
+            terminate(() -> delegate.onError(Status.RESOURCE_EXHAUSTED
+                                                     .withDescription("Outbound config queue overflowed")
+                                                     .asRuntimeException()));
+            listener.handleStreamClosed(this);
+        } else {
+            drain();
+        }
+    }
+
+    /**
+     * Stops re-sending dropped removals of the inputs that the given config pack starts again.
+     */
+    private void trackDroppedRemovals(Telegraf.ConfigPackOrBuilder configPack) {
+        if (!droppedRemovedIds.isEmpty()) {
+            configPack.getNewList().forEach(config -> droppedRemovedIds.remove(config.getId()));
+        }
+    }
+
+    @Override
+    public void onNext(Telegraf.ConfigPack configPack) {
+        offer(configPack, null);
+    }
+
+    /**
+     * Abandons anything queued and passes the error along to the remote telegraf. Since the caller initiated this,
+     * the {@link Listener} is not notified.
+     */
+    @Override
+    public void onError(Throwable throwable) {
+        if (close()) {
+            terminate(() -> delegate.onError(throwable));
+        }
+    }
+
+    /**
+     * Abandons anything queued and completes the stream to the remote telegraf. Since the caller initiated this,
+     * the {@link Listener} is not notified.
+     */
+    @Override
+    public void onCompleted() {
+        if (close()) {
+            terminate(delegate::onCompleted);
+        }
+    }
+
+    /**
+     * Hands the given termination of the delegate to the drain, so it can't race a send in progress.
+     */
+    private void terminate(Runnable terminal) {
+        synchronized (queue) {
+            pendingTerminal = terminal;
+        }
+        drain();
+    }
+
+    /**
+     * Emits the pending termination, if any, which must only be called while owning the drain.
+     */
+    private void emitTerminal() {
+        final Runnable terminal;
+        synchronized (queue) {
+            terminal = pendingTerminal;
+            pendingTerminal = null;
+        }
+        if (terminal != null) {
+            try {
+                terminal.run();
+            } catch (Exception e) {
+                log.debug("Unable to terminate stream of telegraf={}", tid, e);
+            }
+        }
+    }
+
+    private boolean close() {
+        final List<Pending> abandoned;
+        synchronized (queue) {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            abandoned = new ArrayList<>(queue);
+            queue.clear();
+        }
+
+        abandoned.forEach(Pending::failed);
+        return true;
+    }
+
+    /**
+     * Called by grpc as soon as the remote telegraf goes away, which is typically well before a send would fail.
+     */
+    private void handleCancelled() {
+        if (close()) {
+            log.debug("Farend telegraf={} cancelled its stream", tid);
+            listener.handleStreamClosed(this);
+        }
+    }
+
+    private boolean isReady() {
+        return serverCall == null || serverCall.isReady();
+    }
+
+    private Pending nextIfReady() {
+        synchronized (queue) {
+            if (closed || queue.isEmpty() || !isReady()) {
+                return null;
+            }
+            return queue.pollFirst();
+        }
+    }
+
+    private boolean hasReadyWork() {
+        synchronized (queue) {
+            return pendingTerminal != null || (!closed && !queue.isEmpty() && isReady());
+        }
+    }
+
+    private void drain() {
+        while (draining.compareAndSet(false, true)) {
+            try {
+                Pending next;
+                while ((next = nextIfReady()) != null) {
+                    if (!send(next)) {
+                        break;
+                    }
+                }
+                emitTerminal();
+            } finally {
+                draining.set(false);
+            }
+
+            // re-check in case something got queued after our last look, but before releasing the drain
+            if (!hasReadyWork()) {
+                break;
+            }
+        }
+
+        final boolean resync;
+        final List<String> removedIds;
+        synchronized (queue) {
+            resync = resyncNeeded && !closed && queue.isEmpty();
+            if (resync) {
+                resyncNeeded = false;
+                removedIds = new ArrayList<>(droppedRemovedIds);
+                droppedRemovedIds.clear();
+            } else {
+                removedIds = Collections.emptyList();
+            }
+        }
+        if (resync) {
+            log.debug("Requesting resync of telegraf={} after its outbound queue drained", tid);
+            if (!removedIds.isEmpty()) {
+                offer(Telegraf.ConfigPack.newBuilder().addAllRemovedIds(removedIds).build(), null);
+            }
+            listener.handleResyncNeeded(this);
+        }
+    }
+
+    private boolean send(Pending pending) {
+        final Telegraf.ConfigPack configPack = pending.configPack.build();
+        try {
+            log.debug("Sending configPack={} to telegraf={}", configPack, tid);
+            delegate.onNext(configPack);
+        } catch (RuntimeException e) {
+            // anything else, such as writing to an already completed call, leaves the stream just as unusable
+            if (e instanceof StatusRuntimeException &&
+                    ((StatusRuntimeException) e).getStatus().getCode() == Status.Code.CANCELLED) {
+                log.debug("Farend telegraf={} cancelled", tid);
+            } else {
+                log.warn("Observed exception providing config pack to telegraf={}", tid, e);
+            }
+
+            // fails the ones still queued as well
+            pending.failed();
+            if (close()) {
+                listener.handleStreamClosed(this);
+            }
+            return false;
+        }
+
+        pending.delivered();
+        return true;
+    }
+
+    /**
+     * Decides what happens when a config pack is offered to an outbound queue that is already full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Merges the offered config pack into the most recently queued one.
+         */
+        COALESCE,
+        /**
+         * Abandons everything queued and requests a resync of the telegraf once its stream catches up.
+         */
+        DROP_AND_RESYNC,
+        /**
+         * Abandons everything queued and terminates the stream, which requires the telegraf to reconnect.
+         */
+        DISCONNECT
+    }
+
+    public interface DeliveryCallback {
+        /**
+         * Called after the config pack has been written to the stream.
+         */
+        void delivered();
+
+        /**
+         * Called when the config pack will never be written to the stream.
+         */
+        void failed();
+    }
+
+    public interface Listener {
+        /**
+         * Called when the stream was closed due to a cancellation or failure on the far end or a disconnecting
+         * overflow.
+         */
+        void handleStreamClosed(ConfigPackStream stream);
+
+        /**
+         * Called when config packs were dropped due to overflow and the stream has since caught up.
+         */
+        void handleResyncNeeded(ConfigPackStream stream);
+    }
+
+    private static class Pending {
+        final Telegraf.ConfigPack.Builder configPack;
+        final List<DeliveryCallback> callbacks = new ArrayList<>(1);
+
+        Pending(Telegraf.ConfigPack configPack, DeliveryCallback callback) {
+            this.configPack = configPack.toBuilder();
+            if (callback != null) {
+                callbacks.add(callback);
+            }
+        }
+
+        /**
+         * Folds a later config pack into this one, keeping only the latest operation on each input. An input that
+         * was new here and is modified by the later one remains new, but with the later definition.
+         */
+        void merge(Telegraf.ConfigPack other, DeliveryCallback callback) {
+            final Set<String> laterIds = new HashSet<>(other.getRemovedIdsList());
+            other.getNewList().forEach(config -> laterIds.add(config.getId()));
+            other.getModifiedList().forEach(config -> laterIds.add(config.getId()));
+
+            final Set<String> earlierNewIds = new HashSet<>();
+            configPack.getNewList().forEach(config -> earlierNewIds.add(config.getId()));
+
+            final List<Telegraf.Config> keptNew = new ArrayList<>();
+            configPack.getNewList().stream()
+                    .filter(config -> !laterIds.contains(config.getId()))
+                    .forEach(keptNew::add);
+            final List<Telegraf.Config> keptModified = new ArrayList<>();
+            configPack.getModifiedList().stream()
+                    .filter(config -> !laterIds.contains(config.getId()))
+                    .forEach(keptModified::add);
+            final List<String> keptRemovedIds = new ArrayList<>();
+            configPack.getRemovedIdsList().stream()
+                    .filter(id -> !laterIds.contains(id))
+                    .forEach(keptRemovedIds::add);
+
+            other.getNewList().forEach(keptNew::add);
+            other.getModifiedList().forEach(config -> {
+                if (earlierNewIds.contains(config.getId())) {
+                    keptNew.add(config);
+                } else {
+                    keptModified.add(config);
+                }
+            });
+            keptRemovedIds.addAll(other.getRemovedIdsList());
+
+            configPack.clearNew().addAllNew(keptNew)
+                    .clearModified().addAllModified(keptModified)
+                    .clearRemovedIds().addAllRemovedIds(keptRemovedIds);
+            if (other.getAssignmentSequence() != 0) {
+                configPack.setAssignmentSequence(other.getAssignmentSequence());
+            }
+
+            if (callback != null) {
+                callbacks.add(callback);
+            }
+        }
+
+        void delivered() {
+            callbacks.forEach(callback -> {
+                try {
+                    callback.delivered();
+                } catch (Exception e) {
+                    log.warn("Unexpected exception from delivery callback", e);
+                }
+            });
+        }
+
+        void failed() {
+            callbacks.forEach(callback -> {
+                try {
+                    callback.failed();
+                } catch (Exception e) {
+                    log.warn("Unexpected exception from delivery callback", e);
+                }
+            });
+        }
+    }
+}
@@ -1,23 +1,27 @@
 package com.rackspace.telegrafhomebase.shared;
 
-import io.grpc.stub.StreamObserver;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
-import remote.Telegraf;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This is a concurrency-safe maintainer of config grpc response streams for a "bundle" of remote telegrafs in
- * a region. It will take care of randomly picking from the known response streams and removing from the bundle
- * when the handler indicates a stream is discontinued.
+ * a region. It will take care of picking from the known response streams, as decided by a {@link PlacementStrategy},
+ * and removing from the bundle when the handler indicates a stream is discontinued.
+ *
+ * <p>
+ *     The entries are kept as an immutable snapshot that is replaced on each change, so handlers are invoked
+ *     without holding the lock. That way connects and disconnects of a region never wait behind the network
+ *     and grid operations performed by a handler.
+ * </p>
  *
  * @author Geoff Bourne
  * @since Jul 2017
@@ -26,21 +30,25 @@ import java.util.concurrent.locks.ReentrantLock;
 public class ConfigResponseStreamBundle implements Closeable, TelegrafDisconnectFunction {
 
     /**
-     * Used around all access to entries.
+     * Used around all changes to entries.
      */
     private final ReentrantLock lock;
     /**
      * Used to conditionally block on emptiness of entries.
      */
     private final Condition notEmpty;
-    private final List<Entry> entries = new ArrayList<>();
+    /**
+     * An immutable snapshot that is replaced while holding the lock.
+     */
+    private volatile List<Entry> entries = Collections.emptyList();
 
-    private final Random rand;
+    private final PlacementStrategy placementStrategy;
     private final TelegrafDisconnectFunction removalFunction;
+    private final List<Runnable> readyListeners = new CopyOnWriteArrayList<>();
     private boolean closed;
 
-    public ConfigResponseStreamBundle(Random rand, TelegrafDisconnectFunction removalFunction) {
-        this.rand = rand;
+    public ConfigResponseStreamBundle(PlacementStrategy placementStrategy, TelegrafDisconnectFunction removalFunction) {
+        this.placementStrategy = placementStrategy;
         this.removalFunction = removalFunction;
         lock = new ReentrantLock();
         notEmpty = lock.newCondition();
@@ -57,7 +65,7 @@ public class ConfigResponseStreamBundle implements Closeable, TelegrafDisconnect
         lock.lock();
         try {
             closed = true;
-            notEmpty.signal();
+            notEmpty.signalAll();
         } finally {
             lock.unlock();
         }
@@ -82,38 +90,66 @@ public class ConfigResponseStreamBundle implements Closeable, TelegrafDisconnect
         }
     }
 
-    public void add(Entry entry) {
-        log.debug("Adding {}", entry);
+    /**
+     * Registers a non-blocking alternative to {@link #waitForReady()}. The given listener is called, outside of
+     * the lock, each time the bundle goes from empty to having an entry.
+     */
+    public void addReadyListener(Runnable listener) {
+        readyListeners.add(listener);
+    }
+
+    public boolean isClosed() {
         lock.lock();
         try {
-            entries.add(entry);
-            notEmpty.signal();
+            return closed;
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * Picks a configuration stream entry at random and calls the given <code>handler</code> with it.
-     * @param handler will be called for one of the entries at random
+     * @return true if there are currently no entries to pick from
      */
-    public void respondToOne(EntryPredicate handler) {
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public void add(Entry entry) {
+        log.debug("Adding {}", entry);
+        final boolean becameReady;
         lock.lock();
         try {
-            final int choice = rand.nextInt(entries.size());
-
-            final Entry entry = entries.get(choice);
-            final boolean keep = handler.invoke(entry);
-            if (!keep) {
-                log.debug("Removing due to handler response {}", entry);
-                entries.remove(choice);
-                removalFunction.handleDisconnect(entry.getTid());
-            }
-
+            becameReady = entries.isEmpty();
+            final List<Entry> updated = new ArrayList<>(entries.size() + 1);
+            updated.addAll(entries);
+            updated.add(entry);
+            entries = Collections.unmodifiableList(updated);
+            placementStrategy.added(entry);
+            notEmpty.signalAll();
         } finally {
             lock.unlock();
         }
 
+        if (becameReady) {
+            readyListeners.forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * Picks a configuration stream entry using the placement strategy, without holding the lock.
+     *
+     * @return the picked entry or null if there are currently no entries
+     */
+    public Entry select() {
+        final List<Entry> snapshot = entries;
+        return snapshot.isEmpty() ? null : placementStrategy.select(snapshot);
+    }
+
+    /**
+     * Removes an entry previously obtained from {@link #select()}, such as when its stream was found to be closed.
+     */
+    public void discard(Entry entry) {
+        remove(entry);
     }
 
     /**
@@ -123,33 +159,59 @@ public class ConfigResponseStreamBundle implements Closeable, TelegrafDisconnect
      * @param handler will be called for each entry
      */
     public void respondToAll(EntryPredicate handler) {
+        for (Entry entry : entries) {
+            final boolean keep = handler.invoke(entry);
+            if (!keep) {
+                remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Removes the entry of the given stream, if present. Entries of a newer stream of the same telegraf are kept.
+     */
+    @Override
+    public void handleDisconnect(ConfigPackStream stream) {
         lock.lock();
         try {
-            final Iterator<Entry> itr = entries.iterator();
-            while (itr.hasNext()) {
-                final Entry entry = itr.next();
-                final boolean keep = handler.invoke(entry);
-                if (!keep) {
-                    log.debug("Removing due to handler response {}", entry);
-                    itr.remove();
-                    removalFunction.handleDisconnect(entry.getTid());
+            final List<Entry> updated = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                if (entry.getStream() == stream) {
+                    placementStrategy.removed(entry);
+                } else {
+                    updated.add(entry);
                 }
             }
-
+            if (updated.size() != entries.size()) {
+                entries = Collections.unmodifiableList(updated);
+            }
         } finally {
             lock.unlock();
         }
-
     }
 
-    @Override
-    public void handleDisconnect(String tid) {
+    /**
+     * Removes the given entry, if still present, and notifies the removal function outside of the lock.
+     */
+    private void remove(Entry entry) {
+        final boolean removed;
         lock.lock();
         try {
-            entries.removeIf(entry -> entry.getTid().equals(tid));
+            final List<Entry> updated = new ArrayList<>(entries);
+            // the handler may have already caused the removal of the entry
+            removed = updated.remove(entry);
+            if (removed) {
+                entries = Collections.unmodifiableList(updated);
+                placementStrategy.removed(entry);
+            }
         } finally {
             lock.unlock();
         }
+
+        if (removed) {
+            log.debug("Removing due to handler response {}", entry);
+            removalFunction.handleDisconnect(entry.getStream());
+        }
     }
 
     public interface EntryPredicate {
@@ -166,7 +228,7 @@ public class ConfigResponseStreamBundle implements Closeable, TelegrafDisconnect
          * The ID of the remote telegraf instance.
          */
         final String tid;
-        final StreamObserver<Telegraf.ConfigPack> stream;
+        final ConfigPackStream stream;
 
     }
 }
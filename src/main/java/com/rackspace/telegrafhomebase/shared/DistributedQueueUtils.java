@@ -12,6 +12,22 @@ public class DistributedQueueUtils {
         return QueueNames.PREFIX_PENDING_CONFIG + region;
     }
 
+    /**
+     * The first shard of a region uses the same name as the un-sharded queue, so a region can go from one
+     * to many shards without losing what's already queued.
+     */
+    public static String derivePendingConfigQueueName(String region, int shard) {
+        return shard == 0 ? derivePendingConfigQueueName(region) :
+                derivePendingConfigQueueName(region) + "-" + shard;
+    }
+
+    /**
+     * Consistently maps a config ID to one of the given number of shards.
+     */
+    public static int derivePendingConfigShard(String configId, int shards) {
+        return Math.floorMod(configId.hashCode(), shards);
+    }
+
     public static String deriveAssignedQueueName(String tid) {
         return QueueNames.PREFIX_ASSIGNMENTS + tid;
     }
@@ -0,0 +1,15 @@
+package com.rackspace.telegrafhomebase.shared;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class InvalidCursorException extends Exception {
+    public InvalidCursorException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,44 @@
+package com.rackspace.telegrafhomebase.shared;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the telegraf of the bundle that is running the fewest inputs, as ordered by a {@link TelegrafLoadIndex}.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+public class LeastLoadedPlacementStrategy implements PlacementStrategy {
+
+    private final TelegrafLoadIndex loadIndex;
+    private final Map<String/*tid*/, ConfigResponseStreamBundle.Entry> entries = new ConcurrentHashMap<>();
+
+    public LeastLoadedPlacementStrategy(TelegrafLoadIndex loadIndex) {
+        this.loadIndex = loadIndex;
+    }
+
+    @Override
+    public ConfigResponseStreamBundle.Entry select(List<ConfigResponseStreamBundle.Entry> candidates) {
+        final String tid = loadIndex.peekLeastLoaded();
+        final ConfigResponseStreamBundle.Entry entry = tid != null ? entries.get(tid) : null;
+
+        // the snapshot of candidates might be slightly behind the index, so fall back to any candidate
+        return entry != null ? entry : candidates.get(0);
+    }
+
+    @Override
+    public void added(ConfigResponseStreamBundle.Entry entry) {
+        entries.put(entry.getTid(), entry);
+        loadIndex.track(entry.getTid());
+    }
+
+    @Override
+    public void removed(ConfigResponseStreamBundle.Entry entry) {
+        // a reconnect of the same telegraf may have already replaced the entry
+        if (entries.remove(entry.getTid(), entry)) {
+            loadIndex.untrack(entry.getTid());
+        }
+    }
+}
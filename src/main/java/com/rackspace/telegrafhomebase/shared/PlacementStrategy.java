@@ -0,0 +1,45 @@
+package com.rackspace.telegrafhomebase.shared;
+
+import java.util.List;
+
+/**
+ * Decides which of the remote telegrafs in a {@link ConfigResponseStreamBundle} is given the next regional input.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+public interface PlacementStrategy {
+
+    /**
+     * @param candidates the current entries of the bundle, never empty
+     * @return the chosen entry
+     */
+    ConfigResponseStreamBundle.Entry select(List<ConfigResponseStreamBundle.Entry> candidates);
+
+    /**
+     * Called by the bundle, while holding its lock, when an entry joins the bundle.
+     */
+    default void added(ConfigResponseStreamBundle.Entry entry) {
+    }
+
+    /**
+     * Called by the bundle, while holding its lock, when an entry leaves the bundle.
+     */
+    default void removed(ConfigResponseStreamBundle.Entry entry) {
+    }
+
+    enum Type {
+        /**
+         * Picks uniformly at random.
+         */
+        RANDOM,
+        /**
+         * Picks two at random and chooses the one running fewer inputs.
+         */
+        POWER_OF_TWO_CHOICES,
+        /**
+         * Chooses the telegraf running the fewest inputs.
+         */
+        LEAST_LOADED
+    }
+}
@@ -0,0 +1,40 @@
+package com.rackspace.telegrafhomebase.shared;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Picks two telegrafs at random and chooses the one running fewer inputs, which keeps the spread of load
+ * narrow without needing every telegraf's load to be ordered.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+public class PowerOfTwoChoicesPlacementStrategy implements PlacementStrategy {
+
+    private final Random rand;
+    private final TelegrafLoadIndex loadIndex;
+
+    public PowerOfTwoChoicesPlacementStrategy(Random rand, TelegrafLoadIndex loadIndex) {
+        this.rand = rand;
+        this.loadIndex = loadIndex;
+    }
+
+    @Override
+    public ConfigResponseStreamBundle.Entry select(List<ConfigResponseStreamBundle.Entry> candidates) {
+        final int size = candidates.size();
+        if (size == 1) {
+            return candidates.get(0);
+        }
+
+        final int first = rand.nextInt(size);
+        // pick a distinct second by offsetting from the first
+        final int second = (first + 1 + rand.nextInt(size - 1)) % size;
+
+        final ConfigResponseStreamBundle.Entry firstEntry = candidates.get(first);
+        final ConfigResponseStreamBundle.Entry secondEntry = candidates.get(second);
+
+        return loadIndex.getLoad(secondEntry.getTid()) < loadIndex.getLoad(firstEntry.getTid()) ?
+                secondEntry : firstEntry;
+    }
+}
@@ -0,0 +1,22 @@
+package com.rackspace.telegrafhomebase.shared;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+public class RandomPlacementStrategy implements PlacementStrategy {
+
+    private final Random rand;
+
+    public RandomPlacementStrategy(Random rand) {
+        this.rand = rand;
+    }
+
+    @Override
+    public ConfigResponseStreamBundle.Entry select(List<ConfigResponseStreamBundle.Entry> candidates) {
+        return candidates.get(rand.nextInt(candidates.size()));
+    }
+}
@@ -5,5 +5,8 @@ package com.rackspace.telegrafhomebase.shared;
  * @since Aug 2017
  */
 public interface TelegrafDisconnectFunction {
-    void handleDisconnect(String tid);
+    /**
+     * @param stream the stream that was discontinued, which may no longer be the telegraf's current one
+     */
+    void handleDisconnect(ConfigPackStream stream);
 }
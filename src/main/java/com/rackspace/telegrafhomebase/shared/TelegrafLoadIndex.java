@@ -0,0 +1,134 @@
+package com.rackspace.telegrafhomebase.shared;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An indexed min-heap of the number of inputs running on each tracked telegraf. Loads are remembered for
+ * telegrafs that are not tracked, so a telegraf that re-joins the heap starts with what it was last known to run.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+public class TelegrafLoadIndex {
+
+    private final List<String/*tid*/> heap = new ArrayList<>();
+    private final Map<String/*tid*/, Integer> positions = new HashMap<>();
+    private final Map<String/*tid*/, Integer> loads = new HashMap<>();
+
+    /**
+     * Adds the telegraf to the heap, if not already present.
+     */
+    public synchronized void track(String tid) {
+        if (positions.containsKey(tid)) {
+            return;
+        }
+
+        heap.add(tid);
+        positions.put(tid, heap.size() - 1);
+        siftUp(heap.size() - 1);
+    }
+
+    /**
+     * Removes the telegraf from the heap, but retains its load if non-zero.
+     */
+    public synchronized void untrack(String tid) {
+        final Integer pos = positions.remove(tid);
+        if (pos == null) {
+            return;
+        }
+
+        final int last = heap.size() - 1;
+        final String moved = heap.remove(last);
+        if (pos != last) {
+            heap.set(pos, moved);
+            positions.put(moved, pos);
+            siftDown(pos);
+            siftUp(pos);
+        }
+
+        if (getLoad(tid) == 0) {
+            loads.remove(tid);
+        }
+    }
+
+    /**
+     * Adjusts the load of the given telegraf, which doesn't need to be tracked. Loads never go below zero.
+     */
+    public synchronized void adjust(String tid, int delta) {
+        final int updated = Math.max(0, getLoad(tid) + delta);
+
+        final Integer pos = positions.get(tid);
+        if (updated == 0 && pos == null) {
+            loads.remove(tid);
+            return;
+        }
+        loads.put(tid, updated);
+
+        if (pos != null) {
+            if (delta < 0) {
+                siftUp(pos);
+            } else {
+                siftDown(pos);
+            }
+        }
+    }
+
+    public synchronized int getLoad(String tid) {
+        return loads.getOrDefault(tid, 0);
+    }
+
+    /**
+     * @return the tracked telegraf with the least load or null if none are tracked
+     */
+    public synchronized String peekLeastLoaded() {
+        return heap.isEmpty() ? null : heap.get(0);
+    }
+
+    public synchronized int size() {
+        return heap.size();
+    }
+
+    private void siftUp(int pos) {
+        while (pos > 0) {
+            final int parent = (pos - 1) / 2;
+            if (loadAt(pos) >= loadAt(parent)) {
+                break;
+            }
+            swap(pos, parent);
+            pos = parent;
+        }
+    }
+
+    private void siftDown(int pos) {
+        final int size = heap.size();
+        while (true) {
+            final int left = 2 * pos + 1;
+            if (left >= size) {
+                break;
+            }
+            final int right = left + 1;
+            final int smallest = right < size && loadAt(right) < loadAt(left) ? right : left;
+            if (loadAt(pos) <= loadAt(smallest)) {
+                break;
+            }
+            swap(pos, smallest);
+            pos = smallest;
+        }
+    }
+
+    private int loadAt(int pos) {
+        return getLoad(heap.get(pos));
+    }
+
+    private void swap(int a, int b) {
+        final String tidA = heap.get(a);
+        final String tidB = heap.get(b);
+        heap.set(a, tidB);
+        heap.set(b, tidA);
+        positions.put(tidB, a);
+        positions.put(tidA, b);
+    }
+}
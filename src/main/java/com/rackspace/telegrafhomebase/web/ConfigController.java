@@ -1,28 +1,52 @@
 package com.rackspace.telegrafhomebase.web;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.RuntimeJsonMappingException;
 import com.rackspace.telegrafhomebase.model.AssignedInputDefinition;
+import com.rackspace.telegrafhomebase.model.BulkCreateResponse;
+import com.rackspace.telegrafhomebase.model.BulkInputDefinition;
 import com.rackspace.telegrafhomebase.model.ConfigResponse;
 import com.rackspace.telegrafhomebase.model.ManagedInputExt;
+import com.rackspace.telegrafhomebase.model.ManagedInputPage;
+import com.rackspace.telegrafhomebase.model.ManagedInputUpdate;
 import com.rackspace.telegrafhomebase.model.RegionalInputDefinition;
 import com.rackspace.telegrafhomebase.services.ConfigRepository;
 import com.rackspace.telegrafhomebase.services.TaggingRepository;
+import com.rackspace.telegrafhomebase.shared.InvalidCursorException;
 import com.rackspace.telegrafhomebase.shared.NotFoundException;
 import com.rackspace.telegrafhomebase.shared.NotOwnedException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.validation.ConstraintViolation;
 import javax.validation.Valid;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * This is the REST interface for configuring managed telegraf inputs.
@@ -36,14 +60,21 @@ import java.util.Map;
 @RequestMapping("/config")
 @Slf4j
 public class ConfigController {
+    private static final int MAX_PAGE_LIMIT = 1000;
+    private static final String NDJSON_VALUE = "application/x-ndjson";
 
     private final ConfigRepository configRepository;
     private final TaggingRepository taggingRepository;
+    private final ObjectMapper objectMapper;
+    private final Validator validator;
 
     @Autowired
-    public ConfigController(ConfigRepository configRepository, TaggingRepository taggingRepository) {
+    public ConfigController(ConfigRepository configRepository, TaggingRepository taggingRepository,
+                            ObjectMapper objectMapper, Validator validator) {
         this.configRepository = configRepository;
         this.taggingRepository = taggingRepository;
+        this.objectMapper = objectMapper;
+        this.validator = validator;
     }
 
     @GetMapping("{tenantId}")
@@ -51,11 +82,53 @@ public class ConfigController {
         return configRepository.getAllForTenant(tenantId);
     }
 
+    /**
+     * Gets the tenant's managed inputs a page at a time. The <code>next</code> cursor of each page is passed
+     * as the <code>cursor</code> of the request for the page after it.
+     */
+    @GetMapping("{tenantId}/page")
+    public ManagedInputPage getPageForTenant(@PathVariable String tenantId,
+                                             @RequestParam(required = false) String cursor,
+                                             @RequestParam(defaultValue = "100") int limit)
+            throws InvalidCursorException {
+        return configRepository.getPageForTenant(tenantId, cursor,
+                                                 Math.max(1, Math.min(limit, MAX_PAGE_LIMIT)));
+    }
+
+    /**
+     * Responds with the same JSON array as {@link #getAllForTenant(String)}, but writes each managed input as
+     * it is read rather than building the whole list first.
+     */
+    @GetMapping(value = "{tenantId}/stream", produces = MediaType.APPLICATION_JSON_VALUE)
+    public StreamingResponseBody streamAllForTenant(@PathVariable String tenantId) {
+        return outputStream -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+                generator.writeStartArray();
+                configRepository.streamAllForTenant(tenantId, managedInput -> {
+                    try {
+                        generator.writeObject(managedInput);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                generator.writeEndArray();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        };
+    }
+
     @GetMapping("{tenantId}/{id}")
     public ManagedInputExt getOne(@PathVariable String tenantId, @PathVariable String id) throws NotFoundException, NotOwnedException {
         return configRepository.getWithDetails(tenantId, id);
     }
 
+    @PutMapping("{tenantId}/{id}")
+    public ManagedInputExt update(@PathVariable String tenantId, @PathVariable String id,
+                                  @RequestBody ManagedInputUpdate update) throws NotFoundException, NotOwnedException {
+        return configRepository.update(tenantId, id, update);
+    }
+
     @DeleteMapping("{tenantId}/{id}")
     public void delete(@PathVariable String tenantId, @PathVariable String id) throws NotOwnedException {
         configRepository.delete(tenantId, id);
@@ -84,6 +157,69 @@ public class ConfigController {
         return resp;
     }
 
+    @PostMapping(value = "{tenantId}/bulk", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public BulkCreateResponse createBulk(@PathVariable String tenantId,
+                                         @RequestBody List<BulkInputDefinition> definitions) {
+        return createValidatedBulk(tenantId, definitions);
+    }
+
+    /**
+     * Accepts the definitions as newline delimited JSON, one definition per line.
+     */
+    @PostMapping(value = "{tenantId}/bulk", consumes = NDJSON_VALUE)
+    public BulkCreateResponse createBulkNdjson(@PathVariable String tenantId,
+                                               InputStream body) throws IOException {
+        final List<BulkInputDefinition> definitions;
+        try (MappingIterator<BulkInputDefinition> values =
+                     objectMapper.readerFor(BulkInputDefinition.class).readValues(body)) {
+            definitions = values.readAll();
+        } catch (JsonProcessingException | RuntimeJsonMappingException e) {
+            throw new HttpMessageNotReadableException("Malformed definition: " + e.getMessage(), e);
+        }
+
+        return createValidatedBulk(tenantId, definitions);
+    }
+
+    /**
+     * Validates each definition on its own, since the elements of a list body are not, and reports the
+     * violations of an invalid one in its item of the response without preventing the others.
+     */
+    private BulkCreateResponse createValidatedBulk(String tenantId, List<BulkInputDefinition> definitions) {
+        final List<String> errors = new ArrayList<>(definitions.size());
+        final List<BulkInputDefinition> valid = new ArrayList<>(definitions.size());
+        for (BulkInputDefinition definition : definitions) {
+            if (definition == null) {
+                errors.add("definition needs to be specified");
+                continue;
+            }
+
+            final Set<ConstraintViolation<BulkInputDefinition>> violations = validator.validate(definition);
+            if (violations.isEmpty()) {
+                errors.add(null);
+                valid.add(definition);
+            } else {
+                errors.add(violations.stream()
+                                   .map(violation -> violation.getPropertyPath() + " " + violation.getMessage())
+                                   .sorted()
+                                   .collect(Collectors.joining(", ")));
+            }
+        }
+
+        final Iterator<BulkCreateResponse.Item> created =
+                configRepository.createBulk(tenantId, valid).getResults().iterator();
+        final BulkCreateResponse response = new BulkCreateResponse();
+        for (String error : errors) {
+            if (error == null) {
+                response.getResults().add(created.next());
+            } else {
+                final BulkCreateResponse.Item item = new BulkCreateResponse.Item();
+                item.setError(error);
+                response.getResults().add(item);
+            }
+        }
+        return response;
+    }
+
     @GetMapping("{tenantId}/tags")
     public Map<String,List<String>> getActiveTags(@PathVariable String tenantId) {
         return taggingRepository.getActiveTags(tenantId);
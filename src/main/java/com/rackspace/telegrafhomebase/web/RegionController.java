@@ -0,0 +1,49 @@
+package com.rackspace.telegrafhomebase.web;
+
+import com.rackspace.telegrafhomebase.model.RegisteredRegion;
+import com.rackspace.telegrafhomebase.services.RegionRegistry;
+import com.rackspace.telegrafhomebase.shared.NotFoundException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * This is the REST interface for managing the regions that remote telegrafs may report.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@RestController
+@RequestMapping("/regions")
+public class RegionController {
+
+    private final RegionRegistry regionRegistry;
+
+    @Autowired
+    public RegionController(RegionRegistry regionRegistry) {
+        this.regionRegistry = regionRegistry;
+    }
+
+    @GetMapping
+    public List<RegisteredRegion> getAll() {
+        return regionRegistry.getAll();
+    }
+
+    @PutMapping("{region}")
+    public void register(@PathVariable String region) {
+        regionRegistry.register(region);
+    }
+
+    @DeleteMapping("{region}")
+    public void unregister(@PathVariable String region) throws NotFoundException {
+        if (!regionRegistry.unregister(region)) {
+            throw new NotFoundException("Region is not registered", region);
+        }
+    }
+}
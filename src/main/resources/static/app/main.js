@@ -41,7 +41,7 @@ angular.module("ConfigApp", [
             },
 
             getConfigs: function() {
-                return $http.get('/config/'+session.tenantId);
+                return $http.get('/config/'+session.tenantId+'/stream');
             },
 
             addRegional: function(region, definition, title) {
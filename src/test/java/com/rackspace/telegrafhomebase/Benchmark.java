@@ -0,0 +1,12 @@
+package com.rackspace.telegrafhomebase;
+
+/**
+ * A JUnit category for tests that only measure and report performance. They are excluded from the regular
+ * build and are run with the <code>benchmark</code> profile, such as
+ * <code>mvn test -Pbenchmark -Dtest=TagMatchingBenchmarkTest</code>.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+public interface Benchmark {
+}
@@ -0,0 +1,127 @@
+package com.rackspace.telegrafhomebase.model;
+
+import com.rackspace.telegrafhomebase.Benchmark;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Slf4j
+public class DirectAssignmentsTest {
+
+    @Test
+    public void testAddAndRemove() throws Exception {
+        final DirectAssignments initial = new DirectAssignments("id-b");
+        final DirectAssignments added = initial.add("id-c").add("id-a");
+        assertThat(added.get(), contains("id-a", "id-b", "id-c"));
+        assertSame(added, added.add("id-b"));
+        // the original is untouched
+        assertThat(initial.get(), contains("id-b"));
+
+        final DirectAssignments removed = added.remove("id-b");
+        assertThat(removed.get(), contains("id-a", "id-c"));
+        assertSame(removed, removed.remove("id-b"));
+        assertTrue(removed.get().contains("id-c"));
+        assertFalse(removed.get().contains("id-b"));
+    }
+
+    @Test
+    public void testAddAll() throws Exception {
+        final DirectAssignments assignments = new DirectAssignments("id-b");
+        assertThat(assignments.addAll(Arrays.asList("id-c", "id-a", "id-b", "id-a")).get(),
+                   contains("id-a", "id-b", "id-c"));
+        assertSame(assignments, assignments.addAll(Arrays.asList("id-b")));
+        assertThat(new DirectAssignments().addAll(Arrays.asList("id-a")).get(), contains("id-a"));
+    }
+
+    @Test
+    public void testDiffs() throws Exception {
+        final DirectAssignments prev = new DirectAssignments().addAll(Arrays.asList("id-a", "id-b", "id-c"));
+        final DirectAssignments updated = prev.remove("id-b").add("id-d");
+
+        assertThat(prev.additionsIn(updated), containsInAnyOrder("id-d"));
+        assertThat(prev.removalsIn(updated), containsInAnyOrder("id-b"));
+        assertNull(prev.additionsIn(prev));
+        assertNull(prev.removalsIn(prev));
+        assertThat(new DirectAssignments().additionsIn(prev), containsInAnyOrder("id-a", "id-b", "id-c"));
+    }
+
+    /**
+     * Compares assigning inputs to a telegraf one at a time, and then diffing the last change, against the
+     * copy-on-write hash set that was previously used.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testCompareWithHashSet() throws Exception {
+        for (int size : Arrays.asList(10, 100, 1_000, 10_000)) {
+            final String[] mids = new String[size];
+            for (int i = 0; i < size; i++) {
+                mids[i] = "managed-input-" + i;
+            }
+            // warm up
+            assignHashSets(mids);
+            assignSortedArrays(mids);
+
+            long start = System.nanoTime();
+            assertEquals(size, assignHashSets(mids));
+            final long hashSetElapsed = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            assertEquals(size, assignSortedArrays(mids));
+            final long sortedArrayElapsed = System.nanoTime() - start;
+
+            log.info("Assigning {} inputs one at a time: hash set {}us, sorted array {}us",
+                     size,
+                     TimeUnit.NANOSECONDS.toMicros(hashSetElapsed),
+                     TimeUnit.NANOSECONDS.toMicros(sortedArrayElapsed));
+        }
+    }
+
+    private static int assignHashSets(String[] mids) {
+        Set<String> assignments = new HashSet<>();
+        Set<String> diff = null;
+        for (String mid : mids) {
+            final Set<String> prev = assignments;
+            assignments = new HashSet<>(prev);
+            assignments.add(mid);
+
+            diff = new HashSet<>(assignments);
+            diff.removeAll(prev);
+            final Set<String> removals = new HashSet<>(prev);
+            removals.removeAll(assignments);
+        }
+        assertEquals(1, diff.size());
+        return assignments.size();
+    }
+
+    private static int assignSortedArrays(String[] mids) {
+        DirectAssignments assignments = new DirectAssignments();
+        Set<String> diff = null;
+        for (String mid : mids) {
+            final DirectAssignments prev = assignments;
+            assignments = prev.add(mid);
+
+            diff = prev.additionsIn(assignments);
+            prev.removalsIn(assignments);
+        }
+        assertEquals(1, diff.size());
+        return assignments.get().size();
+    }
+}
@@ -0,0 +1,135 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.config.IgniteCacheConfigs;
+import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
+import com.rackspace.telegrafhomebase.config.IgniteConfig;
+import com.rackspace.telegrafhomebase.config.IgniteProperties;
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import com.rackspace.telegrafhomebase.model.AssignmentChange;
+import com.rackspace.telegrafhomebase.model.AssignmentJournalKey;
+import org.apache.ignite.IgniteCache;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {
+        IgniteConfig.class,
+        IgniteCacheConfigs.class,
+        IgniteCacheProvider.class,
+        IgniteProperties.class,
+        TelegrafProperties.class,
+        AssignmentJournal.class
+}, properties = {
+        "telegraf.assignment-journal-size=3"
+}, webEnvironment = SpringBootTest.WebEnvironment.NONE)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class AssignmentJournalTest {
+
+    @Autowired
+    AssignmentJournal assignmentJournal;
+
+    @Autowired
+    IgniteCache<AssignmentJournalKey, AssignmentChange> assignmentJournalCache;
+
+    @Test
+    public void testAssignAndReconcile() throws Exception {
+        assertEquals(2, assignmentJournal.assign(new HashSet<>(Arrays.asList("t-1", "t-2")),
+                                                 Collections.singleton("id-1")));
+        // already assigned, so nothing is journaled
+        assertEquals(0, assignmentJournal.assign(Collections.singleton("t-1"), Collections.singleton("id-1")));
+
+        assertTrue(assignmentJournal.reconcile("t-1", Arrays.asList("id-2", "id-3")));
+        assertFalse(assignmentJournal.reconcile("t-1", Arrays.asList("id-3", "id-2")));
+
+        assertEquals(2, assignmentJournal.get("t-1").getSequence());
+        assertThat(assignmentJournal.get("t-1").get(), contains("id-2", "id-3"));
+
+        final AssignmentChange change = assignmentJournalCache.get(new AssignmentJournalKey("t-1", 2));
+        assertThat(change.getAdded(), contains("id-2", "id-3"));
+        assertThat(change.getRemoved(), contains("id-1"));
+    }
+
+    @Test
+    public void testReconcile_stale() throws Exception {
+        final long sequence = assignmentJournal.sequenceOf("t-1");
+        assertEquals(0, sequence);
+
+        // assigned by a concurrent fan-out after the reconciling lookup
+        assignmentJournal.assign(Collections.singleton("t-1"), Collections.singleton("id-new"));
+
+        assertFalse(assignmentJournal.reconcile("t-1", Collections.singleton("id-1"), sequence));
+        assertThat(assignmentJournal.get("t-1").get(), contains("id-new"));
+
+        assertTrue(assignmentJournal.reconcile("t-1", Arrays.asList("id-1", "id-new"),
+                                               assignmentJournal.sequenceOf("t-1")));
+        assertThat(assignmentJournal.get("t-1").get(), contains("id-1", "id-new"));
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        assignmentJournal.assign(Collections.singleton("t-1"), Arrays.asList("id-1", "id-2"));
+
+        // not assigned, so nothing to refresh
+        assertFalse(assignmentJournal.refresh("t-1", Collections.singleton("id-other")));
+        assertTrue(assignmentJournal.refresh("t-1", Arrays.asList("id-1", "id-other")));
+
+        assertEquals(2, assignmentJournal.get("t-1").getSequence());
+        assertThat(assignmentJournal.get("t-1").get(), contains("id-1", "id-2"));
+        // resuming from before the refresh sends the refreshed input again
+        assertThat(AssignmentJournal.collapse(assignmentJournal.changesSince("t-1", 1, 2)).getAdded(),
+                   contains("id-1"));
+    }
+
+    @Test
+    public void testChangesSince() throws Exception {
+        assignmentJournal.assign(Collections.singleton("t-1"), Collections.singleton("id-1"));
+        assignmentJournal.assign(Collections.singleton("t-1"), Collections.singleton("id-2"));
+        assignmentJournal.reconcile("t-1", Collections.singleton("id-2"));
+
+        final List<AssignmentChange> changes = assignmentJournal.changesSince("t-1", 1, 3);
+        assertNotNull(changes);
+        assertEquals(2, changes.size());
+
+        final AssignmentChange collapsed = AssignmentJournal.collapse(changes);
+        assertEquals(3, collapsed.getSequence());
+        assertThat(collapsed.getAdded(), contains("id-2"));
+        assertThat(collapsed.getRemoved(), contains("id-1"));
+
+        // added and then removed within the span nets out to nothing
+        assertThat(AssignmentJournal.collapse(assignmentJournal.changesSince("t-1", 0, 3)).getRemoved(), empty());
+    }
+
+    @Test
+    public void testChangesSince_trimmed() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            assignmentJournal.assign(Collections.singleton("t-1"), Collections.singleton("id-" + i));
+        }
+
+        assertNull(assignmentJournal.changesSince("t-1", 0, 5));
+        assertEquals(3, assignmentJournal.changesSince("t-1", 2, 5).size());
+        // a stale sequence far behind is turned down without building a key for each sequence in between
+        assertNull(assignmentJournal.changesSince("t-1", 0, Long.MAX_VALUE));
+    }
+}
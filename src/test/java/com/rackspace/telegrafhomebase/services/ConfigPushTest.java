@@ -0,0 +1,312 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.config.IgniteCacheConfigs;
+import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
+import com.rackspace.telegrafhomebase.config.IgniteConfig;
+import com.rackspace.telegrafhomebase.config.IgniteProperties;
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import com.rackspace.telegrafhomebase.model.ManagedInput;
+import com.rackspace.telegrafhomebase.model.ManagedInputUpdate;
+import com.rackspace.telegrafhomebase.model.RunningAssignedInputKey;
+import com.rackspace.telegrafhomebase.model.RunningRegionalInputKey;
+import com.rackspace.telegrafhomebase.shared.ConfigPackStream;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.apache.ignite.Ignite;
+import org.apache.ignite.IgniteCache;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+import remote.Telegraf;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Covers the config packs pushed to already running telegrafs when their inputs change or are deleted, and what
+ * a resuming telegraf keeps running.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {
+        IgniteConfig.class,
+        IgniteCacheConfigs.class,
+        IgniteCacheProvider.class,
+        IgniteProperties.class,
+        TelegrafProperties.class,
+        ConfigRepository.class,
+        TelegrafHandles.class,
+        TaggingRepository.class,
+        RegionRegistry.class,
+        PendingConfigQueuer.class,
+        RegionalLoadTracker.class,
+        ConfigPackStreams.class,
+        ConfigPackResponderImpl.class,
+        AssignmentJournal.class,
+        TelegrafLeases.class,
+        AssignmentGeneration.class,
+        TelegrafWellBeingHandler.class,
+        ConfigPushTest.TestConfig.class
+}, properties = {
+        "telegraf.regions[0]=west"
+}, webEnvironment = SpringBootTest.WebEnvironment.NONE)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class ConfigPushTest {
+
+    @Configuration
+    @EnableConfigurationProperties
+    static class TestConfig {
+        @Bean
+        public Random rand() {
+            return new Random();
+        }
+    }
+
+    @Autowired
+    ConfigPackResponder configPackResponder;
+
+    @Autowired
+    ConfigPackStreams configPackStreams;
+
+    @Autowired
+    PendingConfigQueuer pendingConfigQueuer;
+
+    @Autowired
+    ConfigRepository configRepository;
+
+    @Autowired
+    TelegrafProperties telegrafProperties;
+
+    @Autowired
+    AssignmentJournal assignmentJournal;
+
+    @Autowired
+    TelegrafWellBeingHandler wellBeingHandler;
+
+    @Autowired
+    TelegrafLeases telegrafLeases;
+
+    @Autowired
+    IgniteCache<String, ManagedInput> managedInputsCache;
+
+    @Autowired
+    IgniteCache<RunningRegionalInputKey, String> runningRegionalInputsCache;
+
+    @Autowired
+    IgniteCache<RunningAssignedInputKey, String> runningAssignedInputsCache;
+
+    @Autowired
+    Ignite ignite;
+
+    @MockBean
+    IdCreator idCreator;
+
+    @MockBean
+    TaskExecutor taskExecutor;
+
+    @MockBean
+    CounterService counterService;
+
+    @MockBean
+    GaugeService gaugeService;
+
+    @Before
+    public void setUp() throws Exception {
+        // runs the pushes inline
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArguments()[0]).run();
+            return null;
+        }).when(taskExecutor).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void testModifiedPushedOnUpdate() throws Exception {
+        final ServerCallStreamObserver<Telegraf.ConfigPack> telegraf = connect("t-1");
+        placeRegional("id-1");
+
+        configRepository.update("ac-1", "id-1", update("[[inputs.ping]]\n  urls = [\"localhost\"]"));
+
+        final ArgumentCaptor<Telegraf.ConfigPack> packs = ArgumentCaptor.forClass(Telegraf.ConfigPack.class);
+        verify(telegraf, timeout(5000).times(2)).onNext(packs.capture());
+        final List<Telegraf.Config> modified = packs.getAllValues().get(1).getModifiedList();
+        assertEquals(1, modified.size());
+        assertEquals("id-1", modified.get(0).getId());
+        assertEquals("[[inputs.ping]]\n  urls = [\"localhost\"]", modified.get(0).getDefinition());
+        verify(counterService, timeout(5000)).increment("telegraf.config.modified.pushed");
+    }
+
+    @Test
+    public void testDroppedModifiedResent() throws Exception {
+        telegrafProperties.setOutboundQueueCapacity(1);
+        telegrafProperties.setOutboundOverflowPolicy(ConfigPackStream.OverflowPolicy.DROP_AND_RESYNC);
+
+        final ServerCallStreamObserver<Telegraf.ConfigPack> telegraf = connect("t-1");
+        final ArgumentCaptor<Runnable> onReadyHandler = ArgumentCaptor.forClass(Runnable.class);
+        verify(telegraf).setOnReadyHandler(onReadyHandler.capture());
+        placeRegional("id-1");
+
+        // the telegraf stalls while its input is modified twice, which overflows its outbound queue
+        when(telegraf.isReady()).thenReturn(false);
+        configRepository.update("ac-1", "id-1", update("[[inputs.ping]]\n  count = 1"));
+        configRepository.update("ac-1", "id-1", update("[[inputs.ping]]\n  count = 2"));
+        final ConfigPackStream stream = configPackStreams.get("t-1");
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (stream.getDroppedCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, stream.getDroppedCount());
+
+        when(telegraf.isReady()).thenReturn(true);
+        onReadyHandler.getValue().run();
+
+        final ArgumentCaptor<Telegraf.ConfigPack> packs = ArgumentCaptor.forClass(Telegraf.ConfigPack.class);
+        verify(telegraf, timeout(5000).times(2)).onNext(packs.capture());
+        final List<Telegraf.Config> modified = packs.getAllValues().get(1).getModifiedList();
+        assertEquals(1, modified.size());
+        assertEquals("[[inputs.ping]]\n  count = 2", modified.get(0).getDefinition());
+    }
+
+    @Test
+    public void testRemovalPushedOnDelete() throws Exception {
+        final ServerCallStreamObserver<Telegraf.ConfigPack> telegraf = connect("t-1");
+        placeRegional("id-1");
+
+        configRepository.delete("ac-1", "id-1");
+
+        final ArgumentCaptor<Telegraf.ConfigPack> packs = ArgumentCaptor.forClass(Telegraf.ConfigPack.class);
+        verify(telegraf, timeout(5000).times(2)).onNext(packs.capture());
+        assertThat(packs.getAllValues().get(1).getRemovedIdsList(), contains("id-1"));
+
+        verify(gaugeService, timeout(5000)).submit(eq("telegraf.config.removal.push.latency"), anyDouble());
+        verify(counterService, timeout(5000)).increment("telegraf.config.removal.pushed");
+        assertNull(runningRegionalInputsCache.get(new RunningRegionalInputKey("id-1", "west")));
+    }
+
+    @Test
+    public void testRemovalPushedOnDelete_assigned() throws Exception {
+        final ServerCallStreamObserver<Telegraf.ConfigPack> telegraf = connect("t-1");
+
+        final ManagedInput managedInput = new ManagedInput();
+        managedInput.setId("id-1");
+        managedInput.setTenantId("ac-1");
+        managedInput.setAssignmentTags(Collections.singletonMap("os", "linux"));
+        managedInput.setText("[[inputs.cpu]]");
+        managedInputsCache.put(managedInput.getId(), managedInput);
+        // delivered by this node, as recorded when its assignment is sent
+        final RunningAssignedInputKey runningKey = telegrafLeases.assignedInputKey("id-1", "t-1");
+        runningAssignedInputsCache.put(runningKey, ignite.cluster().localNode().id().toString());
+        // and another telegraf of a different node, which is left to that node
+        runningAssignedInputsCache.put(telegrafLeases.assignedInputKey("id-1", "t-2"), "other-node");
+
+        configRepository.delete("ac-1", "id-1");
+
+        final ArgumentCaptor<Telegraf.ConfigPack> packs = ArgumentCaptor.forClass(Telegraf.ConfigPack.class);
+        verify(telegraf, timeout(5000)).onNext(packs.capture());
+        assertThat(packs.getValue().getRemovedIdsList(), contains("id-1"));
+
+        verify(gaugeService, timeout(5000)).submit(eq("telegraf.config.removal.push.latency"), anyDouble());
+        assertFalse(runningAssignedInputsCache.containsKey(runningKey));
+        assertEquals("other-node", runningAssignedInputsCache.get(telegrafLeases.assignedInputKey("id-1", "t-2")));
+    }
+
+    @Test
+    public void testResumeAtCurrentSequence() throws Exception {
+        final ManagedInput managedInput = new ManagedInput();
+        managedInput.setId("id-1");
+        managedInput.setTenantId("ac-1");
+        managedInput.setAssignmentTags(Collections.singletonMap("os", "linux"));
+        managedInput.setText("[[inputs.cpu]]");
+        managedInputsCache.put(managedInput.getId(), managedInput);
+        assignmentJournal.assign(Collections.singleton("t-1"), Collections.singleton("id-1"));
+
+        // the telegraf had already applied everything before it went away and was released
+        final ConfigPackStream stream = configPackStreams.open("t-1", mockServerCall());
+        stream.setAssignmentSequence(assignmentJournal.sequenceOf("t-1"));
+        configPackResponder.startConfigStreaming(Telegraf.Identifiers.newBuilder()
+                                                         .setTid("t-1")
+                                                         .setTenant("ac-1")
+                                                         .build(),
+                                                 Collections.singletonMap("os", "linux"),
+                                                 stream);
+
+        assertEquals(ignite.cluster().localNode().id().toString(),
+                     runningAssignedInputsCache.get(telegrafLeases.assignedInputKey("id-1", "t-1")));
+        // so its first report on the new lease is fully validated and has to keep its assignment
+        final Telegraf.CurrentStateResponse resp = wellBeingHandler.confirmState(
+                Telegraf.Identifiers.newBuilder().setTid("t-1").setTenant("ac-1").build(),
+                Collections.singletonList("id-1"));
+        assertThat(resp.getRemovedIdList(), empty());
+    }
+
+    private void placeRegional(String id) throws InterruptedException {
+        final ManagedInput managedInput = new ManagedInput();
+        managedInput.setId(id);
+        managedInput.setTenantId("ac-1");
+        managedInput.setRegion("west");
+        managedInput.setText("[[inputs.ping]]");
+        managedInputsCache.put(managedInput.getId(), managedInput);
+
+        pendingConfigQueuer.offer("west", id, true);
+        final RunningRegionalInputKey runningKey = new RunningRegionalInputKey(id, "west");
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (runningRegionalInputsCache.get(runningKey) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("t-1", runningRegionalInputsCache.get(runningKey));
+    }
+
+    private static ManagedInputUpdate update(String text) {
+        final ManagedInputUpdate update = new ManagedInputUpdate();
+        update.setText(text);
+        return update;
+    }
+
+    private ServerCallStreamObserver<Telegraf.ConfigPack> connect(String tid) {
+        final ServerCallStreamObserver<Telegraf.ConfigPack> serverCall = mockServerCall();
+
+        final Telegraf.Identifiers identifiers = Telegraf.Identifiers.newBuilder()
+                .setTid(tid)
+                .setRegion("west")
+                .build();
+        configPackResponder.startConfigStreaming(identifiers,
+                                                 Collections.emptyMap(),
+                                                 configPackStreams.open(tid, serverCall));
+        return serverCall;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ServerCallStreamObserver<Telegraf.ConfigPack> mockServerCall() {
+        final ServerCallStreamObserver<Telegraf.ConfigPack> serverCall = Mockito.mock(ServerCallStreamObserver.class);
+        when(serverCall.isReady()).thenReturn(true);
+        return serverCall;
+    }
+}
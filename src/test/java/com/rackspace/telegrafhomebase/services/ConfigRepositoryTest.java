@@ -1,16 +1,28 @@
 package com.rackspace.telegrafhomebase.services;
 
+import com.rackspace.telegrafhomebase.Benchmark;
 import com.rackspace.telegrafhomebase.config.IgniteCacheConfigs;
 import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
 import com.rackspace.telegrafhomebase.config.IgniteConfig;
 import com.rackspace.telegrafhomebase.config.IgniteProperties;
 import com.rackspace.telegrafhomebase.config.TelegrafProperties;
 import com.rackspace.telegrafhomebase.model.AssignedInputDefinition;
+import com.rackspace.telegrafhomebase.model.BulkCreateResponse;
+import com.rackspace.telegrafhomebase.model.BulkInputDefinition;
+import com.rackspace.telegrafhomebase.model.ManagedInput;
 import com.rackspace.telegrafhomebase.model.ManagedInputExt;
+import com.rackspace.telegrafhomebase.model.ManagedInputPage;
+import com.rackspace.telegrafhomebase.model.ManagedInputUpdate;
+import com.rackspace.telegrafhomebase.model.RegionalInputDefinition;
 import com.rackspace.telegrafhomebase.model.RunningAssignedInputKey;
+import com.rackspace.telegrafhomebase.model.RunningRegionalInputKey;
+import com.rackspace.telegrafhomebase.shared.InvalidCursorException;
+import com.rackspace.telegrafhomebase.shared.NotOwnedException;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.ignite.IgniteCache;
 import org.hamcrest.CoreMatchers;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -19,9 +31,17 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
@@ -34,7 +54,9 @@ import static org.junit.Assert.assertThat;
 @SpringBootTest(classes = {
         IgniteConfig.class,
         ConfigRepository.class,
+        TelegrafHandles.class,
         TaggingRepository.class,
+        AssignmentGeneration.class,
         IgniteCacheConfigs.class,
         IgniteCacheProvider.class,
         IgniteProperties.class,
@@ -43,6 +65,7 @@ import static org.junit.Assert.assertThat;
         "logging.level.org.apache.ignite.internal.processors.query.h2=debug"
 }, webEnvironment = SpringBootTest.WebEnvironment.NONE)
 @DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@Slf4j
 public class ConfigRepositoryTest {
 
     @Autowired
@@ -54,6 +77,15 @@ public class ConfigRepositoryTest {
     @Autowired
     IgniteCache<RunningAssignedInputKey, String/*cluster node id*/> runningAssignedInputsCache;
 
+    @Autowired
+    IgniteCache<RunningRegionalInputKey, String> runningRegionalInputsCache;
+
+    @Autowired
+    IgniteCache<String, ManagedInput> managedInputsCache;
+
+    @Autowired
+    TelegrafProperties telegrafProperties;
+
     @MockBean
     IdCreator idCreator;
 
@@ -73,8 +105,8 @@ public class ConfigRepositoryTest {
         assertEquals("id-1", mid);
 
         // fake out the telegraf node assignments
-        runningAssignedInputsCache.put(new RunningAssignedInputKey(mid, "t-1"), "grid-node-1");
-        runningAssignedInputsCache.put(new RunningAssignedInputKey(mid, "t-2"), "grid-node-1");
+        runningAssignedInputsCache.put(new RunningAssignedInputKey(mid, "t-1", 0), "grid-node-1");
+        runningAssignedInputsCache.put(new RunningAssignedInputKey(mid, "t-2", 0), "grid-node-1");
 
         final List<ManagedInputExt> inputs = configRepository.getAllForTenant("ac-1");
         assertNotNull(inputs);
@@ -83,4 +115,196 @@ public class ConfigRepositoryTest {
         assertThat(inputs.get(0).getRunningOn(), CoreMatchers.hasItems("t-1", "t-2"));
     }
 
+    @Test
+    public void testGetAllForTenant_mixed() throws Exception {
+        populate("ac-1", 4);
+
+        final List<ManagedInputExt> inputs = configRepository.getAllForTenant("ac-1");
+        assertEquals(4, inputs.size());
+        for (ManagedInputExt input : inputs) {
+            if (input.getRegion() != null) {
+                assertThat(input.getRunningOn(), contains("t-" + input.getId()));
+            } else {
+                assertThat(input.getRunningOn(), containsInAnyOrder("t-a-" + input.getId(), "t-b-" + input.getId()));
+            }
+        }
+    }
+
+    @Test
+    public void testCreateBulk() throws Exception {
+        final AtomicInteger nextId = new AtomicInteger();
+        Mockito.when(idCreator.create()).thenAnswer(invocation -> "id-" + nextId.incrementAndGet());
+        telegrafProperties.setBulkCreateBatchSize(2);
+        taggingRepository.storeNodeTags("ac-1", "t-1", Collections.singletonMap("os", "linux"));
+
+        final BulkInputDefinition regional = new BulkInputDefinition();
+        regional.setRegional(new RegionalInputDefinition());
+        regional.getRegional().setText("[[inputs.ping]]");
+        regional.getRegional().setRegions(Arrays.asList("west", "east"));
+
+        final BulkInputDefinition assigned = new BulkInputDefinition();
+        assigned.setAssigned(new AssignedInputDefinition());
+        assigned.getAssigned().setText("[[inputs.mem]]");
+        assigned.getAssigned().setAssignmentTags(Collections.singletonMap("os", "linux"));
+
+        final BulkInputDefinition unmatched = new BulkInputDefinition();
+        unmatched.setAssigned(new AssignedInputDefinition());
+        unmatched.getAssigned().setText("[[inputs.mem]]");
+        unmatched.getAssigned().setAssignmentTags(Collections.singletonMap("os", "windows"));
+
+        final BulkInputDefinition blank = new BulkInputDefinition();
+        blank.setAssigned(new AssignedInputDefinition());
+        blank.getAssigned().setAssignmentTags(Collections.singletonMap("os", "linux"));
+
+        final BulkCreateResponse resp = configRepository.createBulk(
+                "ac-1", Arrays.asList(regional, new BulkInputDefinition(), unmatched, assigned, assigned, blank));
+
+        final List<BulkCreateResponse.Item> results = resp.getResults();
+        assertEquals(6, results.size());
+        assertThat(results.get(0).getCreated(), contains("id-1", "id-2"));
+        assertNotNull(results.get(1).getError());
+        assertNotNull(results.get(2).getError());
+        assertThat(results.get(3).getCreated(), contains("id-3"));
+        assertThat(results.get(4).getCreated(), contains("id-4"));
+        assertEquals("text or structured needs to be specified", results.get(5).getError());
+
+        assertEquals("east", managedInputsCache.get("id-2").getRegion());
+        assertThat(taggingRepository.findAssignedInputs("ac-1", Collections.singletonMap("os", "linux")),
+                   containsInAnyOrder("id-3", "id-4"));
+
+        // unindexed along with the removal
+        configRepository.delete("ac-1", "id-3");
+        assertThat(taggingRepository.findAssignedInputs("ac-1", Collections.singletonMap("os", "linux")),
+                   containsInAnyOrder("id-4"));
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        final String id = populate("ac-1", 1).get(0);
+
+        final ManagedInputUpdate update = new ManagedInputUpdate();
+        update.setText("[[inputs.ping]]\n  urls = [\"localhost\"]");
+        update.setTitle("ping");
+        final ManagedInputExt updated = configRepository.update("ac-1", id, update);
+
+        assertEquals("ping", updated.getTitle());
+        assertThat(updated.getRunningOn(), contains("t-" + id));
+        final ManagedInput stored = managedInputsCache.get(id);
+        assertEquals(update.getText(), stored.getText());
+        assertEquals("west", stored.getRegion());
+    }
+
+    @Test(expected = NotOwnedException.class)
+    public void testUpdate_notOwned() throws Exception {
+        final String id = populate("ac-1", 1).get(0);
+
+        final ManagedInputUpdate update = new ManagedInputUpdate();
+        update.setText("[[inputs.ping]]");
+        configRepository.update("ac-2", id, update);
+    }
+
+    @Test
+    public void testGetPageForTenant() throws Exception {
+        final List<String> ids = populate("ac-1", 5);
+        populate("ac-2", 3);
+        Collections.sort(ids);
+
+        final List<String> paged = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            final ManagedInputPage page = configRepository.getPageForTenant("ac-1", cursor, 2);
+            page.getItems().forEach(input -> paged.add(input.getId()));
+            cursor = page.getNext();
+            pages++;
+        } while (cursor != null);
+
+        assertEquals(3, pages);
+        assertEquals(ids, paged);
+    }
+
+    @Test(expected = InvalidCursorException.class)
+    public void testGetPageForTenant_invalidCursor() throws Exception {
+        configRepository.getPageForTenant("ac-1", "not*base64", 2);
+    }
+
+    @Test
+    public void testStreamAllForTenant() throws Exception {
+        final List<String> ids = populate("ac-1", 1_200);
+        populate("ac-2", 3);
+        Collections.sort(ids);
+
+        final List<String> streamed = new ArrayList<>();
+        configRepository.streamAllForTenant("ac-1", input -> {
+            assertNotNull(input.getRunningOn());
+            streamed.add(input.getId());
+        });
+
+        assertEquals(ids, streamed);
+    }
+
+    /**
+     * Compares resolving the running placement of each input with its own lookup, as getAllForTenant used to,
+     * against the bulk resolution it does now.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testGetAllForTenant_latency() throws Exception {
+        for (int size : Arrays.asList(100, 1_000, 10_000)) {
+            final String tenantId = "ac-" + size;
+            final List<String> ids = populate(tenantId, size);
+
+            // warm up
+            configRepository.getAllForTenant(tenantId);
+
+            long start = System.nanoTime();
+            for (String id : ids) {
+                configRepository.getWithDetails(tenantId, id);
+            }
+            final long perInput = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            final List<ManagedInputExt> inputs = configRepository.getAllForTenant(tenantId);
+            final long bulk = System.nanoTime() - start;
+
+            assertEquals(size, inputs.size());
+            log.info("Getting {} inputs of tenant: per input lookups {}ms, bulk {}ms",
+                     size, TimeUnit.NANOSECONDS.toMillis(perInput), TimeUnit.NANOSECONDS.toMillis(bulk));
+        }
+    }
+
+    /**
+     * Creates the given number of inputs for the tenant where even ones are regional, running on one telegraf,
+     * and odd ones are assigned, running on two telegrafs.
+     */
+    private List<String> populate(String tenantId, int count) {
+        final Map<String, ManagedInput> inputs = new HashMap<>();
+        final Map<RunningRegionalInputKey, String> runningRegional = new HashMap<>();
+        final Map<RunningAssignedInputKey, String> runningAssigned = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            final ManagedInput managedInput = new ManagedInput();
+            managedInput.setId(tenantId + "-id-" + i);
+            managedInput.setTenantId(tenantId);
+            managedInput.setText("[[inputs.mem]]");
+            if (i % 2 == 0) {
+                managedInput.setRegion("west");
+                runningRegional.put(new RunningRegionalInputKey(managedInput.getId(), "west"),
+                                    "t-" + managedInput.getId());
+            } else {
+                managedInput.setAssignmentTags(Collections.singletonMap("os", "linux"));
+                runningAssigned.put(
+                        new RunningAssignedInputKey(managedInput.getId(), "t-a-" + managedInput.getId(), 0),
+                        "grid-node-1");
+                runningAssigned.put(
+                        new RunningAssignedInputKey(managedInput.getId(), "t-b-" + managedInput.getId(), 0),
+                        "grid-node-1");
+            }
+            inputs.put(managedInput.getId(), managedInput);
+        }
+        managedInputsCache.putAll(inputs);
+        runningRegionalInputsCache.putAll(runningRegional);
+        runningAssignedInputsCache.putAll(runningAssigned);
+
+        return new ArrayList<>(inputs.keySet());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,83 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.config.IgniteCacheConfigs;
+import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
+import com.rackspace.telegrafhomebase.config.IgniteConfig;
+import com.rackspace.telegrafhomebase.config.IgniteProperties;
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import com.rackspace.telegrafhomebase.model.DirectAssignments;
+import org.apache.ignite.IgniteCache;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {
+        IgniteConfig.class,
+        IgniteCacheConfigs.class,
+        IgniteCacheProvider.class,
+        IgniteProperties.class,
+        TelegrafProperties.class,
+        AssignmentJournal.class,
+        DirectAssignmentFanout.class
+}, webEnvironment = SpringBootTest.WebEnvironment.NONE)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class DirectAssignmentFanoutTest {
+
+    @Autowired
+    DirectAssignmentFanout directAssignmentFanout;
+
+    @Autowired
+    TelegrafProperties telegrafProperties;
+
+    @Autowired
+    IgniteCache<String, DirectAssignments> directAssignmentsCache;
+
+    @MockBean
+    CounterService counterService;
+
+    @MockBean
+    GaugeService gaugeService;
+
+    @Test
+    public void testFanOutInBatches() throws Exception {
+        telegrafProperties.setAssignmentFanoutBatchSize(100);
+
+        final List<String> tids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            tids.add("t-" + i);
+        }
+        directAssignmentsCache.put("t-0", new DirectAssignments("id-existing"));
+        directAssignmentsCache.put("t-1", new DirectAssignments("id-1"));
+
+        final int assigned = directAssignmentFanout.fanOut("id-1", tids);
+
+        assertEquals(999, assigned);
+        assertThat(directAssignmentsCache.get("t-0").get(), containsInAnyOrder("id-existing", "id-1"));
+        assertThat(directAssignmentsCache.get("t-999").get(), containsInAnyOrder("id-1"));
+        verify(gaugeService, never()).submit(eq("telegraf.assignment.fanout.remaining"), anyDouble());
+        verify(gaugeService).submit(eq("telegraf.assignment.fanout.duration"), anyDouble());
+        verify(counterService).increment("telegraf.assignment.fanout.completed");
+    }
+}
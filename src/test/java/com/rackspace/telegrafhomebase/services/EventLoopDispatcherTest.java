@@ -0,0 +1,192 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.shared.ConfigPackStream;
+import com.rackspace.telegrafhomebase.shared.ConfigResponseStreamBundle;
+import com.rackspace.telegrafhomebase.shared.RandomPlacementStrategy;
+import com.rackspace.telegrafhomebase.shared.TelegrafDisconnectFunction;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+public class EventLoopDispatcherTest {
+
+    private EventLoopDispatcher dispatcher;
+
+    @Before
+    public void setUp() throws Exception {
+        dispatcher = new EventLoopDispatcher(1, 2, 10, 80);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dispatcher.close();
+    }
+
+    @Test
+    public void testParksUntilBundleReady() throws Exception {
+        final ConfigResponseStreamBundle bundle = new ConfigResponseStreamBundle(
+                new RandomPlacementStrategy(new Random()), Mockito.mock(TelegrafDisconnectFunction.class));
+        final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>(Collections.singletonList("id-1"));
+        final CountDownLatch handled = new CountDownLatch(1);
+
+        dispatcher.register("r-1", 0, bundle, poller(queue), handler(handled));
+
+        assertFalse(handled.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, queue.size());
+
+        bundle.add(entry("t-1"));
+
+        assertTrue(handled.await(1, TimeUnit.SECONDS));
+        assertTrue(queue.isEmpty());
+    }
+
+    /**
+     * Confirms that many more regions than threads are all serviced.
+     */
+    @Test
+    public void testManyRegionsOnOneThread() throws Exception {
+        final int regions = 200;
+        final CountDownLatch handled = new CountDownLatch(regions);
+
+        for (int i = 0; i < regions; i++) {
+            final ConfigResponseStreamBundle bundle = new ConfigResponseStreamBundle(
+                    new RandomPlacementStrategy(new Random()), Mockito.mock(TelegrafDisconnectFunction.class));
+            bundle.add(entry("t-" + i));
+
+            final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+            dispatcher.register("r-" + i, 0, bundle, poller(queue), handler(handled));
+            // queued after registration so the lane has to come back around via polling
+            queue.add("id-" + i);
+        }
+
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSlowRegionDoesNotBlockOthers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        final ConfigResponseStreamBundle slowBundle = new ConfigResponseStreamBundle(
+                new RandomPlacementStrategy(new Random()), Mockito.mock(TelegrafDisconnectFunction.class));
+        slowBundle.add(entry("t-slow"));
+        dispatcher.register("r-slow", 0, slowBundle,
+                            poller(new ConcurrentLinkedQueue<>(Collections.singletonList("id-slow"))),
+                            new TestHandler() {
+                                @Override
+                                public boolean handle(List<String> configIds) {
+                                    slowStarted.countDown();
+                                    try {
+                                        release.await();
+                                    } catch (InterruptedException e) {
+                                        Thread.currentThread().interrupt();
+                                    }
+                                    return true;
+                                }
+                            });
+        assertTrue(slowStarted.await(1, TimeUnit.SECONDS));
+
+        // the only loop thread is free to poll the other region while the slow one is being handled
+        final ConfigResponseStreamBundle bundle = new ConfigResponseStreamBundle(
+                new RandomPlacementStrategy(new Random()), Mockito.mock(TelegrafDisconnectFunction.class));
+        bundle.add(entry("t-1"));
+        final CountDownLatch handled = new CountDownLatch(1);
+        dispatcher.register("r-1", 0, bundle,
+                            poller(new ConcurrentLinkedQueue<>(Collections.singletonList("id-1"))),
+                            handler(handled));
+
+        assertTrue(handled.await(1, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void testIdlePollingBacksOff() throws Exception {
+        final ConfigResponseStreamBundle bundle = new ConfigResponseStreamBundle(
+                new RandomPlacementStrategy(new Random()), Mockito.mock(TelegrafDisconnectFunction.class));
+        bundle.add(entry("t-1"));
+        final AtomicInteger polls = new AtomicInteger();
+        final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+        final PendingConfigQueuer.Poller poller = poller(queue);
+
+        dispatcher.register("r-1", 0, bundle, () -> {
+            polls.incrementAndGet();
+            return poller.poll();
+        }, handler(new CountDownLatch(1)));
+        Thread.sleep(500);
+
+        // polling every 10ms would be about 50 polls, but backing off to 80ms allows less than 10
+        assertTrue("saw " + polls.get() + " polls", polls.get() < 15);
+
+        // and still picks up what gets queued
+        final CountDownLatch handled = new CountDownLatch(1);
+        final ConfigResponseStreamBundle other = new ConfigResponseStreamBundle(
+                new RandomPlacementStrategy(new Random()), Mockito.mock(TelegrafDisconnectFunction.class));
+        other.add(entry("t-2"));
+        final ConcurrentLinkedQueue<String> otherQueue = new ConcurrentLinkedQueue<>();
+        dispatcher.register("r-2", 0, other, poller(otherQueue), handler(handled));
+        Thread.sleep(200);
+        otherQueue.add("id-1");
+        assertTrue(handled.await(1, TimeUnit.SECONDS));
+    }
+
+    private static PendingConfigQueuer.Poller poller(ConcurrentLinkedQueue<String> queue) {
+        return () -> {
+            final List<String> batch = new ArrayList<>();
+            final String next = queue.poll();
+            if (next != null) {
+                batch.add(next);
+            }
+            return batch;
+        };
+    }
+
+    private static PendingConfigQueuer.Handler handler(CountDownLatch handled) {
+        return new TestHandler() {
+            @Override
+            public boolean handle(List<String> configIds) {
+                configIds.forEach(id -> handled.countDown());
+                return true;
+            }
+        };
+    }
+
+    private abstract static class TestHandler implements PendingConfigQueuer.Handler {
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public boolean waitForReady() throws InterruptedException {
+            // always ready, like a region with a connected telegraf
+            return true;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConfigResponseStreamBundle.Entry entry(String tid) {
+        final ConfigPackStream stream = new ConfigPackStream(tid,
+                                                             Mockito.mock(StreamObserver.class),
+                                                             1,
+                                                             ConfigPackStream.OverflowPolicy.COALESCE,
+                                                             Mockito.mock(ConfigPackStream.Listener.class));
+        return new ConfigResponseStreamBundle.Entry(tid, stream);
+    }
+}
@@ -0,0 +1,94 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+public class OrderedLanesTest {
+
+    private OrderedLanes orderedLanes;
+
+    @Before
+    public void setUp() throws Exception {
+        final TelegrafProperties telegrafProperties = new TelegrafProperties();
+        telegrafProperties.setEventLanes(2);
+        orderedLanes = new OrderedLanes(telegrafProperties);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        orderedLanes.close();
+    }
+
+    @Test
+    public void testOrderedPerKey() throws Exception {
+        final List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int value = i;
+            orderedLanes.execute("ac-1", () -> {
+                processed.add(value);
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, processed.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testBlockedLaneDoesNotBlockOthers() throws Exception {
+        final String blockedKey = "ac-1";
+        String otherKey = "ac-2";
+        for (int i = 3; orderedLanes.laneOf(otherKey) == orderedLanes.laneOf(blockedKey); i++) {
+            otherKey = "ac-" + i;
+        }
+        assertNotEquals(orderedLanes.laneOf(blockedKey), orderedLanes.laneOf(otherKey));
+
+        final CountDownLatch release = new CountDownLatch(1);
+        orderedLanes.execute(blockedKey, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        orderedLanes.execute(blockedKey, () -> {});
+        orderedLanes.execute(blockedKey, () -> {});
+
+        final CountDownLatch other = new CountDownLatch(1);
+        orderedLanes.execute(otherKey, other::countDown);
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+
+        assertEquals(2, metric("telegraf.lanes." + orderedLanes.laneOf(blockedKey) + ".backlog"));
+        assertEquals(2, metric("telegraf.lanes.backlog"));
+        release.countDown();
+    }
+
+    private long metric(String name) {
+        return orderedLanes.metrics().stream()
+                .filter(metric -> metric.getName().equals(name))
+                .findFirst()
+                .map(Metric::getValue)
+                .map(Number::longValue)
+                .orElse(-1L);
+    }
+}
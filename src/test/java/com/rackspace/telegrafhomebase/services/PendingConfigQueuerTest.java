@@ -0,0 +1,214 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.Benchmark;
+import com.rackspace.telegrafhomebase.config.IgniteCacheConfigs;
+import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
+import com.rackspace.telegrafhomebase.config.IgniteConfig;
+import com.rackspace.telegrafhomebase.config.IgniteProperties;
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import com.rackspace.telegrafhomebase.shared.DistributedQueueUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {
+        IgniteConfig.class,
+        IgniteCacheConfigs.class,
+        IgniteCacheProvider.class,
+        IgniteProperties.class,
+        TelegrafProperties.class,
+        RegionRegistry.class,
+        PendingConfigQueuer.class,
+        PendingConfigQueuerTest.TestConfig.class
+}, properties = {
+        "telegraf.regions[0]=west",
+        "telegraf.regions[1]=east",
+        "telegraf.region-settings.east.shards=4",
+        "telegraf.region-settings.east.batch-size=3",
+        "telegraf.region-settings.east.batch-wait=500"
+}, webEnvironment = SpringBootTest.WebEnvironment.NONE)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@Slf4j
+public class PendingConfigQueuerTest {
+
+    @Configuration
+    @EnableConfigurationProperties
+    static class TestConfig {
+    }
+
+    @Autowired
+    PendingConfigQueuer pendingConfigQueuer;
+
+    @Test
+    public void testOfferAllByShard() throws Exception {
+        assertEquals(4, pendingConfigQueuer.getShards("east"));
+
+        final List<String> configIds = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            configIds.add("id-" + i);
+        }
+        pendingConfigQueuer.offerAll("east", configIds);
+
+        final Set<String> taken = new HashSet<>();
+        for (int shard = 0; shard < 4; shard++) {
+            final PendingConfigQueuer.Poller poller = pendingConfigQueuer.poller("east", shard);
+            List<String> batch;
+            while (!(batch = poller.poll()).isEmpty()) {
+                assertTrue(batch.size() <= 3);
+                for (String configId : batch) {
+                    assertEquals(shard, DistributedQueueUtils.derivePendingConfigShard(configId, 4));
+                    taken.add(configId);
+                }
+            }
+        }
+        assertEquals(new HashSet<>(configIds), taken);
+    }
+
+    @Test
+    public void testObserve_fillBatch() throws Exception {
+        // all of these land on the same shard
+        final List<String> configIds = new ArrayList<>();
+        for (int i = 0; configIds.size() < 5; i++) {
+            if (DistributedQueueUtils.derivePendingConfigShard("id-" + i, 4) == 0) {
+                configIds.add("id-" + i);
+            }
+        }
+        pendingConfigQueuer.offerAll("east", configIds.subList(0, 4));
+
+        final BlockingQueue<List<String>> batches = new LinkedBlockingQueue<>();
+        final Thread consumer = new Thread(() -> pendingConfigQueuer.observe("east", 0, handler(batches)));
+        consumer.start();
+        try {
+            // already queued, so drained without waiting
+            assertEquals(configIds.subList(0, 3), batches.poll(5, TimeUnit.SECONDS));
+
+            // the rest of the next batch arrives within its batch wait
+            final long start = System.currentTimeMillis();
+            assertThat(batches.poll(100, TimeUnit.MILLISECONDS), nullValue());
+            pendingConfigQueuer.offer("east", configIds.get(4), true);
+            assertThat(batches.poll(5, TimeUnit.SECONDS), contains(configIds.get(3), configIds.get(4)));
+
+            // and a batch that doesn't fill is handed over once its wait is up
+            pendingConfigQueuer.offer("east", configIds.get(0), true);
+            assertThat(batches.poll(5, TimeUnit.SECONDS), contains(configIds.get(0)));
+            assertTrue(System.currentTimeMillis() - start >= 500);
+        } finally {
+            consumer.interrupt();
+            consumer.join(5000);
+        }
+    }
+
+    @Test
+    public void testPoller_empty() throws Exception {
+        assertThat(pendingConfigQueuer.poller("west", 0).poll(), empty());
+
+        pendingConfigQueuer.offerAll("west", Arrays.asList("id-1", "id-2"));
+        // west uses the default batch size of one
+        assertThat(pendingConfigQueuer.poller("west", 0).poll(), contains("id-1"));
+        assertThat(pendingConfigQueuer.poller("west", 0).poll(), contains("id-2"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPoller_unregistered() throws Exception {
+        pendingConfigQueuer.poller("north", 0);
+    }
+
+    /**
+     * Reports the rate of queueing and taking regional inputs for one shard versus the same work split across
+     * four shards, each with its own consumer.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testShardedThroughput() throws Exception {
+        final int count = 2000;
+        final List<String> configIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            configIds.add("id-" + i);
+        }
+
+        final long oneShard = measure("west", configIds);
+        final long fourShards = measure("east", configIds);
+
+        log.info("Queued and took {} configs: 1 shard={}/s, 4 shards={}/s",
+                 count, count * 1000L / Math.max(1, oneShard), count * 1000L / Math.max(1, fourShards));
+    }
+
+    /**
+     * @return the milliseconds it took to queue the given configs one at a time and take them all
+     */
+    private long measure(String region, List<String> configIds) throws InterruptedException {
+        final int shards = pendingConfigQueuer.getShards(region);
+        final Set<String> taken = Collections.synchronizedSet(new HashSet<>());
+
+        final long start = System.currentTimeMillis();
+        final List<Thread> consumers = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            final PendingConfigQueuer.Poller poller = pendingConfigQueuer.poller(region, shard);
+            final Thread consumer = new Thread(() -> {
+                final long deadline = System.currentTimeMillis() + 30000;
+                while (taken.size() < configIds.size() && System.currentTimeMillis() < deadline) {
+                    taken.addAll(poller.poll());
+                }
+            });
+            consumer.start();
+            consumers.add(consumer);
+        }
+
+        configIds.forEach(configId -> pendingConfigQueuer.offer(region, configId, true));
+        for (Thread consumer : consumers) {
+            consumer.join();
+        }
+        final long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(configIds.size(), taken.size());
+        return elapsed;
+    }
+
+    private static PendingConfigQueuer.Handler handler(BlockingQueue<List<String>> batches) {
+        return new PendingConfigQueuer.Handler() {
+            @Override
+            public boolean handle(List<String> configIds) {
+                batches.add(new ArrayList<>(configIds));
+                return true;
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public boolean waitForReady() throws InterruptedException {
+                return !Thread.currentThread().isInterrupted();
+            }
+        };
+    }
+}
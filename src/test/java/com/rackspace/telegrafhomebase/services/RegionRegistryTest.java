@@ -0,0 +1,268 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.config.IgniteCacheConfigs;
+import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
+import com.rackspace.telegrafhomebase.config.IgniteConfig;
+import com.rackspace.telegrafhomebase.config.IgniteProperties;
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import com.rackspace.telegrafhomebase.model.ConnectedNode;
+import com.rackspace.telegrafhomebase.model.ManagedInput;
+import com.rackspace.telegrafhomebase.model.RegisteredRegion;
+import com.rackspace.telegrafhomebase.model.TelegrafLease;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.apache.ignite.IgniteCache;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+import remote.Telegraf;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {
+        IgniteConfig.class,
+        IgniteCacheConfigs.class,
+        IgniteCacheProvider.class,
+        IgniteProperties.class,
+        TelegrafProperties.class,
+        ConfigRepository.class,
+        TelegrafHandles.class,
+        TaggingRepository.class,
+        RegionRegistry.class,
+        PendingConfigQueuer.class,
+        RegionalLoadTracker.class,
+        ConfigPackStreams.class,
+        ConfigPackResponderImpl.class,
+        AssignmentJournal.class,
+        TelegrafLeases.class,
+        AssignmentGeneration.class,
+        RegionRegistryTest.TestConfig.class
+}, properties = {
+        "telegraf.regions[0]=west",
+        "telegraf.region-idle-timeout=0"
+}, webEnvironment = SpringBootTest.WebEnvironment.NONE)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class RegionRegistryTest {
+
+    @Configuration
+    @EnableConfigurationProperties
+    static class TestConfig {
+        @Bean
+        public Random rand() {
+            return new Random();
+        }
+    }
+
+    @Autowired
+    RegionRegistry regionRegistry;
+
+    @Autowired
+    ConfigPackResponder configPackResponder;
+
+    @Autowired
+    ConfigPackStreams configPackStreams;
+
+    @Autowired
+    PendingConfigQueuer pendingConfigQueuer;
+
+    @Autowired
+    IgniteCache<String, ManagedInput> managedInputsCache;
+
+    @Autowired
+    IgniteCache<String, TelegrafLease> telegrafLeasesCache;
+
+    @Autowired
+    IgniteCache<String, ConnectedNode> connectedNodesCache;
+
+    @MockBean
+    IdCreator idCreator;
+
+    @MockBean
+    TaskExecutor taskExecutor;
+
+    @MockBean
+    CounterService counterService;
+
+    @MockBean
+    GaugeService gaugeService;
+
+    @Test
+    public void testRegisterAndUnregister() throws Exception {
+        assertTrue(regionRegistry.isRegistered("west"));
+        assertFalse(regionRegistry.register("west"));
+
+        assertTrue(regionRegistry.register("east"));
+        assertTrue(regionRegistry.isRegistered("east"));
+        assertThat(regionRegistry.getAll().stream().map(RegisteredRegion::getName).collect(Collectors.toList()),
+                   containsInAnyOrder("west", "east"));
+
+        assertTrue(regionRegistry.unregister("east"));
+        assertFalse(regionRegistry.isRegistered("east"));
+        assertFalse(regionRegistry.unregister("east"));
+
+        assertTrue(regionRegistry.register("east"));
+        assertTrue(regionRegistry.isRegistered("east"));
+    }
+
+    @Test
+    public void testDispatchStartsOnFirstConnect() throws Exception {
+        regionRegistry.register("east");
+        verify(gaugeService, never()).submit(eq("telegraf.dispatch.east.shards"), anyDouble());
+
+        connect("t-1", "east");
+        verify(gaugeService).submit(eq("telegraf.dispatch.east.shards"), anyDouble());
+
+        // already dispatching, so a second telegraf of the region shares it
+        connect("t-2", "east");
+        verify(gaugeService).submit(eq("telegraf.dispatch.east.shards"), anyDouble());
+        verify(gaugeService, never()).submit(eq("telegraf.dispatch.west.shards"), anyDouble());
+    }
+
+    @Test
+    public void testUnknownRegionRejected() throws Exception {
+        final ServerCallStreamObserver<Telegraf.ConfigPack> telegraf = connect("t-1", "east");
+        verify(telegraf).onError(any(IllegalArgumentException.class));
+
+        // nothing is left behind for the rejected telegraf
+        assertNull(configPackStreams.get("t-1"));
+        assertFalse(telegrafLeasesCache.containsKey("t-1"));
+        assertFalse(connectedNodesCache.containsKey("t-1"));
+    }
+
+    @Test
+    public void testReRegisterKeepsDispatching() throws Exception {
+        regionRegistry.register("east");
+        final ServerCallStreamObserver<Telegraf.ConfigPack> first = connect("t-1", "east");
+
+        regionRegistry.unregister("east");
+        // already connected telegrafs of the region are left alone
+        offer("id-1", "east");
+        verify(first, timeout(5000)).onNext(any());
+
+        regionRegistry.register("east");
+        final ServerCallStreamObserver<Telegraf.ConfigPack> second = connect("t-2", "east");
+        verify(second, never()).onError(any());
+
+        // offered one at a time so they aren't batched into one pack
+        offer("id-2", "east");
+        awaitSent(2, first, second);
+        offer("id-3", "east");
+        awaitSent(3, first, second);
+    }
+
+    @Test
+    public void testRetiredRespondersStop() throws Exception {
+        regionRegistry.register("east");
+        final ServerCallStreamObserver<Telegraf.ConfigPack> first = connect("t-1", "east");
+        final ArgumentCaptor<Runnable> onCancelHandler = ArgumentCaptor.forClass(Runnable.class);
+        verify(first).setOnCancelHandler(onCancelHandler.capture());
+        onCancelHandler.getValue().run();
+
+        // the first pass only notes that the region went idle, the next one retires it
+        configPackResponder.retireIdleRegions();
+        configPackResponder.retireIdleRegions();
+
+        // its responder was waiting for a telegraf when retired
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!responderThreads("east").isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(responderThreads("east"), empty());
+
+        // so everything offered goes to the dispatch of the next telegraf
+        final ServerCallStreamObserver<Telegraf.ConfigPack> second = connect("t-2", "east");
+        offer("id-1", "east");
+        offer("id-2", "east");
+        awaitSent(2, second);
+    }
+
+    private static List<Thread> responderThreads(String region) {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("responder-" + region + "-") && thread.isAlive())
+                .collect(Collectors.toList());
+    }
+
+    @SafeVarargs
+    private static void awaitSent(long expected, ServerCallStreamObserver<Telegraf.ConfigPack>... serverCalls)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        long sent = 0;
+        while (System.currentTimeMillis() < deadline) {
+            sent = 0;
+            for (ServerCallStreamObserver<Telegraf.ConfigPack> serverCall : serverCalls) {
+                sent += sentCount(serverCall);
+            }
+            if (sent >= expected) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(expected, sent);
+    }
+
+    private static long sentCount(ServerCallStreamObserver<Telegraf.ConfigPack> serverCall) {
+        return Mockito.mockingDetails(serverCall).getInvocations().stream()
+                .filter(invocation -> invocation.getMethod().getName().equals("onNext"))
+                .count();
+    }
+
+    private void offer(String id, String region) {
+        final ManagedInput managedInput = new ManagedInput();
+        managedInput.setId(id);
+        managedInput.setTenantId("ac-1");
+        managedInput.setRegion(region);
+        managedInput.setText("[[inputs.ping]]");
+        managedInputsCache.put(managedInput.getId(), managedInput);
+
+        pendingConfigQueuer.offer(region, id, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ServerCallStreamObserver<Telegraf.ConfigPack> connect(String tid, String region) {
+        final ServerCallStreamObserver<Telegraf.ConfigPack> serverCall = Mockito.mock(ServerCallStreamObserver.class);
+        when(serverCall.isReady()).thenReturn(true);
+
+        final Telegraf.Identifiers identifiers = Telegraf.Identifiers.newBuilder()
+                .setTid(tid)
+                .setRegion(region)
+                .build();
+        configPackResponder.startConfigStreaming(identifiers,
+                                                 Collections.emptyMap(),
+                                                 configPackStreams.open(tid, serverCall));
+        return serverCall;
+    }
+}
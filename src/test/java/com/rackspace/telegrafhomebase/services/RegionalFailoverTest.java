@@ -0,0 +1,195 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.config.IgniteCacheConfigs;
+import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
+import com.rackspace.telegrafhomebase.config.IgniteConfig;
+import com.rackspace.telegrafhomebase.config.IgniteProperties;
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import com.rackspace.telegrafhomebase.model.ManagedInput;
+import com.rackspace.telegrafhomebase.model.RunningRegionalInputKey;
+import com.rackspace.telegrafhomebase.model.TelegrafLease;
+import io.grpc.stub.ServerCallStreamObserver;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ignite.IgniteCache;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+import remote.Telegraf;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {
+        IgniteConfig.class,
+        IgniteCacheConfigs.class,
+        IgniteCacheProvider.class,
+        IgniteProperties.class,
+        TelegrafProperties.class,
+        ConfigRepository.class,
+        TelegrafHandles.class,
+        TaggingRepository.class,
+        RegionRegistry.class,
+        PendingConfigQueuer.class,
+        RegionalLoadTracker.class,
+        ConfigPackStreams.class,
+        ConfigPackResponderImpl.class,
+        AssignmentJournal.class,
+        TelegrafLeases.class,
+        AssignmentGeneration.class,
+        RegionalFailoverTest.TestConfig.class
+}, properties = {
+        "telegraf.regions[0]=west"
+}, webEnvironment = SpringBootTest.WebEnvironment.NONE)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@Slf4j
+public class RegionalFailoverTest {
+
+    @Configuration
+    @EnableConfigurationProperties
+    static class TestConfig {
+        @Bean
+        public Random rand() {
+            return new Random();
+        }
+    }
+
+    @Autowired
+    ConfigPackResponder configPackResponder;
+
+    @Autowired
+    ConfigPackStreams configPackStreams;
+
+    @Autowired
+    PendingConfigQueuer pendingConfigQueuer;
+
+    @Autowired
+    IgniteProperties igniteProperties;
+
+    @Autowired
+    IgniteCache<String, ManagedInput> managedInputsCache;
+
+    @Autowired
+    IgniteCache<RunningRegionalInputKey, String> runningRegionalInputsCache;
+
+    @Autowired
+    IgniteCache<String, TelegrafLease> telegrafLeasesCache;
+
+    @MockBean
+    IdCreator idCreator;
+
+    @MockBean
+    TaskExecutor taskExecutor;
+
+    @MockBean
+    CounterService counterService;
+
+    @MockBean
+    GaugeService gaugeService;
+
+    @Test
+    public void testFailoverOnCancel() throws Exception {
+        final ManagedInput managedInput = new ManagedInput();
+        managedInput.setId("id-1");
+        managedInput.setTenantId("ac-1");
+        managedInput.setRegion("west");
+        managedInput.setText("[[inputs.ping]]");
+        managedInputsCache.put(managedInput.getId(), managedInput);
+
+        final ServerCallStreamObserver<Telegraf.ConfigPack> first = connect("t-1");
+        pendingConfigQueuer.offer("west", "id-1", true);
+        verify(first, timeout(5000)).onNext(any());
+        // the running entry is recorded just after the send completes
+        final RunningRegionalInputKey runningKey = new RunningRegionalInputKey("id-1", "west");
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (runningRegionalInputsCache.get(runningKey) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("t-1", runningRegionalInputsCache.get(runningKey));
+
+        final ServerCallStreamObserver<Telegraf.ConfigPack> second = connect("t-2");
+        final ArgumentCaptor<Runnable> onCancelHandler = ArgumentCaptor.forClass(Runnable.class);
+        verify(first).setOnCancelHandler(onCancelHandler.capture());
+
+        final long start = System.nanoTime();
+        onCancelHandler.getValue().run();
+        verify(second, timeout(5000)).onNext(any());
+        final long failoverMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        log.info("Regional input failed over in {}ms, versus a running config TTL of {}s",
+                 failoverMillis, igniteProperties.getRunningConfigTtl());
+        assertTrue("failover should not wait for the running entry to expire",
+                   failoverMillis < TimeUnit.SECONDS.toMillis(1));
+        assertNull(configPackStreams.get("t-1"));
+    }
+
+    @Test
+    public void testLateCancelAfterReconnect() throws Exception {
+        final ManagedInput managedInput = new ManagedInput();
+        managedInput.setId("id-1");
+        managedInput.setTenantId("ac-1");
+        managedInput.setRegion("west");
+        managedInput.setText("[[inputs.ping]]");
+        managedInputsCache.put(managedInput.getId(), managedInput);
+
+        final ServerCallStreamObserver<Telegraf.ConfigPack> first = connect("t-1");
+        final ServerCallStreamObserver<Telegraf.ConfigPack> second = connect("t-1");
+        final ArgumentCaptor<Runnable> onCancelHandler = ArgumentCaptor.forClass(Runnable.class);
+        verify(first).setOnCancelHandler(onCancelHandler.capture());
+
+        // the old connection's cancel only arrives after the telegraf reconnected
+        onCancelHandler.getValue().run();
+        assertNotNull(configPackStreams.get("t-1"));
+        assertNotNull(telegrafLeasesCache.get("t-1"));
+
+        pendingConfigQueuer.offer("west", "id-1", true);
+        verify(second, timeout(5000)).onNext(any());
+        final RunningRegionalInputKey runningKey = new RunningRegionalInputKey("id-1", "west");
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (runningRegionalInputsCache.get(runningKey) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("t-1", runningRegionalInputsCache.get(runningKey));
+    }
+
+    @SuppressWarnings("unchecked")
+    private ServerCallStreamObserver<Telegraf.ConfigPack> connect(String tid) {
+        final ServerCallStreamObserver<Telegraf.ConfigPack> serverCall = Mockito.mock(ServerCallStreamObserver.class);
+        when(serverCall.isReady()).thenReturn(true);
+
+        final Telegraf.Identifiers identifiers = Telegraf.Identifiers.newBuilder()
+                .setTid(tid)
+                .setRegion("west")
+                .build();
+        configPackResponder.startConfigStreaming(identifiers,
+                                                 Collections.emptyMap(),
+                                                 configPackStreams.open(tid, serverCall));
+        return serverCall;
+    }
+}
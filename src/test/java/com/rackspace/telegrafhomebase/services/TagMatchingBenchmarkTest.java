@@ -0,0 +1,134 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.Benchmark;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares matching two tags with the previous {@link HashSet} posting lists against the roaring bitmap posting
+ * lists used by {@link TaggingRepository#findMatches}. Each iteration deserializes its posting lists, just as a
+ * cache read would, so both the transfer size and the intersection cost are included.
+ *
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Slf4j
+@Category(Benchmark.class)
+public class TagMatchingBenchmarkTest {
+
+    private static final int WARMUP = 10;
+    private static final int ITERATIONS = 30;
+
+    @Test
+    public void testCompareIntersections() throws Exception {
+        for (int size : Arrays.asList(1_000, 10_000, 100_000)) {
+            // every node is os=linux and every other node is distro=ubuntu
+            final Set<String> linuxTids = new HashSet<>();
+            final Set<String> ubuntuTids = new HashSet<>();
+            final RoaringBitmap linuxHandles = new RoaringBitmap();
+            final RoaringBitmap ubuntuHandles = new RoaringBitmap();
+            for (int handle = 1; handle <= size; handle++) {
+                final String tid = "telegraf-" + handle;
+                linuxTids.add(tid);
+                linuxHandles.add(handle);
+                if (handle % 2 == 0) {
+                    ubuntuTids.add(tid);
+                    ubuntuHandles.add(handle);
+                }
+            }
+            linuxHandles.runOptimize();
+            ubuntuHandles.runOptimize();
+
+            final List<byte[]> hashSetPostings = Arrays.asList(serialize((Serializable) linuxTids),
+                                                                serialize((Serializable) ubuntuTids));
+            final List<byte[]> bitmapPostings = Arrays.asList(serialize(linuxHandles), serialize(ubuntuHandles));
+
+            final long[] hashSetLatencies = new long[ITERATIONS];
+            final long[] bitmapLatencies = new long[ITERATIONS];
+            for (int i = -WARMUP; i < ITERATIONS; i++) {
+                long start = System.nanoTime();
+                final int hashSetMatches = intersectHashSets(hashSetPostings);
+                final long hashSetElapsed = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                final int bitmapMatches = intersectBitmaps(bitmapPostings);
+                final long bitmapElapsed = System.nanoTime() - start;
+
+                assertEquals(size / 2, hashSetMatches);
+                assertEquals(size / 2, bitmapMatches);
+                if (i >= 0) {
+                    hashSetLatencies[i] = hashSetElapsed;
+                    bitmapLatencies[i] = bitmapElapsed;
+                }
+            }
+
+            log.info("Matching 2 tags over {} tagged nodes: hash sets {} ({} bytes), bitmaps {} ({} bytes)",
+                     size,
+                     summarize(hashSetLatencies), hashSetPostings.get(0).length,
+                     summarize(bitmapLatencies), bitmapPostings.get(0).length);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int intersectHashSets(List<byte[]> postings) throws Exception {
+        Set<String> intersection = null;
+        for (byte[] posting : postings) {
+            final Set<String> tids = (Set<String>) deserialize(posting);
+            if (intersection == null) {
+                intersection = new HashSet<>(tids);
+            } else {
+                intersection.retainAll(tids);
+            }
+        }
+        return intersection.size();
+    }
+
+    private static int intersectBitmaps(List<byte[]> postings) throws Exception {
+        RoaringBitmap intersection = null;
+        for (byte[] posting : postings) {
+            final RoaringBitmap handles = (RoaringBitmap) deserialize(posting);
+            if (intersection == null) {
+                intersection = handles;
+            } else {
+                intersection.and(handles);
+            }
+        }
+        return intersection.getCardinality();
+    }
+
+    private static byte[] serialize(Serializable value) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws Exception {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    private static String summarize(long[] latencies) {
+        Arrays.sort(latencies);
+        return String.format("p50=%dus p90=%dus",
+                             TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length / 2]),
+                             TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length * 9 / 10]));
+    }
+}
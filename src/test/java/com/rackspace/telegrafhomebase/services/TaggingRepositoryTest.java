@@ -7,6 +7,8 @@ import com.rackspace.telegrafhomebase.config.IgniteProperties;
 import com.rackspace.telegrafhomebase.config.TelegrafProperties;
 import com.rackspace.telegrafhomebase.model.TaggedNodes;
 import com.rackspace.telegrafhomebase.model.TaggedNodesKey;
+import org.apache.ignite.IgniteTransactions;
+import org.apache.ignite.transactions.Transaction;
 import org.hamcrest.CoreMatchers;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -20,7 +22,10 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
@@ -32,6 +37,7 @@ import static org.junit.Assert.assertThat;
 @RunWith(SpringRunner.class)
 @SpringBootTest(classes = {
         IgniteConfig.class,
+        TelegrafHandles.class,
         TaggingRepository.class,
         IgniteCacheConfigs.class,
         IgniteCacheProvider.class,
@@ -49,14 +55,23 @@ public class TaggingRepositoryTest {
     @Autowired
     IgniteCacheProvider cacheProvider;
 
+    @Autowired
+    TelegrafHandles telegrafHandles;
+
+    @Autowired
+    TelegrafProperties telegrafProperties;
+
+    @Autowired
+    IgniteTransactions igniteTransactions;
+
     @Test
     public void getActiveTags() throws Exception {
 
         populateTypicalContent();
 
-        final TaggedNodes nodes = cacheProvider.taggedNodesCache().get(new TaggedNodesKey("ac-1", "os", "linux"));
+        final TaggedNodes nodes = cacheProvider.taggedNodesCache().get(bucketKey("ac-1", "os", "linux", "t-1"));
         assertNotNull(nodes);
-        assertThat(nodes.getTids(), CoreMatchers.hasItems("t-1", "t-2"));
+        assertThat(telegrafHandles.resolve(nodes.getHandles()), CoreMatchers.hasItems("t-1"));
 
         cacheProvider.taggedNodesCache().indexReadyFuture().get();
 
@@ -102,6 +117,94 @@ public class TaggingRepositoryTest {
         assertNull(result);
     }
 
+    @Test
+    public void testFindMatches_afterRemoval() throws Exception {
+        populateTypicalContent();
+
+        Map<String, String> tags2 = new HashMap<>();
+        tags2.put("host", "machine-2");
+        tags2.put("os", "linux");
+        tags2.put("distro", "centos");
+        taggingRepository.removeNodeTags("ac-1", "t-2", tags2);
+
+        Map<String, String> requestedTags = new HashMap<>();
+        requestedTags.put("os", "linux");
+        final Collection<String> result = taggingRepository.findMatches("ac-1", requestedTags);
+
+        assertNotNull(result);
+        assertThat(result, CoreMatchers.hasItems("t-1"));
+        assertEquals(1, result.size());
+        assertNull(cacheProvider.taggedNodesCache().get(bucketKey("ac-1", "distro", "centos", "t-2")));
+    }
+
+    @Test
+    public void testStoreNodeTags_onlyTouchesOwnBucket() throws Exception {
+        populateTypicalContent();
+
+        final TaggedNodesKey t1Key = bucketKey("ac-1", "os", "linux", "t-1");
+        final TaggedNodesKey t2Key = bucketKey("ac-1", "os", "linux", "t-2");
+        assertNotEquals(t1Key, t2Key);
+
+        final TaggedNodes t1Bucket = cacheProvider.taggedNodesCache().get(t1Key);
+        assertThat(telegrafHandles.resolve(t1Bucket.getHandles()), CoreMatchers.not(CoreMatchers.hasItem("t-2")));
+
+        Map<String, String> tags2 = new HashMap<>();
+        tags2.put("os", "linux");
+        taggingRepository.removeNodeTags("ac-1", "t-2", tags2);
+
+        assertEquals(t1Bucket, cacheProvider.taggedNodesCache().get(t1Key));
+        assertNull(cacheProvider.taggedNodesCache().get(t2Key));
+    }
+
+    @Test
+    public void testFindAssignedInputs() throws Exception {
+        Map<String, String> linux = new HashMap<>();
+        linux.put("os", "linux");
+        taggingRepository.indexAssignedInput("ac-1", "id-linux", linux);
+
+        Map<String, String> ubuntu = new HashMap<>();
+        ubuntu.put("os", "linux");
+        ubuntu.put("distro", "ubuntu");
+        taggingRepository.indexAssignedInput("ac-1", "id-ubuntu", ubuntu);
+
+        // NOTE different tenant
+        taggingRepository.indexAssignedInput("ac-2", "id-other", linux);
+
+        Map<String, String> centosNode = new HashMap<>();
+        centosNode.put("host", "machine-2");
+        centosNode.put("os", "linux");
+        centosNode.put("distro", "centos");
+        assertThat(taggingRepository.findAssignedInputs("ac-1", centosNode), containsInAnyOrder("id-linux"));
+
+        Map<String, String> ubuntuNode = new HashMap<>();
+        ubuntuNode.put("host", "machine-1");
+        ubuntuNode.put("os", "linux");
+        ubuntuNode.put("distro", "ubuntu");
+        assertThat(taggingRepository.findAssignedInputs("ac-1", ubuntuNode),
+                   containsInAnyOrder("id-linux", "id-ubuntu"));
+
+        taggingRepository.unindexAssignedInput("ac-1", "id-linux", linux);
+        assertThat(taggingRepository.findAssignedInputs("ac-1", ubuntuNode), containsInAnyOrder("id-ubuntu"));
+    }
+
+    @Test
+    public void testIndexAssignedInput_rolledBack() throws Exception {
+        Map<String, String> linux = new HashMap<>();
+        linux.put("os", "linux");
+
+        try (Transaction tx = igniteTransactions.txStart()) {
+            taggingRepository.indexAssignedInput("ac-1", "id-linux", linux);
+            tx.rollback();
+        }
+
+        assertThat(taggingRepository.findAssignedInputs("ac-1", linux), empty());
+    }
+
+    private TaggedNodesKey bucketKey(String tenantId, String name, String value, String tid) {
+        return new TaggedNodesKey(tenantId, name, value,
+                                  telegrafHandles.find(tid) % telegrafProperties.getTagBuckets());
+    }
+
     private void populateTypicalContent() {
         Map<String, String> tags1 = new HashMap<>();
         tags1.put("host", "machine-1");
@@ -0,0 +1,202 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.CacheNames;
+import com.rackspace.telegrafhomebase.config.IgniteCacheConfigs;
+import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
+import com.rackspace.telegrafhomebase.config.IgniteConfig;
+import com.rackspace.telegrafhomebase.config.IgniteProperties;
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import com.rackspace.telegrafhomebase.model.ConnectedNode;
+import com.rackspace.telegrafhomebase.model.DirectAssignments;
+import com.rackspace.telegrafhomebase.model.ManagedInput;
+import com.rackspace.telegrafhomebase.model.RunningAssignedInputKey;
+import com.rackspace.telegrafhomebase.model.RunningRegionalInputKey;
+import com.rackspace.telegrafhomebase.model.TelegrafLease;
+import com.rackspace.telegrafhomebase.model.TelegrafRegionalInputKey;
+import com.rackspace.telegrafhomebase.shared.DistributedQueueUtils;
+import org.apache.ignite.Ignite;
+import org.apache.ignite.IgniteCache;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {
+        IgniteConfig.class,
+        IgniteCacheConfigs.class,
+        IgniteCacheProvider.class,
+        IgniteProperties.class,
+        TelegrafProperties.class,
+        TelegrafHandles.class,
+        TaggingRepository.class,
+        RegionRegistry.class,
+        PendingConfigQueuer.class,
+        OrderedLanes.class,
+        AssignmentGeneration.class,
+        AssignmentJournal.class,
+        TelegrafLeases.class,
+        DirectAssignmentFanout.class,
+        TelegrafConfigObserver.class,
+        TelegrafConfigObserverTest.TestConfig.class
+}, properties = {
+        "telegraf.regions[0]=west",
+        "telegraf.observer-mode=PARTITIONED"
+}, webEnvironment = SpringBootTest.WebEnvironment.NONE)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class TelegrafConfigObserverTest {
+
+    @Configuration
+    @EnableConfigurationProperties
+    static class TestConfig {
+    }
+
+    @Autowired
+    Ignite ignite;
+
+    @Autowired
+    TaggingRepository taggingRepository;
+
+    @Autowired
+    AssignmentJournal assignmentJournal;
+
+    @Autowired
+    TelegrafLeases telegrafLeases;
+
+    @Autowired
+    PendingConfigQueuer pendingConfigQueuer;
+
+    @Autowired
+    IgniteCache<String, ManagedInput> managedInputsCache;
+
+    @Autowired
+    IgniteCache<String, ConnectedNode> connectedNodesCache;
+
+    @Autowired
+    IgniteCache<String, TelegrafLease> telegrafLeasesCache;
+
+    @Autowired
+    IgniteCache<RunningRegionalInputKey, String> runningRegionalInputsCache;
+
+    @Autowired
+    IgniteCache<RunningAssignedInputKey, String> runningAssignedInputsCache;
+
+    @Autowired
+    IgniteCache<TelegrafRegionalInputKey, Boolean> telegrafRegionalInputsCache;
+
+    @MockBean
+    TaskExecutor taskExecutor;
+
+    @MockBean
+    CounterService counterService;
+
+    @MockBean
+    GaugeService gaugeService;
+
+    @Before
+    public void setUp() throws Exception {
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArguments()[0]).run();
+            return null;
+        }).when(taskExecutor).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void testPartitioned_assignedInputs() throws Exception {
+        final Map<String, String> tags = Collections.singletonMap("os", "linux");
+        createAssigned("id-1", tags);
+
+        // the connection is handled by the primary node of the telegraf, which here is the only node
+        taggingRepository.storeNodeTags("ac-1", "t-1", tags);
+        final ConnectedNode connectedNode = new ConnectedNode();
+        connectedNode.setTenantId("ac-1");
+        connectedNode.setTags(tags);
+        connectedNodesCache.put("t-1", connectedNode);
+        awaitAssigned("t-1", 1);
+        assertThat(assignmentJournal.get("t-1").get(), contains("id-1"));
+
+        // and the creation by the primary node of the input
+        createAssigned("id-2", tags);
+        awaitAssigned("t-1", 2);
+        assertThat(assignmentJournal.get("t-1").get(), containsInAnyOrder("id-1", "id-2"));
+    }
+
+    @Test
+    public void testReleaseOrphans() throws Exception {
+        final String ourId = ignite.cluster().localNode().id().toString();
+        runningRegionalInputsCache.put(new RunningRegionalInputKey("id-1", "west"), "t-orphan");
+        telegrafLeases.indexRegionalInputs("t-orphan",
+                                           Collections.singleton(new RunningRegionalInputKey("id-1", "west")));
+        runningAssignedInputsCache.put(telegrafLeases.assignedInputKey("id-2", "t-orphan"), ourId);
+        final ConnectedNode connectedNode = new ConnectedNode();
+        connectedNode.setRegion("west");
+        connectedNodesCache.put("t-orphan", connectedNode);
+
+        // still holds its lease, so it is left alone even if in the same partition
+        telegrafLeases.grant("t-leased", "west", "c-1");
+        runningRegionalInputsCache.put(new RunningRegionalInputKey("id-3", "west"), "t-leased");
+        telegrafLeases.indexRegionalInputs("t-leased",
+                                           Collections.singleton(new RunningRegionalInputKey("id-3", "west")));
+
+        telegrafLeases.releaseOrphans(ignite.affinity(CacheNames.TELEGRAF_LEASES).partition("t-orphan"));
+
+        assertNull(runningRegionalInputsCache.get(new RunningRegionalInputKey("id-1", "west")));
+        assertFalse(runningAssignedInputsCache.containsKey(telegrafLeases.assignedInputKey("id-2", "t-orphan")));
+        assertFalse(connectedNodesCache.containsKey("t-orphan"));
+        assertEquals("t-leased", runningRegionalInputsCache.get(new RunningRegionalInputKey("id-3", "west")));
+        assertEquals(1, telegrafRegionalInputsCache.size());
+        assertNotNull(telegrafLeasesCache.get("t-leased"));
+
+        // the released regional input is queued again for the rest of the region
+        final int shard = DistributedQueueUtils.derivePendingConfigShard("id-1", pendingConfigQueuer.getShards("west"));
+        assertTrue(pendingConfigQueuer.poller("west", shard).poll().contains("id-1"));
+    }
+
+    private void createAssigned(String id, Map<String, String> tags) {
+        final ManagedInput managedInput = new ManagedInput();
+        managedInput.setId(id);
+        managedInput.setTenantId("ac-1");
+        managedInput.setAssignmentTags(tags);
+        managedInput.setText("[[inputs.cpu]]");
+        taggingRepository.indexAssignedInput("ac-1", id, tags);
+        managedInputsCache.put(id, managedInput);
+    }
+
+    private void awaitAssigned(String tid, int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        DirectAssignments assignments = assignmentJournal.get(tid);
+        while ((assignments == null || assignments.get().size() < count) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            assignments = assignmentJournal.get(tid);
+        }
+        assertNotNull(assignments);
+        assertEquals(count, assignments.get().size());
+    }
+}
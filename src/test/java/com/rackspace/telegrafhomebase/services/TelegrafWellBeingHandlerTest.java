@@ -0,0 +1,214 @@
+package com.rackspace.telegrafhomebase.services;
+
+import com.rackspace.telegrafhomebase.Benchmark;
+import com.rackspace.telegrafhomebase.config.IgniteCacheConfigs;
+import com.rackspace.telegrafhomebase.config.IgniteCacheProvider;
+import com.rackspace.telegrafhomebase.config.IgniteConfig;
+import com.rackspace.telegrafhomebase.config.IgniteProperties;
+import com.rackspace.telegrafhomebase.config.TelegrafProperties;
+import com.rackspace.telegrafhomebase.model.ManagedInput;
+import com.rackspace.telegrafhomebase.model.RunningRegionalInputKey;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ignite.IgniteCache;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+import remote.Telegraf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = {
+        IgniteConfig.class,
+        IgniteCacheConfigs.class,
+        IgniteCacheProvider.class,
+        IgniteProperties.class,
+        TelegrafProperties.class,
+        TelegrafHandles.class,
+        TaggingRepository.class,
+        RegionRegistry.class,
+        PendingConfigQueuer.class,
+        AssignmentJournal.class,
+        TelegrafLeases.class,
+        AssignmentGeneration.class,
+        TelegrafWellBeingHandler.class
+}, webEnvironment = SpringBootTest.WebEnvironment.NONE)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@Slf4j
+public class TelegrafWellBeingHandlerTest {
+
+    private static final int ITERATIONS = 50;
+
+    @Autowired
+    TelegrafWellBeingHandler wellBeingHandler;
+
+    @Autowired
+    TelegrafLeases telegrafLeases;
+
+    @Autowired
+    AssignmentGeneration assignmentGeneration;
+
+    @Autowired
+    IgniteCache<String, ManagedInput> managedInputsCache;
+
+    @Autowired
+    IgniteCache<RunningRegionalInputKey, String> runningRegionalInputsCache;
+
+    @MockBean
+    CounterService counterService;
+
+    @Test
+    public void testConfirmState_removedAndForeign() throws Exception {
+        final List<String> ids = populate("t-1", 2);
+        runningRegionalInputsCache.put(new RunningRegionalInputKey(ids.get(1), "west"), "t-other");
+
+        final List<String> reported = new ArrayList<>(ids);
+        reported.add("id-gone");
+
+        final Telegraf.CurrentStateResponse resp = wellBeingHandler.confirmState(identifiers("t-1"), reported);
+
+        assertThat(resp.getRemovedIdList(), contains(ids.get(1), "id-gone"));
+    }
+
+    @Test
+    public void testConfirmState_fastPath() throws Exception {
+        final List<String> ids = populate("t-1", 3);
+        telegrafLeases.grant("t-1", "west", "c-1");
+
+        wellBeingHandler.confirmState(identifiers("t-1"), ids);
+        final List<String> reordered = new ArrayList<>(ids);
+        Collections.reverse(reordered);
+        wellBeingHandler.confirmState(identifiers("t-1"), reordered);
+        assertEquals(1L, metric("telegraf.keepalive.fastpath.hits"));
+
+        // changes in other regions and tenants, or releases of other telegrafs, don't affect it
+        assignmentGeneration.advance(AssignmentGeneration.scopeOf("east", null));
+        assignmentGeneration.advance(AssignmentGeneration.scopeOf(null, "ac-1"));
+        telegrafLeases.release("t-other");
+        wellBeingHandler.confirmState(identifiers("t-1"), ids);
+        assertEquals(2L, metric("telegraf.keepalive.fastpath.hits"));
+
+        // a deletion in its region has to force validation again
+        assignmentGeneration.advance(AssignmentGeneration.scopeOf("west", null));
+        managedInputsCache.remove(ids.get(0));
+        final Telegraf.CurrentStateResponse resp = wellBeingHandler.confirmState(identifiers("t-1"), ids);
+        assertThat(resp.getRemovedIdList(), contains(ids.get(0)));
+        assertEquals(2L, metric("telegraf.keepalive.fastpath.misses"));
+    }
+
+    @Test
+    public void testRelease_newerLease() throws Exception {
+        final List<String> ids = populate("t-1", 1);
+        final RunningRegionalInputKey runningKey = new RunningRegionalInputKey(ids.get(0), "west");
+        telegrafLeases.indexRegionalInputs("t-1", Collections.singleton(runningKey));
+        // the telegraf already reconnected before its earlier connection got released
+        telegrafLeases.grant("t-1", "west", "c-2");
+
+        assertFalse(telegrafLeases.releaseConnection("t-1", "c-1"));
+        // and the same goes for an expiration that raced with a keep-alive re-granting the lease
+        assertFalse(telegrafLeases.release("t-1"));
+        assertEquals("t-1", runningRegionalInputsCache.get(runningKey));
+
+        assertTrue(telegrafLeases.releaseConnection("t-1", "c-2"));
+        assertNull(runningRegionalInputsCache.get(runningKey));
+    }
+
+    /**
+     * Reports the keep-alive latency as the number of active config IDs grows, both when each report has to be
+     * validated and when an unchanged report takes the fast path.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void testKeepAliveLatency() throws Exception {
+        for (int size : Arrays.asList(10, 100, 1000)) {
+            final String tid = "t-" + size;
+            final List<String> ids = populate(tid, size);
+            telegrafLeases.grant(tid, "west", "c-" + size);
+
+            // warm up
+            assertThat(wellBeingHandler.confirmState(identifiers(tid), ids).getRemovedIdList(), empty());
+
+            final long[] validated = new long[ITERATIONS];
+            final long[] unchanged = new long[ITERATIONS];
+            for (int i = 0; i < ITERATIONS; i++) {
+                assignmentGeneration.advance(AssignmentGeneration.scopeOf("west", null));
+                long start = System.nanoTime();
+                wellBeingHandler.confirmState(identifiers(tid), ids);
+                validated[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                wellBeingHandler.confirmState(identifiers(tid), ids);
+                unchanged[i] = System.nanoTime() - start;
+            }
+
+            log.info("Keep-alive latency with {} active IDs: validated {}, unchanged {}",
+                     size, summarize(validated), summarize(unchanged));
+        }
+    }
+
+    private static String summarize(long[] latencies) {
+        Arrays.sort(latencies);
+        return String.format("p50=%dus p99=%dus",
+                             TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length / 2]),
+                             TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length * 99 / 100]));
+    }
+
+    private long metric(String name) {
+        return wellBeingHandler.metrics().stream()
+                .filter(metric -> metric.getName().equals(name))
+                .findFirst()
+                .map(metric -> metric.getValue().longValue())
+                .orElse(-1L);
+    }
+
+    private List<String> populate(String tid, int count) {
+        final Map<String, ManagedInput> inputs = new HashMap<>();
+        final Map<RunningRegionalInputKey, String> running = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            final ManagedInput managedInput = new ManagedInput();
+            managedInput.setId(tid + "-id-" + i);
+            managedInput.setTenantId("ac-1");
+            managedInput.setRegion("west");
+            managedInput.setText("[[inputs.ping]]");
+            inputs.put(managedInput.getId(), managedInput);
+            running.put(new RunningRegionalInputKey(managedInput.getId(), "west"), tid);
+        }
+        managedInputsCache.putAll(inputs);
+        runningRegionalInputsCache.putAll(running);
+
+        final List<String> ids = new ArrayList<>(inputs.keySet());
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static Telegraf.Identifiers identifiers(String tid) {
+        return Telegraf.Identifiers.newBuilder()
+                .setTid(tid)
+                .setRegion("west")
+                .build();
+    }
+}
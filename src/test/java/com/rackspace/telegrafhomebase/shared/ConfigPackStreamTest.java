@@ -0,0 +1,238 @@
+package com.rackspace.telegrafhomebase.shared;
+
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import remote.Telegraf;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+public class ConfigPackStreamTest {
+
+    private ServerCallStreamObserver<Telegraf.ConfigPack> serverCall;
+    private ConfigPackStream.Listener listener;
+    private ArgumentCaptor<Runnable> onReadyHandler;
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void setUp() throws Exception {
+        serverCall = Mockito.mock(ServerCallStreamObserver.class);
+        listener = Mockito.mock(ConfigPackStream.Listener.class);
+        onReadyHandler = ArgumentCaptor.forClass(Runnable.class);
+    }
+
+    @Test
+    public void testQueuesUntilReady() throws Exception {
+        when(serverCall.isReady()).thenReturn(false);
+        final ConfigPackStream stream = create(ConfigPackStream.OverflowPolicy.COALESCE);
+        final ConfigPackStream.DeliveryCallback callback = Mockito.mock(ConfigPackStream.DeliveryCallback.class);
+
+        stream.offer(pack("id-1"), callback);
+        assertEquals(1, stream.getDepth());
+        verify(serverCall, never()).onNext(any());
+
+        when(serverCall.isReady()).thenReturn(true);
+        onReadyHandler.getValue().run();
+
+        assertEquals(0, stream.getDepth());
+        verify(serverCall).onNext(pack("id-1"));
+        verify(callback).delivered();
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        when(serverCall.isReady()).thenReturn(false);
+        final ConfigPackStream stream = create(ConfigPackStream.OverflowPolicy.COALESCE);
+
+        stream.offer(pack("id-1"), null);
+        stream.offer(pack("id-2"), null);
+        stream.offer(pack("id-3"), null);
+        assertEquals(2, stream.getDepth());
+        assertEquals(1, stream.getCoalescedCount());
+
+        when(serverCall.isReady()).thenReturn(true);
+        onReadyHandler.getValue().run();
+
+        verify(serverCall).onNext(pack("id-1"));
+        verify(serverCall).onNext(pack("id-2", "id-3"));
+    }
+
+    @Test
+    public void testCoalesce_latestOperationWins() throws Exception {
+        when(serverCall.isReady()).thenReturn(false);
+        final ConfigPackStream stream = create(ConfigPackStream.OverflowPolicy.COALESCE);
+
+        stream.offer(pack("id-0"), null);
+        stream.offer(pack("id-1", "id-2"), null);
+        stream.offer(removals("id-1"), null);
+        stream.offer(pack("id-1"), null);
+        stream.offer(removals("id-2"), null);
+        assertEquals(3, stream.getCoalescedCount());
+
+        when(serverCall.isReady()).thenReturn(true);
+        onReadyHandler.getValue().run();
+
+        verify(serverCall).onNext(pack("id-0"));
+        // id-1 was removed and then added again, id-2 was added and then removed
+        verify(serverCall).onNext(Telegraf.ConfigPack.newBuilder(pack("id-1"))
+                                          .addRemovedIds("id-2")
+                                          .build());
+    }
+
+    @Test
+    public void testDropAndResync() throws Exception {
+        when(serverCall.isReady()).thenReturn(false);
+        final ConfigPackStream stream = create(ConfigPackStream.OverflowPolicy.DROP_AND_RESYNC);
+        final ConfigPackStream.DeliveryCallback callback = Mockito.mock(ConfigPackStream.DeliveryCallback.class);
+
+        stream.offer(pack("id-1"), callback);
+        stream.offer(pack("id-2"), callback);
+        stream.offer(pack("id-3"), callback);
+        assertEquals(0, stream.getDepth());
+        assertEquals(3, stream.getDroppedCount());
+        verify(callback, Mockito.times(3)).failed();
+
+        when(serverCall.isReady()).thenReturn(true);
+        onReadyHandler.getValue().run();
+
+        verify(listener).handleResyncNeeded(stream);
+        verify(serverCall, never()).onNext(any());
+    }
+
+    @Test
+    public void testDropAndResync_removals() throws Exception {
+        when(serverCall.isReady()).thenReturn(false);
+        final ConfigPackStream stream = create(ConfigPackStream.OverflowPolicy.DROP_AND_RESYNC);
+
+        stream.offer(removals("id-8", "id-9"), null);
+        stream.offer(pack("id-1"), null);
+        // started again before the drop, so only id-8 still needs removing
+        stream.offer(pack("id-9"), null);
+        assertEquals(3, stream.getDroppedCount());
+
+        when(serverCall.isReady()).thenReturn(true);
+        onReadyHandler.getValue().run();
+
+        verify(serverCall).onNext(removals("id-8"));
+        verify(listener).handleResyncNeeded(stream);
+    }
+
+    @Test
+    public void testDisconnect() throws Exception {
+        when(serverCall.isReady()).thenReturn(false);
+        final ConfigPackStream stream = create(ConfigPackStream.OverflowPolicy.DISCONNECT);
+
+        stream.offer(pack("id-1"), null);
+        stream.offer(pack("id-2"), null);
+        stream.offer(pack("id-3"), null);
+
+        assertTrue(stream.isClosed());
+        verify(serverCall).onError(any(StatusRuntimeException.class));
+        verify(listener).handleStreamClosed(stream);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        when(serverCall.isReady()).thenReturn(false);
+        final ConfigPackStream stream = create(ConfigPackStream.OverflowPolicy.COALESCE);
+        final ArgumentCaptor<Runnable> onCancelHandler = ArgumentCaptor.forClass(Runnable.class);
+        verify(serverCall).setOnCancelHandler(onCancelHandler.capture());
+        final ConfigPackStream.DeliveryCallback callback = Mockito.mock(ConfigPackStream.DeliveryCallback.class);
+
+        stream.offer(pack("id-1"), callback);
+        onCancelHandler.getValue().run();
+
+        assertTrue(stream.isClosed());
+        verify(callback).failed();
+        verify(listener).handleStreamClosed(stream);
+    }
+
+    @Test
+    public void testSendFailure() throws Exception {
+        when(serverCall.isReady()).thenReturn(false);
+        final ConfigPackStream stream = create(ConfigPackStream.OverflowPolicy.COALESCE);
+        final ConfigPackStream.DeliveryCallback first = Mockito.mock(ConfigPackStream.DeliveryCallback.class);
+        final ConfigPackStream.DeliveryCallback second = Mockito.mock(ConfigPackStream.DeliveryCallback.class);
+        stream.offer(pack("id-1"), first);
+        stream.offer(pack("id-2"), second);
+
+        // not a grpc status, such as when the call was already completed
+        doThrow(new IllegalStateException("call already closed")).when(serverCall).onNext(any());
+        when(serverCall.isReady()).thenReturn(true);
+        onReadyHandler.getValue().run();
+
+        assertTrue(stream.isClosed());
+        verify(first).failed();
+        verify(second).failed();
+        verify(listener).handleStreamClosed(stream);
+
+        // and the drain is free for what comes after
+        final ConfigPackStream.DeliveryCallback later = Mockito.mock(ConfigPackStream.DeliveryCallback.class);
+        stream.offer(pack("id-3"), later);
+        verify(later).failed();
+    }
+
+    @Test
+    public void testTerminalWaitsForSend() throws Exception {
+        when(serverCall.isReady()).thenReturn(true);
+        final ConfigPackStream stream = create(ConfigPackStream.OverflowPolicy.COALESCE);
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            sending.countDown();
+            release.await();
+            return null;
+        }).when(serverCall).onNext(any());
+
+        final Thread sender = new Thread(() -> stream.offer(pack("id-1"), null));
+        sender.start();
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+
+        // completes while the send is still in progress, so it is left to the sending thread
+        stream.onCompleted();
+        verify(serverCall, never()).onCompleted();
+
+        release.countDown();
+        sender.join(5000);
+        final InOrder inOrder = Mockito.inOrder(serverCall);
+        inOrder.verify(serverCall).onNext(pack("id-1"));
+        inOrder.verify(serverCall).onCompleted();
+    }
+
+    private ConfigPackStream create(ConfigPackStream.OverflowPolicy policy) {
+        final ConfigPackStream stream = new ConfigPackStream("t-1", serverCall, 2, policy, listener);
+        verify(serverCall).setOnReadyHandler(onReadyHandler.capture());
+        return stream;
+    }
+
+    private static Telegraf.ConfigPack removals(String... ids) {
+        return Telegraf.ConfigPack.newBuilder().addAllRemovedIds(Arrays.asList(ids)).build();
+    }
+
+    private static Telegraf.ConfigPack pack(String... ids) {
+        final Telegraf.ConfigPack.Builder builder = Telegraf.ConfigPack.newBuilder();
+        for (String id : ids) {
+            builder.addNew(Telegraf.Config.newBuilder().setId(id).build());
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,138 @@
+package com.rackspace.telegrafhomebase.shared;
+
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+@Slf4j
+public class ConfigResponseStreamBundleTest {
+
+    /**
+     * Simulates the network send and grid transaction done by a typical regional dispatch.
+     */
+    private static final long HANDLER_MILLIS = 20;
+
+    @Test
+    public void testSelect_empty() throws Exception {
+        final ConfigResponseStreamBundle bundle = bundle(Mockito.mock(TelegrafDisconnectFunction.class));
+
+        assertNull(bundle.select());
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        final TelegrafDisconnectFunction removalFunction = Mockito.mock(TelegrafDisconnectFunction.class);
+        final ConfigResponseStreamBundle bundle = bundle(removalFunction);
+        final ConfigResponseStreamBundle.Entry entry = entry("t-1");
+        bundle.add(entry);
+
+        bundle.discard(bundle.select());
+
+        assertTrue(bundle.isEmpty());
+        verify(removalFunction).handleDisconnect(entry.getStream());
+    }
+
+    @Test
+    public void testHandleDisconnect_staleStream() throws Exception {
+        final ConfigResponseStreamBundle bundle = bundle(Mockito.mock(TelegrafDisconnectFunction.class));
+        final ConfigResponseStreamBundle.Entry old = entry("t-1");
+        final ConfigResponseStreamBundle.Entry reconnected = entry("t-1");
+        bundle.add(old);
+        bundle.handleDisconnect(old.getStream());
+        bundle.add(reconnected);
+
+        // a late close of the old stream leaves the reconnected one alone
+        bundle.handleDisconnect(old.getStream());
+        assertSame(reconnected, bundle.select());
+    }
+
+    /**
+     * Measures connect/disconnect latency while a dispatcher continuously selects entries and runs slow handlers
+     * with them, as the regional dispatch does. Since selecting doesn't hold the lock across the handler, a
+     * connect or disconnect never waits for a handler to finish.
+     */
+    @Test
+    public void testConnectDisconnectLatencyUnderDispatch() throws Exception {
+        final ConfigResponseStreamBundle bundle = bundle(Mockito.mock(TelegrafDisconnectFunction.class));
+        final ConfigResponseStreamBundle.Entry steady = entry("t-steady");
+        bundle.add(steady);
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger dispatched = new AtomicInteger();
+        final Thread dispatcher = new Thread(() -> {
+            while (running.get()) {
+                final ConfigResponseStreamBundle.Entry entry = bundle.select();
+                if (entry == null) {
+                    continue;
+                }
+                try {
+                    Thread.sleep(HANDLER_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                dispatched.incrementAndGet();
+            }
+        }, "dispatcher");
+        dispatcher.start();
+
+        final int iterations = 100;
+        final long[] latencies = new long[iterations];
+        try {
+            for (int i = 0; i < iterations; i++) {
+                final ConfigResponseStreamBundle.Entry entry = entry("t-" + i);
+                final long start = System.nanoTime();
+                bundle.add(entry);
+                bundle.handleDisconnect(entry.getStream());
+                latencies[i] = System.nanoTime() - start;
+
+                Thread.sleep(1);
+            }
+        } finally {
+            running.set(false);
+            dispatcher.join();
+        }
+
+        Arrays.sort(latencies);
+        final long p50 = TimeUnit.NANOSECONDS.toMicros(latencies[iterations / 2]);
+        final long p99 = TimeUnit.NANOSECONDS.toMicros(latencies[iterations * 99 / 100]);
+        log.info("Connect+disconnect latency under dispatch load of {} dispatches: p50={}us p99={}us",
+                 dispatched.get(), p50, p99);
+
+        assertTrue("dispatch load was applied", dispatched.get() > 0);
+        assertTrue("median latency should not wait behind a handler",
+                   p50 < TimeUnit.MILLISECONDS.toMicros(HANDLER_MILLIS));
+        // all of the others were disconnected
+        bundle.handleDisconnect(steady.getStream());
+        assertTrue(bundle.isEmpty());
+    }
+
+    private static ConfigResponseStreamBundle bundle(TelegrafDisconnectFunction removalFunction) {
+        return new ConfigResponseStreamBundle(new RandomPlacementStrategy(new Random()), removalFunction);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConfigResponseStreamBundle.Entry entry(String tid) {
+        final ConfigPackStream stream = new ConfigPackStream(tid,
+                                                             Mockito.mock(StreamObserver.class),
+                                                             1,
+                                                             ConfigPackStream.OverflowPolicy.COALESCE,
+                                                             Mockito.mock(ConfigPackStream.Listener.class));
+        return new ConfigResponseStreamBundle.Entry(tid, stream);
+    }
+}
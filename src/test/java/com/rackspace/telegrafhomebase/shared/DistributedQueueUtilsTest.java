@@ -0,0 +1,56 @@
+package com.rackspace.telegrafhomebase.shared;
+
+import com.rackspace.telegrafhomebase.QueueNames;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+public class DistributedQueueUtilsTest {
+
+    @Test
+    public void testDerivePendingConfigQueueName_shardZeroCompatible() throws Exception {
+        // what was queued before a region was sharded is consumed by its first shard
+        assertEquals(QueueNames.PREFIX_PENDING_CONFIG + "west",
+                     DistributedQueueUtils.derivePendingConfigQueueName("west", 0));
+        assertEquals(DistributedQueueUtils.derivePendingConfigQueueName("west"),
+                     DistributedQueueUtils.derivePendingConfigQueueName("west", 0));
+
+        assertNotEquals(DistributedQueueUtils.derivePendingConfigQueueName("west", 0),
+                        DistributedQueueUtils.derivePendingConfigQueueName("west", 1));
+        assertNotEquals(DistributedQueueUtils.derivePendingConfigQueueName("west", 1),
+                        DistributedQueueUtils.derivePendingConfigQueueName("east", 1));
+    }
+
+    @Test
+    public void testDerivePendingConfigShard() throws Exception {
+        final int shards = 4;
+        final int[] counts = new int[shards];
+        for (int i = 0; i < 10000; i++) {
+            final String configId = "id-" + i;
+            final int shard = DistributedQueueUtils.derivePendingConfigShard(configId, shards);
+            assertTrue(shard >= 0 && shard < shards);
+            // always the same shard, so a config ID is only ever taken by one consumer
+            assertEquals(shard, DistributedQueueUtils.derivePendingConfigShard(configId, shards));
+            counts[shard]++;
+        }
+
+        for (int count : counts) {
+            assertTrue("shards should be evenly used, but saw " + count, count > 2000 && count < 3000);
+        }
+        assertEquals(0, DistributedQueueUtils.derivePendingConfigShard("id-1", 1));
+    }
+
+    @Test
+    public void testDerivePendingConfigShard_negativeHash() throws Exception {
+        // "polygenelubricants" is a well known string with a hash code of Integer.MIN_VALUE
+        assertEquals(Integer.MIN_VALUE, "polygenelubricants".hashCode());
+        final int shard = DistributedQueueUtils.derivePendingConfigShard("polygenelubricants", 3);
+        assertTrue(shard >= 0 && shard < 3);
+    }
+}
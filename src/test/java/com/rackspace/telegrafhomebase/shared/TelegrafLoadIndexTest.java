@@ -0,0 +1,63 @@
+package com.rackspace.telegrafhomebase.shared;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author Geoff Bourne
+ * @since Oct 2017
+ */
+public class TelegrafLoadIndexTest {
+
+    @Test
+    public void testLeastLoaded() throws Exception {
+        final TelegrafLoadIndex index = new TelegrafLoadIndex();
+        assertNull(index.peekLeastLoaded());
+
+        index.track("t-1");
+        index.track("t-2");
+        index.track("t-3");
+
+        index.adjust("t-1", 2);
+        index.adjust("t-3", 1);
+        assertEquals("t-2", index.peekLeastLoaded());
+
+        index.adjust("t-2", 3);
+        assertEquals("t-3", index.peekLeastLoaded());
+
+        index.adjust("t-1", -2);
+        assertEquals("t-1", index.peekLeastLoaded());
+    }
+
+    @Test
+    public void testUntrackRetainsLoad() throws Exception {
+        final TelegrafLoadIndex index = new TelegrafLoadIndex();
+        index.track("t-1");
+        index.track("t-2");
+        index.adjust("t-1", 1);
+        index.adjust("t-2", 5);
+
+        index.untrack("t-1");
+        assertEquals("t-2", index.peekLeastLoaded());
+        assertEquals(1, index.getLoad("t-1"));
+
+        // and a removal of an untracked telegraf's input is still accounted
+        index.adjust("t-1", -1);
+        assertEquals(0, index.getLoad("t-1"));
+
+        index.track("t-1");
+        assertEquals("t-1", index.peekLeastLoaded());
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testNeverNegative() throws Exception {
+        final TelegrafLoadIndex index = new TelegrafLoadIndex();
+        index.track("t-1");
+        index.adjust("t-1", -1);
+
+        assertEquals(0, index.getLoad("t-1"));
+    }
+}